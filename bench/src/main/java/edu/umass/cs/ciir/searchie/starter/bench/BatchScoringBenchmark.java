@@ -0,0 +1,89 @@
+package edu.umass.cs.ciir.searchie.starter.bench;
+
+import edu.umass.cs.ciir.searchie.starter.BasicExperiment;
+import edu.umass.cs.ciir.searchie.starter.BatchScorer;
+import edu.umass.cs.ciir.searchie.starter.LinearTokenClassifier;
+import edu.umass.cs.ciir.searchie.starter.SimpleToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scoring and evaluating many models against one corpus: one {@link BatchScorer} pass, versus one model at a time.
+ * @author jfoley
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BatchScoringBenchmark {
+  @Param({"16"})
+  public int numModels;
+
+  List<LinearTokenClassifier> models;
+  List<String> etypes;
+  BatchScorer scorer;
+
+  @Setup
+  public void setup(CorpusState state) {
+    models = new ArrayList<>();
+    for (int m = 0; m < numModels; m++) {
+      models.add(new LinearTokenClassifier(new SyntheticData(100 + m, state.vocabulary).weights(state.dictionary)));
+    }
+    etypes = Collections.nCopies(numModels, "PER");
+    scorer = BatchScorer.build(state.corpus);
+  }
+
+  @Benchmark
+  public BatchScorer build(CorpusState state) {
+    return BatchScorer.build(state.corpus);
+  }
+
+  @Benchmark
+  public BatchScorer.Scores scoreBatch() {
+    return scorer.score(models);
+  }
+
+  @Benchmark
+  public double scoreEach(CorpusState state) {
+    double total = 0;
+    for (LinearTokenClassifier model : models) {
+      for (List<SimpleToken> sentence : state.corpus) {
+        for (SimpleToken token : sentence) {
+          total += model.score(token);
+        }
+      }
+    }
+    return total;
+  }
+
+  @Benchmark
+  public List<Map<String, Double>> evaluateBatch() {
+    return scorer.evaluate(models, etypes);
+  }
+
+  @Benchmark
+  public List<Map<String, Double>> evaluateEach(CorpusState state) {
+    List<Map<String, Double>> output = new ArrayList<>();
+    for (LinearTokenClassifier model : models) {
+      output.add(BasicExperiment.evaluateModelParallel(model, state.corpus, "PER"));
+    }
+    return output;
+  }
+}
@@ -0,0 +1,67 @@
+package edu.umass.cs.ciir.searchie.starter.bench;
+
+import ciir.jfoley.chai.io.TemporaryDirectory;
+import edu.umass.cs.ciir.searchie.starter.CRFSuiteLearner;
+import edu.umass.cs.ciir.searchie.starter.FeatureDictionary;
+import edu.umass.cs.ciir.searchie.starter.SimpleToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading .crfsuite files in, and writing training files back out.
+ * @author jfoley
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CorpusBenchmark {
+  TemporaryDirectory tmpdir;
+  CRFSuiteLearner learner;
+  File forTrain;
+
+  @Setup
+  public void setup() throws IOException {
+    tmpdir = new TemporaryDirectory();
+    // never runs crfsuite; it's only here for createTrainingFile.
+    learner = new CRFSuiteLearner(tmpdir, "crfsuite");
+    forTrain = tmpdir.newOrderedFile(".crfsuite");
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    tmpdir.close();
+  }
+
+  @Benchmark
+  public List<List<SimpleToken>> loadCRFSuiteInputFormat(CorpusState state) throws IOException {
+    return SimpleToken.loadCRFSuiteInputFormat(state.corpusFile, new FeatureDictionary());
+  }
+
+  @Benchmark
+  public List<List<SimpleToken>> loadCRFSuiteInputFormatParallel(CorpusState state) throws IOException {
+    return SimpleToken.loadCRFSuiteInputFormatParallel(state.corpusFile, new FeatureDictionary());
+  }
+
+  @Benchmark
+  public long createTrainingFile(CorpusState state) {
+    learner.createTrainingFile("PER", state.corpus, forTrain);
+    return forTrain.length();
+  }
+}
@@ -0,0 +1,44 @@
+package edu.umass.cs.ciir.searchie.starter.bench;
+
+import edu.umass.cs.ciir.searchie.starter.FeatureDictionary;
+import edu.umass.cs.ciir.searchie.starter.SimpleToken;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A synthetic corpus on disk and already loaded, shared by the benchmarks that need one.
+ * @author jfoley
+ */
+@State(Scope.Benchmark)
+public class CorpusState {
+  @Param({"2000"})
+  public int sentences;
+  @Param({"20000"})
+  public int vocabulary;
+
+  public File corpusFile;
+  public FeatureDictionary dictionary;
+  public List<List<SimpleToken>> corpus;
+
+  @Setup
+  public void setup() throws IOException {
+    corpusFile = File.createTempFile("synthetic", ".crfsuite");
+    new SyntheticData(42, vocabulary).writeCorpus(corpusFile, sentences);
+    dictionary = new FeatureDictionary();
+    corpus = SimpleToken.loadCRFSuiteInputFormat(corpusFile, dictionary);
+  }
+
+  @TearDown
+  public void tearDown() {
+    if(!corpusFile.delete()) {
+      System.err.println("Couldn't delete " + corpusFile);
+    }
+  }
+}
@@ -0,0 +1,180 @@
+package edu.umass.cs.ciir.searchie.starter.bench;
+
+import edu.umass.cs.ciir.searchie.starter.BasicExperiment;
+import edu.umass.cs.ciir.searchie.starter.CRFSuiteLearner;
+import edu.umass.cs.ciir.searchie.starter.CRFSuiteModel;
+import edu.umass.cs.ciir.searchie.starter.CompactLinearModel;
+import edu.umass.cs.ciir.searchie.starter.FeatureIndex;
+import edu.umass.cs.ciir.searchie.starter.LinearTokenClassifier;
+import edu.umass.cs.ciir.searchie.starter.SequenceTagger;
+import edu.umass.cs.ciir.searchie.starter.SimpleToken;
+import gnu.trove.map.hash.TObjectFloatHashMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a model back from a dump, then scoring and evaluating with it.
+ * @author jfoley
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ModelBenchmark {
+  @Param({"1000"})
+  public int sampledFeatures;
+
+  File dump;
+  LinearTokenClassifier model;
+  CompactLinearModel compact;
+  LinearTokenClassifier sampled;
+  FeatureIndex index;
+  SequenceTagger tagger;
+
+  @Setup
+  public void setup(CorpusState state) throws IOException {
+    SyntheticData data = new SyntheticData(7, state.vocabulary);
+    dump = File.createTempFile("synthetic", ".dump");
+    data.writeDump(dump, state.dictionary);
+    model = new LinearTokenClassifier(data.weights(state.dictionary));
+    compact = CompactLinearModel.quantize(model.featureWeights, 16);
+    sampled = model.deriveSampled(sampledFeatures);
+    index = FeatureIndex.build(state.corpus);
+    // the model's weights for PER against an all-zero O, with a transition penalty for switching labels.
+    Map<String, TObjectFloatHashMap<String>> stateWeights = new HashMap<>();
+    stateWeights.put("PER", model.featureWeights);
+    float[][] transitions = {{0.5f, -1f}, {-1f, 0.5f}};
+    tagger = new SequenceTagger(new CRFSuiteModel(Arrays.asList("O", "PER"), transitions, stateWeights), state.dictionary);
+  }
+
+  @TearDown
+  public void tearDown() {
+    if(!dump.delete()) {
+      System.err.println("Couldn't delete " + dump);
+    }
+  }
+
+  @Benchmark
+  public TObjectFloatHashMap<String> parseCRFSuiteModelDump() throws IOException {
+    return CRFSuiteLearner.parseCRFSuiteModelDump(dump, "PER");
+  }
+
+  @Benchmark
+  public double scoreTokens(CorpusState state) {
+    double total = 0;
+    for (List<SimpleToken> sentence : state.corpus) {
+      for (SimpleToken token : sentence) {
+        total += model.score(token);
+      }
+    }
+    return total;
+  }
+
+  @Benchmark
+  public double scoreFeatureSets(CorpusState state) {
+    double total = 0;
+    for (List<SimpleToken> sentence : state.corpus) {
+      for (SimpleToken token : sentence) {
+        total += model.score(token.getFeatures());
+      }
+    }
+    return total;
+  }
+
+  @Benchmark
+  public double scoreFeatureSetsCompact(CorpusState state) {
+    double total = 0;
+    for (List<SimpleToken> sentence : state.corpus) {
+      for (SimpleToken token : sentence) {
+        total += compact.score(token.getFeatures());
+      }
+    }
+    return total;
+  }
+
+  @Benchmark
+  public double scoreTokensSampled(CorpusState state) {
+    double total = 0;
+    for (List<SimpleToken> sentence : state.corpus) {
+      for (SimpleToken token : sentence) {
+        total += sampled.score(token);
+      }
+    }
+    return total;
+  }
+
+  @Benchmark
+  public double[] scoreIndexedSampled() {
+    return index.score(sampled);
+  }
+
+  @Benchmark
+  public FeatureIndex buildIndex(CorpusState state) {
+    return FeatureIndex.build(state.corpus);
+  }
+
+  @Benchmark
+  public LinearTokenClassifier deriveSampled() {
+    return model.deriveSampled(sampledFeatures);
+  }
+
+  @Benchmark
+  public CompactLinearModel deriveSampledCompact() {
+    return model.deriveSampledCompact(sampledFeatures, 16);
+  }
+
+  @Benchmark
+  public Map<String, Double> evaluateModel(CorpusState state) {
+    return BasicExperiment.evaluateModel(model, state.corpus, "PER");
+  }
+
+  @Benchmark
+  public Map<String, Double> evaluateModelParallel(CorpusState state) {
+    return BasicExperiment.evaluateModelParallel(model, state.corpus, "PER");
+  }
+
+  @Benchmark
+  public Map<String, Double> evaluateSampled(CorpusState state) {
+    return BasicExperiment.evaluateModel(sampled, state.corpus, "PER");
+  }
+
+  @Benchmark
+  public Map<String, Double> evaluateSampledIndexed() {
+    return index.evaluate(sampled, "PER");
+  }
+
+  @Benchmark
+  public List<int[]> tagViterbi(CorpusState state) {
+    return tagger.tagAll(state.corpus);
+  }
+
+  @Benchmark
+  public double[] tagMarginals(CorpusState state) {
+    return tagger.marginalsAll(state.corpus, 1);
+  }
+
+  @Benchmark
+  public Map<String, Double> evaluateTagger(CorpusState state) {
+    return BasicExperiment.evaluateTagger(tagger, state.corpus, "PER");
+  }
+}
@@ -0,0 +1,23 @@
+package edu.umass.cs.ciir.searchie.starter.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH's usual command line (e.g., a benchmark regex, -p sentences=10000), but always with the gc profiler, so
+ * allocation rates (gc.alloc.rate.norm is bytes per operation) are reported next to every time.
+ * @author jfoley
+ */
+public class RunBenchmarks {
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    CommandLineOptions cmd = new CommandLineOptions(args);
+    new Runner(new OptionsBuilder()
+        .parent(cmd)
+        .addProfiler(GCProfiler.class)
+        .build()).run();
+  }
+}
@@ -0,0 +1,50 @@
+package edu.umass.cs.ciir.searchie.starter.bench;
+
+import edu.umass.cs.ciir.searchie.starter.FeatureDictionary;
+import edu.umass.cs.ciir.searchie.starter.SNLPFeatures;
+import edu.umass.cs.ciir.searchie.starter.SimpleToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning raw Stanford NER feature strings into "key=value" features and per-field text, over a whole corpus.
+ * @author jfoley
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SNLPFeaturesBenchmark {
+  @Benchmark
+  public void parseAllFeatures(CorpusState state, Blackhole bh) {
+    for (List<SimpleToken> sentence : state.corpus) {
+      for (SimpleToken token : sentence) {
+        bh.consume(SNLPFeatures.parseAllFeatures(token.getFeatures()));
+      }
+    }
+  }
+
+  @Benchmark
+  public void toFieldFeatures(CorpusState state, Blackhole bh) {
+    for (List<SimpleToken> sentence : state.corpus) {
+      for (SimpleToken token : sentence) {
+        bh.consume(SNLPFeatures.toFieldFeatures(token.getFeatures()));
+      }
+    }
+  }
+
+  @Benchmark
+  public List<List<SimpleToken>> parseCorpus(CorpusState state) {
+    return SNLPFeatures.parseCorpus(state.corpus, new FeatureDictionary());
+  }
+}
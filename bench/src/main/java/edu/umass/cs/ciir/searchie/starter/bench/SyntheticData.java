@@ -0,0 +1,157 @@
+package edu.umass.cs.ciir.searchie.starter.bench;
+
+import edu.umass.cs.ciir.searchie.starter.FeatureDictionary;
+import gnu.trove.map.hash.TObjectFloatHashMap;
+import org.lemurproject.galago.utility.Parameters;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Corpora and models shaped like the Stanford NER feature dumps (t*.snlpl.all.crfsuite), so benchmarks don't need the
+ * real data or a crfsuite binary. Words are Zipf-ish, and every token gets the same feature templates the real files use.
+ * @author jfoley
+ */
+public class SyntheticData {
+  public static final List<String> LABELS = Arrays.asList("O", "PER", "LOC", "ORG", "MISC");
+  static final String[] TAGS = {"NN", "NNP", "NNS", "VB", "VBD", "DT", "IN", "JJ", "PRP", "CC", "CD", "RB"};
+  static final String[] SHAPES = {"Xx", "x", "X", "d", "Xx-x", "x.", "XX", "dd"};
+
+  public final Random rand;
+  public final int vocabulary;
+
+  public SyntheticData(long seed, int vocabulary) {
+    this.rand = new Random(seed);
+    this.vocabulary = vocabulary;
+  }
+
+  String word() {
+    // log-uniform rank, so p(rank) ~ 1/rank: a few very common words, a long tail.
+    int rank = (int) Math.pow(vocabulary, rand.nextDouble()) - 1;
+    return "w" + rank;
+  }
+
+  String label() {
+    return rand.nextInt(5) < 4 ? "O" : LABELS.get(1 + rand.nextInt(LABELS.size() - 1));
+  }
+
+  String tag(String word) {
+    return TAGS[Math.floorMod(word.hashCode(), TAGS.length)];
+  }
+
+  String shape(String word) {
+    return SHAPES[Math.floorMod(word.hashCode() / 7, SHAPES.length)];
+  }
+
+  String cluster(String word) {
+    return Integer.toString(Math.floorMod(word.hashCode() / 31, 1000));
+  }
+
+  public void writeSentence(Writer out) throws IOException {
+    int length = 5 + rand.nextInt(25);
+    String[] words = new String[length];
+    for (int i = 0; i < length; i++) {
+      words[i] = word();
+    }
+    for (int i = 0; i < length; i++) {
+      String w = words[i];
+      String prev = i > 0 ? words[i - 1] : "<S>";
+      String next = i + 1 < length ? words[i + 1] : "</S>";
+      StringBuilder token = new StringBuilder(label());
+      token.append('\t').append(w).append("-WORD|C");
+      token.append('\t').append(prev).append("-PW|C");
+      token.append('\t').append(next).append("-NW|C");
+      token.append('\t').append(tag(w)).append("-TAG|C");
+      token.append('\t').append(tag(prev)).append("-PTAG|C");
+      token.append('\t').append(tag(next)).append("-NTAG|C");
+      token.append('\t').append(shape(w)).append("-TYPE|C");
+      token.append('\t').append(shape(prev)).append("-PTYPE|C");
+      token.append('\t').append(shape(next)).append("-NTYPE|C");
+      token.append('\t').append(cluster(w)).append("-DISTSIM|C");
+      token.append('\t').append(cluster(prev)).append("-PDISTSIM|C");
+      token.append('\t').append(w).append('-').append(tag(w)).append("-W-T|C");
+      token.append('\t').append(prev).append('-').append(w).append("-PSEQW2|CpC");
+      token.append('\t').append(shape(w)).append('-').append(w).append("-PW_CTYPE|C");
+      token.append('\t').append('#').append(w.substring(0, Math.min(3, w.length()))).append("#|C");
+      if(i == 0) token.append("\tIS_TITLE|C");
+      token.append("\tPSEQ|CpC");
+      out.write(token.toString());
+      out.write('\n');
+    }
+    out.write('\n');
+  }
+
+  public void writeCorpus(File output, int numSentences) throws IOException {
+    try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8), 1 << 16)) {
+      for (int i = 0; i < numSentences; i++) {
+        writeSentence(out);
+      }
+    }
+  }
+
+  /** Gaussian weights for every feature in the dictionary. */
+  public TObjectFloatHashMap<String> weights(FeatureDictionary dictionary) {
+    TObjectFloatHashMap<String> weights = new TObjectFloatHashMap<>();
+    for (int id = 0; id < dictionary.size(); id++) {
+      weights.put(dictionary.getName(id), (float) rand.nextGaussian());
+    }
+    return weights;
+  }
+
+  /** A "crfsuite dump" with every label, transitions, and a state weight for most (feature, label) pairs. */
+  public void writeDump(File output, FeatureDictionary dictionary) throws IOException {
+    try (PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8), 1 << 16))) {
+      out.println("FILEHEADER = {");
+      out.println("  magic: lCRF");
+      out.println("  num_labels: " + LABELS.size());
+      out.println("  num_attrs: " + dictionary.size());
+      out.println("}");
+      out.println();
+      out.println("LABELS = {");
+      for (int i = 0; i < LABELS.size(); i++) {
+        out.println("  " + i + ": " + LABELS.get(i));
+      }
+      out.println("}");
+      out.println();
+      out.println("ATTRIBUTES = {");
+      for (int id = 0; id < dictionary.size(); id++) {
+        out.println("  " + id + ": " + dictionary.getName(id));
+      }
+      out.println("}");
+      out.println();
+      out.println("TRANSITIONS = {");
+      for (String from : LABELS) {
+        for (String to : LABELS) {
+          out.println("  (1) " + from + " --> " + to + ": " + (float) rand.nextGaussian());
+        }
+      }
+      out.println("}");
+      out.println();
+      out.println("STATE_FEATURES = {");
+      for (int id = 0; id < dictionary.size(); id++) {
+        for (String label : LABELS) {
+          if(rand.nextInt(3) == 0) continue;
+          out.println("  (0) " + dictionary.getName(id) + " --> " + label + ": " + (float) rand.nextGaussian());
+        }
+      }
+      out.println("}");
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    Parameters argp = Parameters.parseArgs(args);
+    SyntheticData data = new SyntheticData(argp.get("seed", 1L), argp.get("vocabulary", 50000));
+    File output = new File(argp.get("output", "synthetic.crfsuite"));
+    data.writeCorpus(output, argp.get("sentences", 10000));
+    System.out.println("Wrote " + output + " (" + output.length() + " bytes)");
+  }
+}
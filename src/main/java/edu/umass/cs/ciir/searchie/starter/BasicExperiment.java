@@ -1,19 +1,23 @@
 package edu.umass.cs.ciir.searchie.starter;
 
-import ciir.jfoley.chai.classifier.AUC;
-import ciir.jfoley.chai.classifier.BinaryClassifierInfo;
-import ciir.jfoley.chai.collections.Pair;
+import ciir.jfoley.chai.io.LinesIterable;
 import ciir.jfoley.chai.io.TemporaryDirectory;
 import ciir.jfoley.chai.random.ReservoirSampler;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.hash.TObjectFloatHashMap;
 import org.lemurproject.galago.utility.Parameters;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class BasicExperiment {
   public static String defaultCRFSuiteBinary = "/home/jfoley/bin/crfsuite-0.12/bin/crfsuite";
@@ -23,6 +27,23 @@ public class BasicExperiment {
     // defaults: java ... BasicExperiment --class=PER --trainingStart=3
     // other: java ... BasicExperiment --class=LOC --trainingStart=20
     Parameters argp = Parameters.parseArgs(args);
+
+    // --report=run.json writes timings, counters and heap use at the end; --snapshotEvery=seconds also logs them as
+    // we go (to --snapshots=file.jsonl, or stderr). Both happen even if the run fails, when they're most useful.
+    if(argp.get("snapshotEvery", 0L) > 0) {
+      Instrumentation.global.startSnapshots(argp.get("snapshotEvery", 0L), argp.containsKey("snapshots") ? new File(argp.getString("snapshots")) : null);
+    }
+    try {
+      run(argp);
+    } finally {
+      Instrumentation.global.stopSnapshots();
+      if(argp.containsKey("report")) {
+        Instrumentation.global.writeReport(new File(argp.getString("report")));
+      }
+    }
+  }
+
+  private static void run(Parameters argp) throws IOException {
     // parameters looks in args for a key or uses the default value:
     String etype = argp.get("class", "PER");
     int numTraining = argp.get("trainingStart", 3);
@@ -30,11 +51,31 @@ public class BasicExperiment {
     File trainFile = new File(argp.get("train", "data/train.snlpl.all.crfsuite"));
     File testFile = new File(argp.get("input", "data/testb.snlpl.all.crfsuite"));
 
-    // list of sentences, sentences are list of tokens
-    List<List<SimpleToken>> fullConllTrain = SimpleToken.loadCRFSuiteInputFormat(trainFile);
+    // list of sentences, sentences are list of tokens; both share feature ids from one dictionary
+    // --cache=true (default) reads/writes a binary copy next to each file, see MappedCorpus
+    boolean useCache = argp.get("cache", true);
+    // --hashBits=b hashes features into 2^b signed buckets instead of keeping every feature string
+    int hashBits = argp.get("hashBits", 0);
+    HashedFeatureDictionary hashing = hashBits > 0 ? new HashedFeatureDictionary(hashBits) : null;
+    FeatureDictionary dictionary = hashing != null ? hashing : new FeatureDictionary();
+    List<List<SimpleToken>> fullConllTrain = loadCorpus(trainFile, dictionary, useCache);
     System.out.println("Training data loaded: " + fullConllTrain.size() + " sentences.");
-    List<List<SimpleToken>> fullConllTest = SimpleToken.loadCRFSuiteInputFormat(testFile);
-    System.out.println("Testing data loaded: " + fullConllTest.size() + " sentences.");
+    // --streamEval scores the test file as it's read, rather than loading it first; for test sets bigger than the heap.
+    boolean streamEval = argp.get("streamEval", false);
+    // --mappedEval scores the test file's MappedCorpus cache in place, rather than loading its tokens onto the heap.
+    boolean mappedEval = argp.get("mappedEval", false);
+    if(mappedEval && hashing != null) throw new IllegalArgumentException("--mappedEval reads the corpus cache, which --hashBits doesn't use.");
+    List<List<SimpleToken>> fullConllTest = null;
+    if(!streamEval && !mappedEval) {
+      fullConllTest = loadCorpus(testFile, dictionary, useCache);
+      System.out.println("Testing data loaded: " + fullConllTest.size() + " sentences.");
+    }
+    if(hashing != null) {
+      System.out.println("Hash buckets: " + hashing.numBuckets() + ", used by train: " + hashing.bucketsUsed(fullConllTrain) +
+          (fullConllTest != null ? ", by test: " + hashing.bucketsUsed(fullConllTest) : ""));
+    } else {
+      System.out.println("Distinct features: " + dictionary.size());
+    }
 
     // split into positive and negative sentences based on whether they have "etype"
     List<List<SimpleToken>> fullPositives = new ArrayList<>();
@@ -57,26 +98,70 @@ public class BasicExperiment {
     // I didn't find negatives to be helpful in my experiments, so only sample from positives:
     // delete all temporary files we create as we go
     try (TemporaryDirectory tmpdir = new TemporaryDirectory()) {
-      // CRFSuite learner class (basically, where do we save tmp files?)
-      CRFSuiteLearner learner = new CRFSuiteLearner(tmpdir, argp.get("crfsuite", defaultCRFSuiteBinary));
-
-      // set up a CRFSuite model (lbfgs is typically the best).
-      learner.setModel(argp.get("model", "lbfgs"));
+      // --learner=crfsuite (external binary), --learner=java (in-process, no binary needed), or --learner=perceptron|sgd (online)
+      FeatureWeightLearner learner = createLearner(argp, tmpdir);
+      if(hashing != null && !(learner instanceof CRFSuiteLearner)) {
+        throw new IllegalArgumentException("--hashBits needs --learner=crfsuite, which reads signed (h17:-1) attributes.");
+      }
 
       // Randomly pick out a few positives:
-      List<List<SimpleToken>> positives = ReservoirSampler.take(numTraining, fullPositives);
+      List<List<SimpleToken>> positives;
+      Instrumentation.Timer timer = Instrumentation.time("sample");
+      positives = ReservoirSampler.take(numTraining, fullPositives);
+      timer.stop();
 
-      // Train a model and read it in from CRFSuite:
+      // Train a model (and read it in from CRFSuite, if that's what we're using):
       Parameters info = Parameters.create();
-      TObjectFloatHashMap<String> weights = learner.learnFeatureWeights(positives, etype, info);
+      // --sequenceEval keeps every label's weights and the transitions, and scores test tokens by their CRF marginals.
+      SequenceTagger tagger = null;
+      TObjectFloatHashMap<String> weights;
+      if(argp.get("sequenceEval", false)) {
+        if(fullConllTest == null || hashing != null) throw new IllegalArgumentException("--sequenceEval needs the test set loaded, and no --hashBits.");
+        CRFSuiteModel crf;
+        if(learner instanceof CRFSuiteLearner) {
+          crf = ((CRFSuiteLearner) learner).learnModel(positives, etype, info);
+          weights = crf.flatten(etype, "O");
+        } else if(learner instanceof JavaCRFLearner) {
+          JavaCRFLearner.Model model = ((JavaCRFLearner) learner).train(positives, etype, info);
+          crf = model.toCRFSuiteModel();
+          weights = model.flatten(etype, JavaCRFLearner.BACKGROUND);
+        } else {
+          throw new IllegalArgumentException("--sequenceEval needs --learner=crfsuite or --learner=java.");
+        }
+        tagger = new SequenceTagger(crf, dictionary);
+      } else {
+        weights = learner.learnFeatureWeights(positives, etype, info);
+      }
       System.out.println(info); // print out any debug information
 
       // Build a classifier object from our weights:
-      LinearTokenClassifier tokenClassifier = new LinearTokenClassifier(weights);
+      TokenClassifier tokenClassifier = hashing != null ?
+          HashedTokenClassifier.fromFeatureWeights(hashing, weights) :
+          new LinearTokenClassifier(weights);
+      // --compactBits=8|16|32 evaluates the compact (optionally quantized) form instead.
+      if(hashing == null && argp.containsKey("compactBits")) {
+        tokenClassifier = CompactLinearModel.quantize(weights, argp.get("compactBits", 32));
+      }
+
+      // --saveModel=file keeps the weights for ScoringServer (or anything else that loads a CompactLinearModel).
+      if(hashing == null && argp.containsKey("saveModel")) {
+        CompactLinearModel.quantize(weights, 32).save(new File(argp.getString("saveModel")));
+      }
 
       // score all of fullConllTest
       // evaluate and stick our measures into this map
-      final Map<String, Double> measures = evaluateModel(tokenClassifier, fullConllTest, etype);
+      // --indexEval scores through an inverted index of the test set; faster for small (sampled) models.
+      final Map<String, Double> measures = tagger != null ?
+          evaluateTagger(tagger, fullConllTest, etype) :
+          streamEval ?
+          evaluateModelStreaming(tokenClassifier, testFile, etype) :
+          mappedEval ?
+          evaluateModelMapped(tokenClassifier, testFile, dictionary, etype) :
+          argp.get("indexEval", false) ?
+          FeatureIndex.build(fullConllTest).evaluate(tokenClassifier, etype) :
+          argp.get("parallelEval", true) ?
+          evaluateModelParallel(tokenClassifier, fullConllTest, etype) :
+          evaluateModel(tokenClassifier, fullConllTest, etype);
 
       // Print information about performance.
       System.out.println(etype+"\t"+tokenClassifier.getSize());
@@ -86,67 +171,271 @@ public class BasicExperiment {
     }
   }
 
-  public static Map<String, Double> evaluateModel(LinearTokenClassifier model, List<List<SimpleToken>> testData, String etype) {
-    // collect correct, prediction score pairs
-    List<Pair<Boolean, Double>> rankedPred = new ArrayList<>();
-    Map<String, ScoresForUniqueLemma> bestScoreByLemma = new HashMap<>();
+  /** The --learner that {@link #createLearner} will use. */
+  public static String learnerName(Parameters argp) {
+    return argp.get("learner", "crfsuite");
+  }
+
+  public static FeatureWeightLearner createLearner(Parameters argp, TemporaryDirectory tmpdir) {
+    String crfsuite = argp.get("crfsuite", defaultCRFSuiteBinary);
+    String which = learnerName(argp);
+    String model = argp.get("model", "lbfgs");
+    switch (which) {
+      case "crfsuite": {
+        if(!new File(crfsuite).canExecute()) {
+          throw new IllegalArgumentException("No crfsuite binary at " + crfsuite + "; pass --crfsuite=path, or --learner=java to train in-process.");
+        }
+        // CRFSuite learner class (basically, where do we save tmp files?)
+        CRFSuiteLearner learner = new CRFSuiteLearner(tmpdir, crfsuite);
+        // set up a CRFSuite model (lbfgs is typically the best).
+        learner.setModel(model);
+        // --streamTraining pipes training data into crfsuite instead of writing a temp file
+        learner.streaming = argp.get("streamTraining", false);
+        // --modelCache=dir reuses models trained on the same sample in earlier runs (--modelCacheBytes bounds it).
+        if(argp.containsKey("modelCache")) {
+          learner.setCache(new ModelCache(new File(argp.getString("modelCache")), argp.get("modelCacheBytes", 1L << 30)));
+        }
+        return learner;
+      }
+      case "java": {
+        if(!model.equals("lbfgs")) throw new IllegalArgumentException("--learner=java only supports --model=lbfgs, not " + model);
+        JavaCRFLearner learner = new JavaCRFLearner();
+        learner.objective = argp.get("objective", learner.objective);
+        learner.c2 = argp.get("c2", learner.c2);
+        learner.maxIterations = argp.get("maxIterations", learner.maxIterations);
+        return learner;
+      }
+      case "perceptron":
+      case "sgd": {
+        OnlineLearner learner = new OnlineLearner(which);
+        learner.epochs = argp.get("epochs", learner.epochs);
+        learner.learningRate = argp.get("learningRate", learner.learningRate);
+        learner.l2 = argp.get("l2", learner.l2);
+        learner.seed = argp.get("seed", learner.seed);
+        return learner;
+      }
+      default: throw new IllegalArgumentException("Unknown --learner=" + which);
+    }
+  }
+
+  public static List<List<SimpleToken>> loadCorpus(File input, FeatureDictionary dictionary, boolean useCache) throws IOException {
+    List<List<SimpleToken>> sentences;
+    Instrumentation.Timer timer = Instrumentation.time("load");
+    if(dictionary instanceof HashedFeatureDictionary) {
+      // stream it, so the vocabulary is never held; nor is a cache of 2^b bucket names worth writing.
+      sentences = SimpleToken.loadCRFSuiteInputFormat(input, dictionary);
+    } else if(useCache) {
+      sentences = SimpleToken.loadCRFSuiteInputFormatCached(input, dictionary);
+    } else {
+      sentences = SimpleToken.loadCRFSuiteInputFormatParallel(input, dictionary);
+    }
+    timer.stop();
+    long tokens = 0;
+    long features = 0;
+    // tokens with the same features share one array; count how many arrays that leaves.
+    BitSet seen = new BitSet(dictionary.numVectors());
+    long vectors = 0;
+    long vectorFeatures = 0;
+    for (List<SimpleToken> sentence : sentences) {
+      tokens += sentence.size();
+      for (SimpleToken token : sentence) {
+        features += token.features.length;
+        if(!seen.get(token.vector)) {
+          seen.set(token.vector);
+          vectors++;
+          vectorFeatures += token.features.length;
+        }
+      }
+    }
+    Instrumentation.count("load.bytes", input.length());
+    Instrumentation.count("load.sentences", sentences.size());
+    Instrumentation.count("load.tokens", tokens);
+    Instrumentation.count("load.features", features);
+    Instrumentation.count("load.vectors", vectors);
+    Instrumentation.count("load.vectorFeatures", vectorFeatures);
+    System.out.println(input.getName() + ": " + vectors + " distinct feature vectors for " + tokens + " tokens (" +
+        String.format("%.2f", tokens / (double) Math.max(1, vectors)) + " tokens per vector), holding " +
+        vectorFeatures + " of " + features + " feature ids.");
+    return sentences;
+  }
+
+  public static Map<String, Double> evaluateModel(TokenClassifier model, List<List<SimpleToken>> testData, String etype) {
+    // collect unique tokens in a "LemmaAggregator" as we score
+    // collect non-unique in order (we don't actually need to sort it).
+    EvaluationAccumulator results = new EvaluationAccumulator();
+    Instrumentation.Timer timer = Instrumentation.time("score");
+    addSentences(scoreVectors(model, testData, false), testData, etype, results);
+    timer.stop();
+    return results.computeMeasures(model.getIntercept());
+  }
+
+  /**
+   * Same measures as {@link #evaluateModel}, but scores contiguous ranges of sentences on the fork-join pool.
+   * Each worker keeps its own accumulator; merging them in order reproduces the serial results exactly.
+   */
+  public static Map<String, Double> evaluateModelParallel(TokenClassifier model, List<List<SimpleToken>> testData, String etype) {
+    int numPartitions = Math.min(testData.size(), ForkJoinPool.getCommonPoolParallelism() * 4);
+    if(numPartitions <= 1) {
+      return evaluateModel(model, testData, etype);
+    }
+    // build the dense weights once, up front, rather than racing to do it in every worker.
+    for (List<SimpleToken> sentence : testData) {
+      if(!sentence.isEmpty()) {
+        model.denseWeights(sentence.get(0).getDictionary());
+        break;
+      }
+    }
+
+    Instrumentation.Timer timer = Instrumentation.time("score");
+    double[] vectorScores = scoreVectors(model, testData, true);
+    List<EvaluationAccumulator> partials = ForkJoinPool.commonPool().submit(() ->
+        IntStream.range(0, numPartitions).parallel().mapToObj(p -> {
+          int start = (int) ((long) testData.size() * p / numPartitions);
+          int end = (int) ((long) testData.size() * (p + 1) / numPartitions);
+          EvaluationAccumulator partial = new EvaluationAccumulator();
+          addSentences(vectorScores, testData.subList(start, end), etype, partial);
+          return partial;
+        }).collect(Collectors.toList())
+    ).join();
+
+    EvaluationAccumulator results = new EvaluationAccumulator();
+    for (EvaluationAccumulator partial : partials) {
+      results.merge(partial);
+    }
+    timer.stop();
+    return results.computeMeasures(model.getIntercept());
+  }
+
+  /**
+   * Same measures as {@link #evaluateModel}, but each token's score is its marginal probability of etype under the
+   * whole chain (so its neighbors count); a token is predicted positive when that's over 0.5.
+   */
+  public static Map<String, Double> evaluateTagger(SequenceTagger tagger, List<List<SimpleToken>> testData, String etype) {
+    int label = tagger.getLabelId(etype);
+    EvaluationAccumulator results = new EvaluationAccumulator();
+    Instrumentation.Timer timer = Instrumentation.time("score");
+    // a label the model never saw has no probability anywhere.
+    double[] marginals = label < 0 ? null : tagger.marginalsAll(testData, label);
+    int t = 0;
+    for (List<SimpleToken> sentence : testData) {
+      for (SimpleToken token : sentence) {
+        results.add(token.lemma, token.truthLabel.equals(etype), marginals == null ? 0 : marginals[t]);
+        t++;
+      }
+    }
+    Instrumentation.count("score.tokens", t);
+    timer.stop();
+    return results.computeMeasures(0.5);
+  }
+
+  /**
+   * Same measures as {@link #evaluateModel} on the loaded file (up to the order each token's weights are summed in),
+   * but reads and scores one line at a time: only the per-token scores and the per-lemma bests are kept.
+   */
+  public static Map<String, Double> evaluateModelStreaming(TokenClassifier model, File testFile, String etype) throws IOException {
+    EvaluationAccumulator results = new EvaluationAccumulator();
+    Instrumentation.Timer timer = Instrumentation.time("score");
+    scoreFile(model, testFile, etype, results);
+    timer.stop();
+    Instrumentation.count("score.bytes", testFile.length());
+    return results.computeMeasures(model.getIntercept());
+  }
+
+  /**
+   * Same measures as {@link #evaluateModel} on the loaded file (up to the order each token's weights are summed in),
+   * scored from its memory-mapped cache; see {@link MappedCorpus#evaluate}.
+   */
+  public static Map<String, Double> evaluateModelMapped(TokenClassifier model, File testFile, FeatureDictionary dictionary, String etype) throws IOException {
+    MappedCorpus corpus;
+    Instrumentation.Timer timer = Instrumentation.time("load");
+    corpus = MappedCorpus.openCached(testFile);
+    timer.stop();
+    return corpus.evaluate(model, dictionary, corpus.mapFeatures(dictionary), etype);
+  }
 
-    // collect unique tokens in "ScoresForUniqueLemma" as we score
-    // collect non-unique in rankedPred (we don't actually need to sort it).
-    for (List<SimpleToken> tokens : testData) {
+  static void scoreFile(TokenClassifier model, File input, String etype, EvaluationAccumulator output) throws IOException {
+    // reused for every token; a set, since loaded tokens count each distinct feature once.
+    Set<String> features = new HashSet<>();
+    long numTokens = 0;
+    long numFeatures = 0;
+    try (LinesIterable lines = LinesIterable.fromFile(input)) {
+      for (String line : lines) {
+        if(line.trim().isEmpty()) continue; // sentence split marker
+        String[] data = line.split("\t");
+        features.clear();
+        for (int i = 1; i < data.length; i++) {
+          features.add(data[i]);
+        }
+        // first feature is token name.
+        output.add(data[1], data[0].equals(etype), model.score(features));
+        numTokens++;
+        numFeatures += features.size();
+      }
+    }
+    Instrumentation.count("score.tokens", numTokens);
+    Instrumentation.count("score.features", numFeatures);
+  }
+
+  /**
+   * Score each distinct feature vector in these sentences once (tokens with the same features share one, see
+   * {@link FeatureDictionary#internVector}), on the fork-join pool if parallel.
+   * @return scores by vector id; only the ids these sentences use are filled in.
+   */
+  static double[] scoreVectors(TokenClassifier model, List<List<SimpleToken>> sentences, boolean parallel) {
+    FeatureDictionary dictionary = null;
+    for (List<SimpleToken> sentence : sentences) {
+      if(!sentence.isEmpty()) {
+        dictionary = sentence.get(0).getDictionary();
+        break;
+      }
+    }
+    if(dictionary == null) return new double[0];
+
+    SimpleToken[] first = new SimpleToken[dictionary.numVectors()];
+    TIntArrayList distinct = new TIntArrayList();
+    long numTokens = 0;
+    long numFeatures = 0;
+    long distinctFeatures = 0;
+    for (List<SimpleToken> sentence : sentences) {
+      for (SimpleToken token : sentence) {
+        if(token.getDictionary() != dictionary) throw new IllegalArgumentException("Tokens must share one FeatureDictionary.");
+        if(first[token.vector] == null) {
+          first[token.vector] = token;
+          distinct.add(token.vector);
+          distinctFeatures += token.features.length;
+        }
+        numFeatures += token.features.length;
+      }
+      numTokens += sentence.size();
+    }
+
+    double[] scores = new double[first.length];
+    IntStream indices = IntStream.range(0, distinct.size());
+    if(parallel) {
+      ForkJoinPool.commonPool().submit(() -> indices.parallel().forEach(i -> {
+        int vector = distinct.getQuick(i);
+        scores[vector] = model.score(first[vector]);
+      })).join();
+    } else {
+      indices.forEach(i -> {
+        int vector = distinct.getQuick(i);
+        scores[vector] = model.score(first[vector]);
+      });
+    }
+    Instrumentation.count("score.tokens", numTokens);
+    Instrumentation.count("score.features", numFeatures);
+    Instrumentation.count("score.vectors", distinct.size());
+    Instrumentation.count("score.vectorFeatures", distinctFeatures);
+    return scores;
+  }
+
+  /** Hand every token its vector's score. */
+  private static void addSentences(double[] vectorScores, List<List<SimpleToken>> sentences, String etype, EvaluationAccumulator output) {
+    for (List<SimpleToken> tokens : sentences) {
       for (SimpleToken token : tokens) {
-        boolean truth = token.truthLabel.equals(etype);
-        double score = model.score(token.getFeatures());
-        rankedPred.add(Pair.of(truth, score));
-        bestScoreByLemma.computeIfAbsent(token.lemma, ScoresForUniqueLemma::new).score(score, truth);
-      }
-    }
-
-    // rank the TokenInfo classes by the highest scoring one (create our "unique" ranking).
-    List<Pair<Boolean, Double>> uniqueRankedPred = new ArrayList<>();
-    for (ScoresForUniqueLemma scoresForUniqueLemma : bestScoreByLemma.values()) {
-      uniqueRankedPred.add(Pair.of(scoresForUniqueLemma.fractionTrue() > 0, scoresForUniqueLemma.bestScore()));
-    }
-
-    // calculate p,r,f1,acc, etc.
-    BinaryClassifierInfo uinfo = new BinaryClassifierInfo();
-    uinfo.update(uniqueRankedPred, model.getIntercept());
-
-    BinaryClassifierInfo info = new BinaryClassifierInfo();
-    info.update(rankedPred, model.getIntercept());
-
-    Map<String, Double> measures = new HashMap<>();
-
-    // regular-measures
-    measures.put("AUC", AUC.compute(rankedPred));
-    measures.put("P10", AUC.computePrec(rankedPred, 10));
-    measures.put("P100", AUC.computePrec(rankedPred, 100));
-    measures.put("P1000", AUC.computePrec(rankedPred, 1000));
-    measures.put("AP", AUC.computeAP(rankedPred));
-    measures.put("P", (double) info.getPositivePrecision());
-    measures.put("R", (double) info.getPositiveRecall());
-    measures.put("F1", (double) info.getPositiveF1());
-    measures.put("Accuracy", (double) info.getAccuracy());
-    measures.put("TP", (double) info.numPredTruePositive);
-    measures.put("FP", (double) info.getNumFalsePositives());
-    measures.put("TN", (double) info.numPredTrueNegative);
-    measures.put("FN", (double) info.getNumFalseNegatives());
-
-    // unique-measures:
-    measures.put("uAUC", AUC.compute(uniqueRankedPred));
-    measures.put("uP10", AUC.computePrec(uniqueRankedPred, 10));
-    measures.put("uP100", AUC.computePrec(uniqueRankedPred, 100));
-    measures.put("uP1000", AUC.computePrec(uniqueRankedPred, 1000));
-    measures.put("uAP", AUC.computeAP(uniqueRankedPred));
-    measures.put("uP", (double) uinfo.getPositivePrecision());
-    measures.put("uR", (double) uinfo.getPositiveRecall());
-    measures.put("uF1", (double) uinfo.getPositiveF1());
-    measures.put("uAccuracy", (double) uinfo.getAccuracy());
-    measures.put("uTP", (double) uinfo.numPredTruePositive);
-    measures.put("uFP", (double) uinfo.getNumFalsePositives());
-    measures.put("uTN", (double) uinfo.numPredTrueNegative);
-    measures.put("uFN", (double) uinfo.getNumFalseNegatives());
-    return measures;
+        output.add(token.lemma, token.truthLabel.equals(etype), vectorScores[token.vector]);
+      }
+    }
   }
 
 }
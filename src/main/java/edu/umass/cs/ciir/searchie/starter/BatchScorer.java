@@ -0,0 +1,255 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import gnu.trove.map.hash.TObjectFloatHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Scores many models against one (test) corpus in a single pass. The corpus is a CSR matrix with a row per distinct
+ * feature vector (see {@link SimpleToken#vector}) and a column per feature it uses; the models' weights are packed
+ * feature-major, weights[column * numModels + model], so each feature of a row adds a contiguous run of numModels
+ * weights into that row's scores. That inner loop has no branches and is left for the JIT to vectorize.
+ *
+ * Columns are in dictionary id order, so each row adds its weights in the order forward scoring does, and every score
+ * is the same as {@link TokenClassifier#score(SimpleToken)}.
+ * @author jfoley
+ */
+public class BatchScorer {
+  /** Rows per task when scoring on the fork-join pool. */
+  private static final int BLOCK_ROWS = 512;
+
+  public final FeatureDictionary dictionary;
+  /** Every token, in corpus order; a token's position here is its id. */
+  public final SimpleToken[] tokens;
+  /** Each token's row. */
+  final int[] tokenRow;
+  /** Row r has columns [rowStart[r], rowStart[r+1]). */
+  final int[] rowStart;
+  final int[] columns;
+  /** The dictionary id of each column, ascending. */
+  final int[] columnFeature;
+  /** See {@link LemmaAggregator#assignIds}. */
+  final int[] lemmaIds;
+  final int numLemmas;
+
+  BatchScorer(FeatureDictionary dictionary, SimpleToken[] tokens, int[] tokenRow, int[] rowStart, int[] columns, int[] columnFeature, int[] lemmaIds, int numLemmas) {
+    this.dictionary = dictionary;
+    this.tokens = tokens;
+    this.tokenRow = tokenRow;
+    this.rowStart = rowStart;
+    this.columns = columns;
+    this.columnFeature = columnFeature;
+    this.lemmaIds = lemmaIds;
+    this.numLemmas = numLemmas;
+  }
+
+  /** Pack sentences that all share one dictionary. */
+  public static BatchScorer build(List<List<SimpleToken>> sentences) {
+    int numTokens = 0;
+    FeatureDictionary dictionary = null;
+    for (List<SimpleToken> sentence : sentences) {
+      numTokens += sentence.size();
+      for (SimpleToken token : sentence) {
+        if(dictionary == null) {
+          dictionary = token.getDictionary();
+        } else if(dictionary != token.getDictionary()) {
+          throw new IllegalArgumentException("Tokens must share one FeatureDictionary.");
+        }
+      }
+    }
+    if(dictionary == null) dictionary = new FeatureDictionary();
+
+    // a row per distinct vector, in order of first appearance; and which features they use.
+    SimpleToken[] tokens = new SimpleToken[numTokens];
+    int[] tokenRow = new int[numTokens];
+    int[] vectorRow = new int[dictionary.numVectors()];
+    Arrays.fill(vectorRow, -1);
+    List<int[]> rows = new ArrayList<>();
+    boolean[] used = new boolean[dictionary.size()];
+    long numEntries = 0;
+    int t = 0;
+    for (List<SimpleToken> sentence : sentences) {
+      for (SimpleToken token : sentence) {
+        if(vectorRow[token.vector] < 0) {
+          vectorRow[token.vector] = rows.size();
+          rows.add(token.features);
+          numEntries += token.features.length;
+          for (int f : token.features) {
+            used[f] = true;
+          }
+        }
+        tokenRow[t] = vectorRow[token.vector];
+        tokens[t++] = token;
+      }
+    }
+    if(numEntries > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many distinct feature occurrences for one matrix: " + numEntries);
+
+    int[] featureColumn = new int[used.length];
+    int numColumns = 0;
+    for (int f = 0; f < used.length; f++) {
+      featureColumn[f] = used[f] ? numColumns++ : -1;
+    }
+    int[] columnFeature = new int[numColumns];
+    for (int f = 0; f < used.length; f++) {
+      if(used[f]) columnFeature[featureColumn[f]] = f;
+    }
+    int[] rowStart = new int[rows.size() + 1];
+    int[] columns = new int[(int) numEntries];
+    int entry = 0;
+    for (int r = 0; r < rows.size(); r++) {
+      for (int f : rows.get(r)) {
+        columns[entry++] = featureColumn[f];
+      }
+      rowStart[r + 1] = entry;
+    }
+
+    int[] lemmaIds = new int[numTokens];
+    int numLemmas = LemmaAggregator.assignIds(tokens, lemmaIds);
+    return new BatchScorer(dictionary, tokens, tokenRow, rowStart, columns, columnFeature, lemmaIds, numLemmas);
+  }
+
+  public int numTokens() {
+    return tokens.length;
+  }
+
+  public int numRows() {
+    return rowStart.length - 1;
+  }
+
+  public int numColumns() {
+    return columnFeature.length;
+  }
+
+  /** Every token's score under every model. */
+  public static class Scores {
+    public final int numModels;
+    /** Row r's score under model m is at r * numModels + m. */
+    final double[] rowScores;
+    final int[] tokenRow;
+
+    Scores(int numModels, double[] rowScores, int[] tokenRow) {
+      this.numModels = numModels;
+      this.rowScores = rowScores;
+      this.tokenRow = tokenRow;
+    }
+
+    public int numTokens() {
+      return tokenRow.length;
+    }
+
+    public double get(int token, int model) {
+      return rowScores[tokenRow[token] * numModels + model];
+    }
+
+    /** One model's column of the matrix: a score for each token. */
+    public double[] forModel(int model) {
+      double[] output = new double[tokenRow.length];
+      for (int t = 0; t < output.length; t++) {
+        output[t] = rowScores[tokenRow[t] * numModels + model];
+      }
+      return output;
+    }
+  }
+
+  /** Weights of the models, laid out weights[column * numModels + model]. */
+  float[] packWeights(List<? extends TokenClassifier> models) {
+    int numModels = models.size();
+    if((long) numColumns() * numModels > Integer.MAX_VALUE || (long) numRows() * numModels > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many models for one batch over this corpus: " + numModels);
+    }
+    float[] weights = new float[numColumns() * numModels];
+    int[] featureColumn = featureColumns();
+    for (int m = 0; m < numModels; m++) {
+      TokenClassifier model = models.get(m);
+      if(model instanceof LinearTokenClassifier) {
+        // only touch the model's own features, and don't leave a dense copy cached on it.
+        TObjectFloatHashMap<String> featureWeights = ((LinearTokenClassifier) model).featureWeights;
+        int which = m;
+        featureWeights.forEachEntry((fname, fval) -> {
+          int id = dictionary.get(fname);
+          if(id != FeatureDictionary.MISSING && id < featureColumn.length && featureColumn[id] >= 0) {
+            weights[featureColumn[id] * numModels + which] = fval;
+          }
+          return true;
+        });
+      } else {
+        float[] dense = model.denseWeights(dictionary);
+        for (int c = 0; c < columnFeature.length; c++) {
+          weights[c * numModels + m] = dense[columnFeature[c]];
+        }
+      }
+    }
+    return weights;
+  }
+
+  private int[] featureColumns() {
+    int[] featureColumn = new int[columnFeature.length == 0 ? 0 : columnFeature[columnFeature.length - 1] + 1];
+    Arrays.fill(featureColumn, -1);
+    for (int c = 0; c < columnFeature.length; c++) {
+      featureColumn[columnFeature[c]] = c;
+    }
+    return featureColumn;
+  }
+
+  /** Score every token with every model, over blocks of rows on the fork-join pool. */
+  public Scores score(List<? extends TokenClassifier> models) {
+    int numModels = models.size();
+    float[] weights = packWeights(models);
+    double[] rowScores = new double[numRows() * numModels];
+    int numBlocks = (numRows() + BLOCK_ROWS - 1) / BLOCK_ROWS;
+    Instrumentation.Timer timer = Instrumentation.time("batchScore");
+    ForkJoinPool.commonPool().submit(() -> IntStream.range(0, numBlocks).parallel().forEach(b ->
+        scoreRows(weights, numModels, rowScores, b * BLOCK_ROWS, Math.min(numRows(), (b + 1) * BLOCK_ROWS))
+    )).join();
+    timer.stop();
+    Instrumentation.count("batchScore.models", numModels);
+    Instrumentation.count("batchScore.rows", numRows());
+    Instrumentation.count("batchScore.entries", columns.length);
+    return new Scores(numModels, rowScores, tokenRow);
+  }
+
+  private void scoreRows(float[] weights, int numModels, double[] rowScores, int from, int to) {
+    for (int r = from; r < to; r++) {
+      int out = r * numModels;
+      for (int i = rowStart[r], end = rowStart[r + 1]; i < end; i++) {
+        int in = columns[i] * numModels;
+        for (int m = 0; m < numModels; m++) {
+          rowScores[out + m] += weights[in + m];
+        }
+      }
+    }
+  }
+
+  /**
+   * Same measures as {@link BasicExperiment#evaluateModel} for each model, against the etype at the same position;
+   * one batch scoring pass, then each model's measures on the fork-join pool.
+   */
+  public List<Map<String, Double>> evaluate(List<? extends TokenClassifier> models, List<String> etypes) {
+    if(etypes.size() != models.size()) throw new IllegalArgumentException("Need an etype per model: " + etypes.size() + " for " + models.size());
+    Scores scores = score(models);
+    Instrumentation.count("score.tokens", (long) tokens.length * models.size());
+    return ForkJoinPool.commonPool().submit(() ->
+        IntStream.range(0, models.size()).parallel()
+            .mapToObj(m -> evaluate(scores, m, models.get(m).getIntercept(), etypes.get(m)))
+            .collect(Collectors.toList())
+    ).join();
+  }
+
+  Map<String, Double> evaluate(Scores scores, int model, double intercept, String etype) {
+    Instrumentation.Timer timer = Instrumentation.time("metrics");
+    double[] tokenScores = scores.forModel(model);
+    boolean[] truth = new boolean[tokens.length];
+    for (int t = 0; t < tokens.length; t++) {
+      truth[t] = tokens[t].truthLabel.equals(etype);
+    }
+    Map<String, Double> measures = LemmaAggregator.measures(tokenScores, truth, lemmaIds, numLemmas, tokens.length, intercept);
+    timer.stop();
+    return measures;
+  }
+}
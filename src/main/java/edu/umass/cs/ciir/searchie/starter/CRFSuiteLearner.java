@@ -2,26 +2,34 @@ package edu.umass.cs.ciir.searchie.starter;
 
 import ciir.jfoley.chai.Spawn;
 import ciir.jfoley.chai.io.IO;
-import ciir.jfoley.chai.io.LinesIterable;
 import ciir.jfoley.chai.io.TemporaryDirectory;
-import ciir.jfoley.chai.string.StrUtil;
 import gnu.trove.map.hash.TObjectFloatHashMap;
 import org.lemurproject.galago.utility.Parameters;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
 
 /**
  * @author jfoley
  */
-public class CRFSuiteLearner {
+public class CRFSuiteLearner implements FeatureWeightLearner {
   public final TemporaryDirectory tmpdir;
   private final String crfsuite;
   public String model;
   public boolean quiet = false;
+  /** Pipe training data into crfsuite's stdin as it starts, rather than writing a training file first. */
+  public boolean streaming = false;
+  /** Where already-trained models are looked up and saved, if anywhere. */
+  public ModelCache cache = null;
 
   public CRFSuiteLearner(TemporaryDirectory tmpdir, String crfsuite) {
     this.tmpdir = tmpdir;
@@ -33,90 +41,210 @@ public class CRFSuiteLearner {
     this.model = algorithm;
   }
 
+  public void setCache(ModelCache cache) {
+    this.cache = cache;
+  }
+
+  /** @return this training run's cache key, or null without a cache. */
+  public String cacheKey(List<List<SimpleToken>> sentences, String etype, String algorithm) {
+    if(cache == null) return null;
+    return ModelCache.key(sentences, etype, algorithm, "crfsuite", binaryIdentity());
+  }
+
+  /** The binary's path, size and modification time; upgrading crfsuite (even in place) changes the cache keys. */
+  String binaryIdentity() {
+    File binary = new File(crfsuite).getAbsoluteFile();
+    return binary.getPath() + "\t" + binary.length() + "\t" + binary.lastModified();
+  }
+
+  /** The algorithm is chosen per run (see {@link #model}), so only the binary. */
+  @Override
+  public String options() {
+    File binary = new File(crfsuite).getAbsoluteFile();
+    return "binary=" + binary.getPath() + ",binaryBytes=" + binary.length() + ",binaryModified=" + binary.lastModified();
+  }
+
+  /** @return previously trained weights, or null. */
+  public TObjectFloatHashMap<String> lookupCached(String key, Parameters cfg) {
+    if(key == null) return null;
+    TObjectFloatHashMap<String> weights = cache.get(key);
+    cfg.put("cached", weights != null);
+    if(weights != null && !quiet) System.out.println("\t\tCACHED: " + key);
+    return weights;
+  }
+
+  @Override
   public TObjectFloatHashMap<String> learnFeatureWeights(List<List<SimpleToken>> sentences, String etype, Parameters cfg) {
     if(sentences.isEmpty()) {
       return new TObjectFloatHashMap<>();
     }
+    String key = cacheKey(sentences, etype, model);
+    TObjectFloatHashMap<String> cached = lookupCached(key, cfg);
+    if(cached != null) {
+      return cached;
+    }
 
-    File forTrain = tmpdir.newOrderedFile(".crfsuite");
+    TObjectFloatHashMap<String> featureWeights = train(sentences, etype, cfg,
+        (forModel, forEvalErr) -> readWeightsFromModel(etype, cfg, forModel, forEvalErr));
+    if(key != null) {
+      cache.put(key, featureWeights);
+    }
+    return featureWeights;
+  }
+
+  /** Every label's state weights and the transitions, e.g., for a {@link SequenceTagger}; these are never cached. */
+  public CRFSuiteModel learnModel(List<List<SimpleToken>> sentences, String etype, Parameters cfg) {
+    if(sentences.isEmpty()) throw new IllegalArgumentException("No sentences to learn a model from.");
+    return train(sentences, etype, cfg, this::readModel);
+  }
+
+  private interface ModelReader<T> {
+    T read(File forModel, File forEvalErr) throws IOException, InterruptedException;
+  }
+
+  /** Train a model in tmpdir, read what we need out of it, and clean up. */
+  private <T> T train(List<List<SimpleToken>> sentences, String etype, Parameters cfg, ModelReader<T> reader) {
+    File forTrain = streaming ? null : tmpdir.newOrderedFile(".crfsuite");
     File forModel = tmpdir.newOrderedFile(".model");
     File forEvalErr = tmpdir.newOrderedFile(".err");
-    File forEvalOut = tmpdir.newOrderedFile(".out");
     File forTrainOut = tmpdir.newOrderedFile(".out");
 
-    createTrainingFile(etype, sentences, forTrain);
+    if(!streaming) {
+      createTrainingFile(etype, sentences, forTrain);
+    }
 
     try {
       // Train a model:
-      trainModel(cfg, forTrain, forModel, forEvalErr, forTrainOut);
-      TObjectFloatHashMap<String> featureWeights = readWeightsFromModel(etype, cfg, forModel, forEvalErr, forEvalOut);
+      if(streaming) {
+        trainModelStreaming(cfg, etype, sentences, forModel, forEvalErr, forTrainOut);
+      } else {
+        trainModel(cfg, forTrain, forModel, forEvalErr, forTrainOut);
+      }
+      T result = reader.read(forModel, forEvalErr);
 
       // delete temporary files:
-      boolean success = forTrain.delete() && forModel.delete() && forEvalErr.delete() && forEvalOut.delete() && forTrainOut.delete();
+      boolean success = (forTrain == null || forTrain.delete()) && forModel.delete() && forEvalErr.delete() && forTrainOut.delete();
       if (!success) {
         throw new RuntimeException("Couldn't delete something: " + tmpdir.children());
       }
-
-      // finish up:
-      return featureWeights;
+      return result;
     } catch (IOException | InterruptedException e) {
       throw new RuntimeException(e);
     }
   }
 
   public void trainModel(Parameters cfg, File forTrain, File forModel, File stderr, File stdout) throws IOException, InterruptedException {
+    trainModel(cfg, model, forTrain, forModel, stderr, stdout);
+  }
+
+  /** Train with a specific algorithm, rather than whatever {@link #model} is set to (e.g., from several threads). */
+  public void trainModel(Parameters cfg, String algorithm, File forTrain, File forModel, File stderr, File stdout) throws IOException, InterruptedException {
     if(!quiet) System.out.println("\t\tBEGIN TRAIN: " + forTrain + " -> " + stdout + ", " + stderr);
-    long startTime = System.currentTimeMillis();
+    Instrumentation.Timer timer = Instrumentation.time("learn");
     int rc = Spawn.doProcess(Arrays.asList(crfsuite, "learn",
-        "-a", model,
+        "-a", algorithm,
         //"-p", "feature.minfreq="+minFreq,
         "-m", forModel.getAbsolutePath(),
         forTrain.getAbsolutePath()), stdout, stderr);
     if (rc != 0) throw new RuntimeException(IO.slurp(stderr));
-    long endTime = System.currentTimeMillis();
-    cfg.put("trainingTime", (endTime - startTime) / 1000.0);
+    cfg.put("trainingTime", timer.seconds());
   }
 
-  public void createTrainingFile(String etype, List<List<SimpleToken>> sentences, File forTrain) {
-    try (PrintWriter out = IO.openPrintWriter(forTrain)) {
-      for (List<SimpleToken> sent : sentences) {
-        for (SimpleToken token : sent) {
-          StringBuilder line = new StringBuilder();
-          if(etype == null) {
-            line.append(token.getLabel());
-          } else {
-            if(token.getLabel().equals(etype)) {
-              line.append(etype);
-            } else {
-              line.append("O");
-            }
-          }
-          for (String s : token.getFeatures()) {
-            line.append('\t').append(s);
-          }
-          out.println(line.toString());
-        }
+  /** Start crfsuite reading from stdin ("-"), then encode the sentences into it while it runs. */
+  public void trainModelStreaming(Parameters cfg, String etype, List<List<SimpleToken>> sentences, File forModel, File stderr, File stdout) throws IOException, InterruptedException {
+    trainModelStreaming(cfg, model, etype, sentences, forModel, stderr, stdout);
+  }
+
+  public void trainModelStreaming(Parameters cfg, String algorithm, String etype, List<List<SimpleToken>> sentences, File forModel, File stderr, File stdout) throws IOException, InterruptedException {
+    if(!quiet) System.out.println("\t\tBEGIN TRAIN: <stdin> -> " + stdout + ", " + stderr);
+    Instrumentation.Timer timer = Instrumentation.time("learn");
+    Process proc = new ProcessBuilder(crfsuite, "learn",
+        "-a", algorithm,
+        "-m", forModel.getAbsolutePath(),
+        "-")
+        .redirectOutput(stdout)
+        .redirectError(stderr)
+        .start();
+    try {
+      try (CRFSuiteWriter out = new CRFSuiteWriter(proc.getOutputStream(), etype)) {
+        out.writeAll(sentences);
+      } catch (IOException e) {
+        // if crfsuite died early, its stderr says more than our broken pipe.
+        proc.destroy();
+        proc.waitFor();
+        throw new RuntimeException(IO.slurp(stderr), e);
       }
+      int rc = proc.waitFor();
+      if (rc != 0) throw new RuntimeException(IO.slurp(stderr));
+      cfg.put("trainingTime", timer.seconds());
+    } finally {
+      // a no-op once it has exited; if encoding threw (or we were interrupted), don't leave crfsuite training.
+      proc.destroy();
+    }
+  }
+
+  public void createTrainingFile(String etype, List<List<SimpleToken>> sentences, File forTrain) {
+    Instrumentation.Timer timer = Instrumentation.time("write");
+    try (CRFSuiteWriter out = new CRFSuiteWriter(new FileOutputStream(forTrain), etype)) {
+      out.writeAll(sentences);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
+    timer.stop();
+    Instrumentation.count("write.sentences", sentences.size());
+    Instrumentation.count("write.bytes", forTrain.length());
   }
 
-  public TObjectFloatHashMap<String> readWeightsFromModel(String etype, Parameters cfg, File forModel, File forEvalErr, File forEvalOut) throws IOException, InterruptedException {
-    long startTime;
-    int rc;
-    long endTime;// dump and parse model:
-    if(!quiet) System.out.println("\t\tBEGIN DUMP: " + forModel + " -> " + forEvalOut + ", " + forEvalErr);
-    startTime = System.currentTimeMillis();
-    rc = Spawn.doProcess(Arrays.asList(crfsuite, "dump",
-        forModel.getAbsolutePath()), forEvalOut, forEvalErr);
+  public TObjectFloatHashMap<String> readWeightsFromModel(String etype, Parameters cfg, File forModel, File forEvalErr) throws IOException, InterruptedException {
+    // dump and parse model in one pass over crfsuite's stdout:
+    if(!quiet) System.out.println("\t\tBEGIN DUMP: " + forModel + " -> <stdout>, " + forEvalErr);
+    Instrumentation.Timer timer = Instrumentation.time("dump");
+    final TObjectFloatHashMap<String> featureWeights = dumpModel(forModel, forEvalErr,
+        dump -> CRFSuiteModel.parseFlattened(dump, etype, "O"));
+    cfg.put("extractTime", timer.seconds());
+    Instrumentation.count("dump.features", featureWeights.size());
+    return featureWeights;
+  }
 
-    if (rc != 0) throw new RuntimeException(IO.slurp(forEvalErr));
+  /** Every label's state weights and the transitions, e.g., for {@link CRFSuiteModel#flatten} or sequence decoding. */
+  public CRFSuiteModel readModel(File forModel, File forEvalErr) throws IOException, InterruptedException {
+    return dumpModel(forModel, forEvalErr, CRFSuiteModel::parseDump);
+  }
 
-    final TObjectFloatHashMap<String> featureWeights = parseCRFSuiteModelDump(forEvalOut, etype);
-    endTime = System.currentTimeMillis();
-    cfg.put("extractTime", (endTime - startTime) / 1000.0);
-    return featureWeights;
+  public interface DumpReader<T> {
+    T read(BufferedReader dump) throws IOException;
+  }
+
+  /**
+   * Run "crfsuite dump" and hand its stdout to a parser as it's written.
+   * Parsing overlaps the dump, so its "dumpParse" timing is this thread's CPU time rather than wall time.
+   */
+  public <T> T dumpModel(File forModel, File forEvalErr, DumpReader<T> parser) throws IOException, InterruptedException {
+    Process proc = new ProcessBuilder(crfsuite, "dump", forModel.getAbsolutePath())
+        .redirectError(forEvalErr)
+        .start();
+    try {
+      proc.getOutputStream().close();
+      T result;
+      long cpuStart = cpuTime();
+      try (BufferedReader dump = new BufferedReader(new InputStreamReader(proc.getInputStream(), StandardCharsets.UTF_8), 1 << 16)) {
+        result = parser.read(dump);
+      }
+      if(cpuStart >= 0) {
+        Instrumentation.global.record("dumpParse", cpuTime() - cpuStart);
+      }
+      int rc = proc.waitFor();
+      if (rc != 0) throw new RuntimeException(IO.slurp(forEvalErr));
+      return result;
+    } finally {
+      // a no-op once it has exited; if the parser gave up (or we were interrupted), don't leave crfsuite running.
+      proc.destroy();
+    }
+  }
+
+  private static long cpuTime() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
   }
 
   /**
@@ -127,105 +255,8 @@ public class CRFSuiteLearner {
    * @throws IOException
    */
   public static TObjectFloatHashMap<String> parseCRFSuiteModelDump(File inputFile, String etype) throws IOException {
-    final TObjectFloatHashMap<String> positiveWeights = CRFSuiteLearner.parseCRFSuiteModelDumpInner(inputFile, etype);
-    final TObjectFloatHashMap<String> negativeWeights = CRFSuiteLearner.parseCRFSuiteModelDumpInner(inputFile, "O");
-    if(positiveWeights.getNoEntryValue() != 0) throw new AssertionError("weights.get(missing) should equal 0");
-
-    // flatten model:
-    final TObjectFloatHashMap<String> flattenedModel = new TObjectFloatHashMap<>();
-    positiveWeights.forEachEntry((ft, val) -> {
-      flattenedModel.adjustOrPutValue(ft, val, val);
-      return true;
-    });
-    negativeWeights.forEachEntry((ft, val) -> {
-      flattenedModel.adjustOrPutValue(ft, -val, -val);
-      return true;
-    });
-
-    return flattenedModel;
-  }
-
-  private static TObjectFloatHashMap<String> parseCRFSuiteModelDumpInner(File forEvalOut, String etype) throws IOException {
-    // Class Numbers:
-    //TObjectIntHashMap<String> labels = new TObjectIntHashMap<>();
-    // Class Transitions:
-    //TObjectFloatHashMap<Pair<String,String>> transitionWeights = new TObjectFloatHashMap<>();
-    // Features by String:
-    TObjectFloatHashMap<String> featureWeights = new TObjectFloatHashMap<>();
-
-    boolean inLabels = false;
-    boolean inAttributes = false;
-    boolean inTransitions = false;
-    boolean inFeatures = false;
-
-    try (LinesIterable lines = LinesIterable.fromFile(forEvalOut)) {
-      for (String line : lines) {
-        if (line.startsWith("LABELS")) {
-          inLabels = true;
-          continue;
-        } else if (line.startsWith("ATTRIBUTES")) {
-          inAttributes = true;
-          continue;
-        } else if (line.startsWith("TRANSITIONS")) {
-          inTransitions = true;
-          continue;
-        } else if (line.startsWith("STATE_FEATURES")) {
-          inFeatures = true;
-          continue;
-        }
-        if (line.startsWith("}")) {
-          inLabels = false;
-          inFeatures = false;
-          inTransitions = false;
-          inAttributes = false;
-          continue;
-        }
-
-        if (inLabels) {
-        /*int spl = line.indexOf(':');
-        if(spl < 0) continue;
-        int id = Integer.parseInt(line.substring(0,spl).trim());
-        String name = line.substring(spl+1).trim().intern();
-        labels.put(name, id);*/
-        } else if (inAttributes) {
-          // CRFSuite internal ids are not needed.
-        /*if(line.startsWith("}")) break;
-        int spl = line.indexOf(':');
-        if(spl < 0) continue;
-        int id = Integer.parseInt(line.substring(0,spl).trim());
-        String name = line.substring(spl+1).trim().intern();
-        attributes.put(name, id);*/
-        } else if (inTransitions) {
-        /*String mapping = StrUtil.takeAfter(line, "(1)");
-        int spl = mapping.indexOf(':');
-        if(spl < 0) continue;
-        float weight = Float.parseFloat(mapping.substring(spl+1).trim());
-        String names = mapping.substring(0,spl).trim().intern();
-        int arrow = names.indexOf("-->");
-        transitionWeights.put(Pair.of(names.substring(0,arrow).trim(), names.substring(arrow+3).trim()), weight);*/
-        } else if (inFeatures) {
-          //TODO
-          String mapping = StrUtil.takeAfter(line, "(0) ");
-          //System.out.println(mapping);
-          int spl = mapping.indexOf(':');
-          if (spl < 0) continue;
-          float weight = Float.parseFloat(mapping.substring(spl + 1).trim());
-          String names = mapping.substring(0, spl).trim().intern();
-          int arrow = names.indexOf("-->");
-          String className = names.substring(arrow + 3).trim();
-          String feature = names.substring(0, arrow).trim();
-          //System.out.println("\t"+className+":"+feature+"\t"+weight);
-          if (!etype.equals(className)) continue;
-
-          featureWeights.put(feature, weight);
-          //System.out.println(className+":"+feature+"\t"+weight);
-        }
-      }
+    try (BufferedReader dump = new BufferedReader(new InputStreamReader(new FileInputStream(inputFile), StandardCharsets.UTF_8), 1 << 16)) {
+      return CRFSuiteModel.parseFlattened(dump, etype, "O");
     }
-
-    //System.out.println(labels);
-    //System.out.println(transitionWeights);
-    //System.out.println(featureWeights);
-    return featureWeights;
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,161 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import gnu.trove.map.hash.TObjectFloatHashMap;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything in a "crfsuite dump": labels, transition weights and state feature weights for every label.
+ * The dump is read once, line by line, so it can come straight from the dump process's stdout.
+ * @author jfoley
+ */
+public class CRFSuiteModel {
+  /** Label names, by crfsuite's label id. */
+  public final List<String> labels;
+  /** transitions[from][to], indexed like labels. */
+  public final float[][] transitions;
+  /** label -> feature -> weight. */
+  public final Map<String, TObjectFloatHashMap<String>> stateWeights;
+
+  public CRFSuiteModel(List<String> labels, float[][] transitions, Map<String, TObjectFloatHashMap<String>> stateWeights) {
+    this.labels = labels;
+    this.transitions = transitions;
+    this.stateWeights = stateWeights;
+  }
+
+  public int getLabelId(String label) {
+    return labels.indexOf(label);
+  }
+
+  /** Real model will be (etype - background); subtracting background type .... */
+  public TObjectFloatHashMap<String> flatten(String etype, String background) {
+    final TObjectFloatHashMap<String> flattenedModel = new TObjectFloatHashMap<>();
+    TObjectFloatHashMap<String> positiveWeights = stateWeights.get(etype);
+    TObjectFloatHashMap<String> negativeWeights = stateWeights.get(background);
+    if(positiveWeights != null) {
+      positiveWeights.forEachEntry((ft, val) -> {
+        flattenedModel.adjustOrPutValue(ft, val, val);
+        return true;
+      });
+    }
+    if(negativeWeights != null) {
+      negativeWeights.forEachEntry((ft, val) -> {
+        flattenedModel.adjustOrPutValue(ft, -val, -val);
+        return true;
+      });
+    }
+    return flattenedModel;
+  }
+
+  /** Read a whole dump, keeping every label's weights. */
+  public static CRFSuiteModel parseDump(BufferedReader dump) throws IOException {
+    List<String> labels = new ArrayList<>();
+    Map<String, TObjectFloatHashMap<String>> stateWeights = new HashMap<>();
+    List<String[]> transitionNames = new ArrayList<>();
+    List<Float> transitionWeights = new ArrayList<>();
+    parseDump(dump, new DumpVisitor() {
+      @Override public void label(int id, String name) {
+        while (labels.size() <= id) labels.add(null);
+        labels.set(id, name);
+      }
+      @Override public void transition(String from, String to, float weight) {
+        transitionNames.add(new String[] {from, to});
+        transitionWeights.add(weight);
+      }
+      @Override public void stateFeature(String feature, String label, float weight) {
+        stateWeights.computeIfAbsent(label, missing -> new TObjectFloatHashMap<>()).put(feature, weight);
+      }
+    });
+
+    float[][] transitions = new float[labels.size()][labels.size()];
+    for (int i = 0; i < transitionNames.size(); i++) {
+      int from = labels.indexOf(transitionNames.get(i)[0]);
+      int to = labels.indexOf(transitionNames.get(i)[1]);
+      if(from < 0 || to < 0) throw new IOException("Transition between unknown labels: " + String.join(" --> ", (CharSequence[]) transitionNames.get(i)));
+      transitions[from][to] = transitionWeights.get(i);
+    }
+    return new CRFSuiteModel(labels, transitions, stateWeights);
+  }
+
+  /** Read a dump, keeping only the flattened (etype - background) state weights; nothing else is held in memory. */
+  public static TObjectFloatHashMap<String> parseFlattened(BufferedReader dump, String etype, String background) throws IOException {
+    final TObjectFloatHashMap<String> flattenedModel = new TObjectFloatHashMap<>();
+    parseDump(dump, new DumpVisitor() {
+      @Override public void stateFeature(String feature, String label, float weight) {
+        if(etype.equals(label)) {
+          flattenedModel.adjustOrPutValue(feature, weight, weight);
+        } else if(background.equals(label)) {
+          flattenedModel.adjustOrPutValue(feature, -weight, -weight);
+        }
+      }
+    });
+    if(flattenedModel.getNoEntryValue() != 0) throw new AssertionError("weights.get(missing) should equal 0");
+    return flattenedModel;
+  }
+
+  /** Callbacks for each section of a dump we care about; ATTRIBUTES are crfsuite internal ids and are skipped. */
+  public static abstract class DumpVisitor {
+    public void label(int id, String name) { }
+    public void transition(String from, String to, float weight) { }
+    public void stateFeature(String feature, String label, float weight) { }
+  }
+
+  private enum Section { NONE, LABELS, ATTRIBUTES, TRANSITIONS, STATE_FEATURES }
+
+  public static void parseDump(BufferedReader dump, DumpVisitor visitor) throws IOException {
+    Section section = Section.NONE;
+    String line;
+    while ((line = dump.readLine()) != null) {
+      if (line.startsWith("LABELS")) {
+        section = Section.LABELS;
+        continue;
+      } else if (line.startsWith("ATTRIBUTES")) {
+        section = Section.ATTRIBUTES;
+        continue;
+      } else if (line.startsWith("TRANSITIONS")) {
+        section = Section.TRANSITIONS;
+        continue;
+      } else if (line.startsWith("STATE_FEATURES")) {
+        section = Section.STATE_FEATURES;
+        continue;
+      } else if (line.startsWith("}")) {
+        section = Section.NONE;
+        continue;
+      }
+
+      switch (section) {
+        case LABELS: {
+          //      0: O
+          int spl = line.indexOf(':');
+          if (spl < 0) continue;
+          int id = Integer.parseInt(line.substring(0, spl).trim());
+          visitor.label(id, line.substring(spl + 1).trim());
+        } break;
+        case TRANSITIONS:
+        case STATE_FEATURES: {
+          //   (1) O --> PER: 0.123
+          //   (0) w[0]=foo --> PER: 0.123
+          int close = line.indexOf(") ");
+          int spl = line.lastIndexOf(':');
+          if (close < 0 || spl < close) continue;
+          int arrow = line.lastIndexOf("-->", spl);
+          if (arrow < close) continue;
+          float weight = Float.parseFloat(line.substring(spl + 1).trim());
+          String source = line.substring(close + 2, arrow).trim();
+          String label = line.substring(arrow + 3, spl).trim();
+          if(section == Section.TRANSITIONS) {
+            visitor.transition(source, label, weight);
+          } else {
+            visitor.stateFeature(source, label, weight);
+          }
+        } break;
+        default: break;
+      }
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes sentences in crfsuite's training format (label, tab-separated attributes, blank line between sequences)
+ * straight to bytes; each feature string is encoded once per writer, not once per occurrence, and each distinct
+ * feature vector's attributes (see {@link SimpleToken#vector}) are put together once and copied out for every repeat.
+ * Hashed tokens never share a vector, so their attributes are put together every time instead of kept.
+ * @author jfoley
+ */
+public class CRFSuiteWriter implements Closeable {
+  private static final byte[] BACKGROUND = "O".getBytes(StandardCharsets.UTF_8);
+  private final OutputStream out;
+  private final String etype;
+  private final byte[] etypeBytes;
+  private final TIntObjectHashMap<byte[]> encoded = new TIntObjectHashMap<>();
+  private final TIntObjectHashMap<byte[]> attributes = new TIntObjectHashMap<>();
+  private FeatureDictionary dictionary;
+  private boolean cacheVectors;
+
+  /** @param etype tokens with this label keep it, the rest become "O"; null keeps every label as-is. */
+  public CRFSuiteWriter(OutputStream out, String etype) {
+    this.out = new BufferedOutputStream(out, 1 << 16);
+    this.etype = etype;
+    this.etypeBytes = etype == null ? null : etype.getBytes(StandardCharsets.UTF_8);
+  }
+
+  public void writeAll(List<List<SimpleToken>> sentences) throws IOException {
+    for (List<SimpleToken> sentence : sentences) {
+      writeSentence(sentence);
+    }
+  }
+
+  public void writeSentence(List<SimpleToken> sentence) throws IOException {
+    if(sentence.isEmpty()) return;
+    for (SimpleToken token : sentence) {
+      writeToken(token);
+    }
+    out.write('\n');
+  }
+
+  public void writeToken(SimpleToken token) throws IOException {
+    if(dictionary != token.getDictionary()) {
+      dictionary = token.getDictionary();
+      encoded.clear();
+      attributes.clear();
+      cacheVectors = !(dictionary instanceof HashedFeatureDictionary);
+    }
+    if(etype == null) {
+      out.write(token.getLabel().getBytes(StandardCharsets.UTF_8));
+    } else if(token.getLabel().equals(etype)) {
+      out.write(etypeBytes);
+    } else {
+      out.write(BACKGROUND);
+    }
+    byte[] line = cacheVectors ? attributes.get(token.vector) : null;
+    if(line == null) {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      for (int id : token.getFeatureIds()) {
+        byte[] feature = encoded.get(id);
+        if(feature == null) {
+          feature = dictionary.getName(id).getBytes(StandardCharsets.UTF_8);
+          encoded.put(id, feature);
+        }
+        buffer.write('\t');
+        buffer.write(feature, 0, feature.length);
+      }
+      line = buffer.toByteArray();
+      if(cacheVectors) attributes.put(token.vector, line);
+    }
+    out.write(line);
+    out.write('\n');
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+}
@@ -0,0 +1,305 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import gnu.trove.map.hash.TObjectFloatHashMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An immutable alternative to {@link LinearTokenClassifier}: feature names in one sorted UTF-8 table (looked up by binary search)
+ * and weights either as floats or quantized to 8 or 16 bits with one scale for the whole model.
+ *
+ * Quantized weights are round(w / scale) * scale with scale = max|w| / (2^(bits-1) - 1), so each weight is off by at
+ * most scale/2, and a score over n features by at most n * scale/2 (see {@link #maxError(int)}).
+ * A multi-million feature model costs about (name bytes + 4 + bits/8) bytes per feature, instead of a String and a
+ * hash slot for each.
+ * @author jfoley
+ */
+public class CompactLinearModel implements TokenClassifier {
+  static final int MAGIC = 0x434c4d31; // CLM1
+
+  /** 32 (floats), 16 or 8. */
+  public final int bits;
+  /** weight = quantized * scale; 1 for floats. */
+  public final float scale;
+  /** Feature i's UTF-8 name is names[offsets[i], offsets[i+1]), in unsigned byte order. */
+  private final int[] offsets;
+  private final byte[] names;
+  private final float[] floats;
+  private final short[] shorts;
+  private final byte[] bytes;
+  private volatile LinearTokenClassifier.DenseWeights dense;
+
+  private CompactLinearModel(int bits, float scale, int[] offsets, byte[] names, float[] floats, short[] shorts, byte[] bytes) {
+    this.bits = bits;
+    this.scale = scale;
+    this.offsets = offsets;
+    this.names = names;
+    this.floats = floats;
+    this.shorts = shorts;
+    this.bytes = bytes;
+  }
+
+  public static CompactLinearModel quantize(TObjectFloatHashMap<String> featureWeights, int bits) {
+    List<String> names = new ArrayList<>(featureWeights.size());
+    float[] weights = new float[featureWeights.size()];
+    featureWeights.forEachEntry((fname, fval) -> {
+      weights[names.size()] = fval;
+      names.add(fname);
+      return true;
+    });
+    return quantize(names, weights, bits);
+  }
+
+  /** @param bits 32 keeps weights as floats; 16 or 8 quantizes them. */
+  public static CompactLinearModel quantize(List<String> features, float[] weights, int bits) {
+    if(bits != 32 && bits != 16 && bits != 8) throw new IllegalArgumentException("bits must be 8, 16 or 32, not " + bits);
+    int n = features.size();
+    byte[][] encoded = new byte[n][];
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      encoded[i] = features.get(i).getBytes(StandardCharsets.UTF_8);
+      order[i] = i;
+    }
+    Arrays.sort(order, (lhs, rhs) -> compare(encoded[lhs], 0, encoded[lhs].length, encoded[rhs]));
+
+    int[] offsets = new int[n + 1];
+    long total = 0;
+    for (int i = 0; i < n; i++) {
+      total += encoded[order[i]].length;
+      if(total > Integer.MAX_VALUE) throw new IllegalArgumentException("Feature names too large for one table: " + total);
+      offsets[i + 1] = (int) total;
+    }
+    byte[] names = new byte[(int) total];
+    for (int i = 0; i < n; i++) {
+      if(i > 0 && compare(encoded[order[i-1]], 0, encoded[order[i-1]].length, encoded[order[i]]) == 0) {
+        throw new IllegalArgumentException("Duplicate feature: " + features.get(order[i]));
+      }
+      System.arraycopy(encoded[order[i]], 0, names, offsets[i], encoded[order[i]].length);
+    }
+
+    float maxAbs = 0;
+    for (float w : weights) {
+      maxAbs = Math.max(maxAbs, Math.abs(w));
+    }
+    float scale = bits == 32 || maxAbs == 0 ? 1f : maxAbs / ((1 << (bits - 1)) - 1);
+    float[] floats = bits == 32 ? new float[n] : null;
+    short[] shorts = bits == 16 ? new short[n] : null;
+    byte[] bytes = bits == 8 ? new byte[n] : null;
+    for (int i = 0; i < n; i++) {
+      float w = weights[order[i]];
+      switch (bits) {
+        case 32: floats[i] = w; break;
+        case 16: shorts[i] = (short) Math.round((double) w / scale); break;
+        default: bytes[i] = (byte) Math.round((double) w / scale); break;
+      }
+    }
+    return new CompactLinearModel(bits, scale, offsets, names, floats, shorts, bytes);
+  }
+
+  /** Unsigned byte order of a[start,end) against all of b; the same as code point order of the strings. */
+  static int compare(byte[] a, int start, int end, byte[] b) {
+    int n = Math.min(end - start, b.length);
+    for (int i = 0; i < n; i++) {
+      int cmp = (a[start + i] & 0xff) - (b[i] & 0xff);
+      if(cmp != 0) return cmp;
+    }
+    return (end - start) - b.length;
+  }
+
+  /** @return the index of feature, or -1. */
+  public int find(String feature) {
+    byte[] query = feature.getBytes(StandardCharsets.UTF_8);
+    int lo = 0;
+    int hi = size() - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int cmp = compare(names, offsets[mid], offsets[mid + 1], query);
+      if(cmp < 0) {
+        lo = mid + 1;
+      } else if(cmp > 0) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  public int size() {
+    return offsets.length - 1;
+  }
+
+  public String getName(int index) {
+    return new String(names, offsets[index], offsets[index + 1] - offsets[index], StandardCharsets.UTF_8);
+  }
+
+  public float getWeight(int index) {
+    switch (bits) {
+      case 32: return floats[index];
+      case 16: return shorts[index] * scale;
+      default: return bytes[index] * scale;
+    }
+  }
+
+  /** The most a score over numFeatures features can differ from the unquantized model's. */
+  public double maxError(int numFeatures) {
+    return bits == 32 ? 0 : numFeatures * scale / 2.0;
+  }
+
+  @Override
+  public double score(Set<String> features) {
+    double pred = 0;
+    for (String feature : features) {
+      int index = find(feature);
+      if(index >= 0) pred += getWeight(index);
+    }
+    return pred;
+  }
+
+  @Override
+  public float[] denseWeights(FeatureDictionary dictionary) {
+    LinearTokenClassifier.DenseWeights current = dense;
+    if(current == null || current.dictionary != dictionary || current.weights.length != dictionary.size()) {
+      float[] weights = new float[dictionary.size()];
+      for (int i = 0; i < size(); i++) {
+        int id = dictionary.get(getName(i));
+        if(id != FeatureDictionary.MISSING) {
+          weights[id] = getWeight(i);
+        }
+      }
+      current = new LinearTokenClassifier.DenseWeights(dictionary, weights);
+      dense = current;
+    }
+    return current.weights;
+  }
+
+  @Override
+  public double getIntercept() {
+    return 0;
+  }
+
+  @Override
+  public long getSize() {
+    return size();
+  }
+
+  /** The k features with the largest absolute weights; quantized values and scale carry over unchanged. */
+  @Override
+  public CompactLinearModel deriveSampled(int k) {
+    int n = size();
+    if(k >= n) return this;
+    // (|weight| bits, index): non-negative float bits sort like the floats.
+    long[] byWeight = new long[n];
+    for (int i = 0; i < n; i++) {
+      byWeight[i] = ((long) Float.floatToIntBits(Math.abs(getWeight(i))) << 32) | i;
+    }
+    Arrays.sort(byWeight);
+    int[] keep = new int[Math.max(0, k)];
+    for (int i = 0; i < keep.length; i++) {
+      keep[i] = (int) byWeight[n - 1 - i];
+    }
+    Arrays.sort(keep);
+
+    int[] keptOffsets = new int[keep.length + 1];
+    for (int i = 0; i < keep.length; i++) {
+      keptOffsets[i + 1] = keptOffsets[i] + offsets[keep[i] + 1] - offsets[keep[i]];
+    }
+    byte[] keptNames = new byte[keptOffsets[keep.length]];
+    float[] keptFloats = floats == null ? null : new float[keep.length];
+    short[] keptShorts = shorts == null ? null : new short[keep.length];
+    byte[] keptBytes = bytes == null ? null : new byte[keep.length];
+    for (int i = 0; i < keep.length; i++) {
+      int j = keep[i];
+      System.arraycopy(names, offsets[j], keptNames, keptOffsets[i], offsets[j + 1] - offsets[j]);
+      if(floats != null) keptFloats[i] = floats[j];
+      if(shorts != null) keptShorts[i] = shorts[j];
+      if(bytes != null) keptBytes[i] = bytes[j];
+    }
+    return new CompactLinearModel(bits, scale, keptOffsets, keptNames, keptFloats, keptShorts, keptBytes);
+  }
+
+  /** Back to a hash map, e.g., to keep training or to compare. */
+  public TObjectFloatHashMap<String> toFeatureWeights() {
+    TObjectFloatHashMap<String> weights = new TObjectFloatHashMap<>(Math.max(16, size() * 2));
+    for (int i = 0; i < size(); i++) {
+      weights.put(getName(i), getWeight(i));
+    }
+    return weights;
+  }
+
+  /** magic, bits, scale, count, name bytes length, offsets, names, weights; written via a temporary file. */
+  public void save(File output) throws IOException {
+    File tmp = new File(output.getPath() + ".tmp" + System.nanoTime());
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(bits);
+      out.writeFloat(scale);
+      out.writeInt(size());
+      out.writeInt(names.length);
+      for (int i = 1; i < offsets.length; i++) {
+        out.writeInt(offsets[i]);
+      }
+      out.write(names);
+      for (int i = 0; i < size(); i++) {
+        switch (bits) {
+          case 32: out.writeFloat(floats[i]); break;
+          case 16: out.writeShort(shorts[i]); break;
+          default: out.writeByte(bytes[i]); break;
+        }
+      }
+    } catch (IOException e) {
+      Files.deleteIfExists(tmp.toPath());
+      throw e;
+    }
+    Files.move(tmp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Does this file start like one written by {@link #save}? */
+  public static boolean isCompactModel(File input) throws IOException {
+    if(input.length() < 4) return false;
+    try (DataInputStream in = new DataInputStream(new FileInputStream(input))) {
+      return in.readInt() == MAGIC;
+    }
+  }
+
+  public static CompactLinearModel load(File input) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(input), 1 << 16))) {
+      if(in.readInt() != MAGIC) throw new IOException("Not a compact model: " + input);
+      int bits = in.readInt();
+      float scale = in.readFloat();
+      int n = in.readInt();
+      byte[] names = new byte[in.readInt()];
+      int[] offsets = new int[n + 1];
+      for (int i = 1; i <= n; i++) {
+        offsets[i] = in.readInt();
+      }
+      in.readFully(names);
+      float[] floats = bits == 32 ? new float[n] : null;
+      short[] shorts = bits == 16 ? new short[n] : null;
+      byte[] bytes = bits == 8 ? new byte[n] : null;
+      for (int i = 0; i < n; i++) {
+        switch (bits) {
+          case 32: floats[i] = in.readFloat(); break;
+          case 16: shorts[i] = in.readShort(); break;
+          case 8: bytes[i] = in.readByte(); break;
+          default: throw new IOException("Unsupported bits: " + bits);
+        }
+      }
+      return new CompactLinearModel(bits, scale, offsets, names, floats, shorts, bytes);
+    }
+  }
+}
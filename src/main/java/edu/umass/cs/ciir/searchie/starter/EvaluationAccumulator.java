@@ -0,0 +1,63 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects (truth, score) for every token, in order, and the best score per lemma, in order of first appearance.
+ * Accumulators for consecutive pieces of a test set can be merged, and give the same measures as one that saw it all.
+ * @author jfoley
+ */
+public class EvaluationAccumulator {
+  double[] scores;
+  boolean[] truth;
+  int size;
+  final LemmaAggregator lemmas;
+
+  public EvaluationAccumulator() {
+    this.scores = new double[1024];
+    this.truth = new boolean[1024];
+    this.size = 0;
+    this.lemmas = new LemmaAggregator();
+  }
+
+  public void add(String lemma, boolean isTrue, double score) {
+    if(size == scores.length) {
+      reserve(size * 2);
+    }
+    scores[size] = score;
+    truth[size] = isTrue;
+    size++;
+    lemmas.add(lemma, isTrue, score);
+  }
+
+  private void reserve(int capacity) {
+    if(capacity <= scores.length) return;
+    scores = Arrays.copyOf(scores, capacity);
+    truth = Arrays.copyOf(truth, capacity);
+  }
+
+  /** Append everything other saw, as if it had been added to this one afterwards. */
+  public void merge(EvaluationAccumulator other) {
+    reserve(size + other.size);
+    System.arraycopy(other.scores, 0, scores, size, other.size);
+    System.arraycopy(other.truth, 0, truth, size, other.size);
+    size += other.size;
+    lemmas.merge(other.lemmas);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public Map<String, Double> computeMeasures(double intercept) {
+    Instrumentation.Timer timer = Instrumentation.time("metrics");
+    Map<String, Double> measures = new HashMap<>();
+    // regular-measures, then unique-measures:
+    RankingMetrics.compute(scores, truth, size, intercept, RankingMetrics.DEFAULT_DEPTHS).putMeasures("", measures);
+    lemmas.computeMetrics(intercept, RankingMetrics.DEFAULT_DEPTHS).putMeasures("u", measures);
+    timer.stop();
+    return measures;
+  }
+}
@@ -0,0 +1,342 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import ciir.jfoley.chai.io.LinesIterable;
+import ciir.jfoley.chai.io.TemporaryDirectory;
+import ciir.jfoley.chai.random.ReservoirSampler;
+import gnu.trove.map.hash.TObjectFloatHashMap;
+import org.lemurproject.galago.utility.Parameters;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs every (class, trainingSize, model, seed) combination against corpora loaded once, instead of one
+ * {@link BasicExperiment} JVM per combination:
+ * <pre>
+ *   ExperimentGrid --classes=PER,LOC,ORG --trainingSizes=3,10,30 --models=lbfgs,l2sgd --seeds=1,2,3 --output=grid.jsonl
+ * </pre>
+ * Each finished combination is appended to the output as a JSON line. Rerunning with the same output skips whatever
+ * is already there, so an interrupted sweep picks up where it stopped. Samples come from a Random seeded with the
+ * seed, so a row can be reproduced exactly. Rows also name the learner, its settings and both corpora, so a sweep with
+ * another --learner, --c2, --epochs, --train (and so on) appended to the same output doesn't skip rows that only look
+ * the same.
+ * @author jfoley
+ */
+public class ExperimentGrid {
+  public static class Config {
+    /** --learner, its {@link FeatureWeightLearner#options}, and the --train and --input files, as given. */
+    public final String learner;
+    public final String learnerOptions;
+    public final String train;
+    public final String input;
+    public final String etype;
+    public final int trainingSize;
+    public final String model;
+    public final long seed;
+
+    public Config(String learner, String learnerOptions, String train, String input, String etype, int trainingSize, String model, long seed) {
+      this.learner = learner;
+      this.learnerOptions = learnerOptions;
+      this.train = train;
+      this.input = input;
+      this.etype = etype;
+      this.trainingSize = trainingSize;
+      this.model = model;
+      this.seed = seed;
+    }
+
+    public String key() {
+      return learner + "\t" + learnerOptions + "\t" + train + "\t" + input + "\t" + etype + "\t" + trainingSize + "\t" + model + "\t" + seed;
+    }
+
+    public static String key(Parameters row) {
+      return new Config(row.getString("learner"), row.getString("learnerOptions"), row.getString("train"), row.getString("input"),
+          row.getString("class"), (int) row.getLong("trainingSize"), row.getString("model"), row.getLong("seed")).key();
+    }
+
+    /** The parts that vary within one sweep, for progress and errors. */
+    @Override
+    public String toString() {
+      return etype + " " + trainingSize + " " + model + " " + seed;
+    }
+  }
+
+  public static List<Config> expand(String learner, String learnerOptions, String train, String input, List<String> etypes, List<Integer> trainingSizes, List<String> models, List<Long> seeds) {
+    List<Config> configs = new ArrayList<>();
+    for (String etype : etypes) {
+      for (int trainingSize : trainingSizes) {
+        for (String model : models) {
+          for (long seed : seeds) {
+            configs.add(new Config(learner, learnerOptions, train, input, etype, trainingSize, model, seed));
+          }
+        }
+      }
+    }
+    return configs;
+  }
+
+  /** Sentences with at least one token of this class. */
+  public static List<List<SimpleToken>> sentencesWith(List<List<SimpleToken>> corpus, String etype) {
+    List<List<SimpleToken>> output = new ArrayList<>();
+    for (List<SimpleToken> sentence : corpus) {
+      for (SimpleToken token : sentence) {
+        if(token.getLabel().equals(etype)) {
+          output.add(sentence);
+          break;
+        }
+      }
+    }
+    return output;
+  }
+
+  public static List<List<SimpleToken>> sample(List<List<SimpleToken>> positives, Config config) {
+    ReservoirSampler<List<SimpleToken>> sampler = new ReservoirSampler<>(new Random(config.seed), config.trainingSize);
+    for (List<SimpleToken> sentence : positives) {
+      sampler.add(sentence);
+    }
+    return new ArrayList<>(sampler);
+  }
+
+  /**
+   * Keys of the rows already in output. A last line cut off mid-write is removed, so new rows start on a fresh line.
+   * Rows measured under other {@link RankingMetrics#VERSION}s don't count, so they're run again; nor do rows from
+   * before the learner, its settings and the corpora were recorded, since we can't tell which they were.
+   */
+  public static Set<String> finishedKeys(File output) throws IOException {
+    Set<String> done = new HashSet<>();
+    if(!output.exists()) return done;
+    try (RandomAccessFile raf = new RandomAccessFile(output, "rw")) {
+      long end = raf.length();
+      while (end > 0) {
+        raf.seek(end - 1);
+        if(raf.read() == '\n') break;
+        end--;
+      }
+      if(end != raf.length()) {
+        System.err.println("Dropping an unfinished row at the end of " + output);
+        raf.setLength(end);
+      }
+    }
+    int stale = 0;
+    try (LinesIterable lines = LinesIterable.fromFile(output)) {
+      for (String line : lines) {
+        if(line.trim().isEmpty()) continue;
+        Parameters row = Parameters.parseString(line);
+        // rows from before the version was written used chai's measures.
+        if(row.get("metrics", 1L) != RankingMetrics.VERSION || !row.containsKey("learnerOptions")) {
+          stale++;
+          continue;
+        }
+        done.add(Config.key(row));
+      }
+    }
+    if(stale > 0) {
+      System.err.println(stale + " rows in " + output + " have measures from another version than " + RankingMetrics.VERSION + ", or don't say which learner, settings and corpora they used; running them again.");
+    }
+    return done;
+  }
+
+  private static List<String> listArg(Parameters argp, String key, String defaults) {
+    List<String> values = new ArrayList<>();
+    List<Object> given = argp.containsKey(key) ? argp.getAsList(key, Object.class) : new ArrayList<>();
+    if(given.isEmpty()) given.add(defaults);
+    for (Object value : given) {
+      for (String item : String.valueOf(value).split(",")) {
+        if(!item.trim().isEmpty()) values.add(item.trim());
+      }
+    }
+    return values;
+  }
+
+  /** A trained model waiting for its measures. */
+  private static class Finished {
+    final Config config;
+    final int sampled;
+    final LinearTokenClassifier classifier;
+    final Parameters info;
+
+    Finished(Config config, int sampled, LinearTokenClassifier classifier, Parameters info) {
+      this.config = config;
+      this.sampled = sampled;
+      this.classifier = classifier;
+      this.info = info;
+    }
+  }
+
+  private static void evaluateBatch(BatchScorer scorer, List<Finished> batch, PrintWriter output) {
+    List<LinearTokenClassifier> models = new ArrayList<>();
+    List<String> etypes = new ArrayList<>();
+    for (Finished finished : batch) {
+      models.add(finished.classifier);
+      etypes.add(finished.config.etype);
+    }
+    List<Map<String, Double>> measures;
+    try {
+      measures = scorer.evaluate(models, etypes);
+    } catch (RuntimeException e) {
+      for (Finished finished : batch) {
+        System.err.println(finished.config + " failed: " + e);
+      }
+      return;
+    }
+    for (int i = 0; i < batch.size(); i++) {
+      writeRow(output, batch.get(i), measures.get(i));
+    }
+  }
+
+  private static void writeRow(PrintWriter output, Finished finished, Map<String, Double> measures) {
+    Config config = finished.config;
+    Parameters row = Parameters.create();
+    row.put("learner", config.learner);
+    row.put("learnerOptions", config.learnerOptions);
+    row.put("train", config.train);
+    row.put("input", config.input);
+    row.put("class", config.etype);
+    row.put("trainingSize", config.trainingSize);
+    row.put("model", config.model);
+    row.put("seed", config.seed);
+    row.put("sampled", finished.sampled);
+    row.put("features", finished.classifier.getSize());
+    row.put("metrics", RankingMetrics.VERSION);
+    Parameters measured = Parameters.create();
+    for (Map.Entry<String, Double> kv : measures.entrySet()) {
+      measured.put(kv.getKey(), kv.getValue());
+    }
+    row.put("measures", measured);
+    row.put("info", finished.info);
+    synchronized (output) {
+      output.println(row);
+      output.flush();
+    }
+    System.out.println(config + "\tAP: " + measures.get("AP") + "\tuAP: " + measures.get("uAP"));
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    Parameters argp = Parameters.parseArgs(args);
+    List<String> etypes = listArg(argp, "classes", "PER");
+    List<Integer> trainingSizes = new ArrayList<>();
+    for (String size : listArg(argp, "trainingSizes", "3")) {
+      trainingSizes.add(Integer.parseInt(size));
+    }
+    String learnerName = BasicExperiment.learnerName(argp);
+    List<String> models = listArg(argp, "models", "lbfgs");
+    if(learnerName.equals("perceptron") || learnerName.equals("sgd")) {
+      // online learners have no crfsuite algorithm; the learner is the model.
+      if(argp.containsKey("models")) throw new IllegalArgumentException("--learner=" + learnerName + " doesn't take --models.");
+      models = Collections.singletonList(learnerName);
+    }
+    List<Long> seeds = new ArrayList<>();
+    for (String seed : listArg(argp, "seeds", "1")) {
+      seeds.add(Long.parseLong(seed));
+    }
+    File outputFile = new File(argp.get("output", "grid.jsonl"));
+    String trainPath = argp.get("train", "data/train.snlpl.all.crfsuite");
+    String inputPath = argp.get("input", "data/testb.snlpl.all.crfsuite");
+
+    int threads = argp.get("threads", Runtime.getRuntime().availableProcessors());
+    ExecutorService evaluators = Executors.newFixedThreadPool(threads, TrainingScheduler.daemonThreads("grid-eval"));
+    try (TemporaryDirectory tmpdir = new TemporaryDirectory()) {
+      FeatureWeightLearner learner = BasicExperiment.createLearner(argp, tmpdir);
+      if(learner instanceof CRFSuiteLearner) {
+        ((CRFSuiteLearner) learner).quiet = true;
+      } else if(learner instanceof JavaCRFLearner) {
+        ((JavaCRFLearner) learner).quiet = true;
+        for (String model : models) {
+          if(!model.equals("lbfgs")) throw new IllegalArgumentException("--learner=java only supports --models=lbfgs, not " + model);
+        }
+      }
+
+      List<Config> todo = new ArrayList<>();
+      Set<String> done = finishedKeys(outputFile);
+      List<Config> configs = expand(learnerName, learner.options(), trainPath, inputPath, etypes, trainingSizes, models, seeds);
+      for (Config config : configs) {
+        if(!done.contains(config.key())) todo.add(config);
+      }
+      System.out.println("Configurations: " + configs.size() + ", already in " + outputFile + ": " + (configs.size() - todo.size()));
+      if(todo.isEmpty()) return;
+
+      // load and split once:
+      boolean useCache = argp.get("cache", true);
+      FeatureDictionary dictionary = new FeatureDictionary();
+      List<List<SimpleToken>> train = BasicExperiment.loadCorpus(new File(trainPath), dictionary, useCache);
+      List<List<SimpleToken>> test = BasicExperiment.loadCorpus(new File(inputPath), dictionary, useCache);
+      Map<String, List<List<SimpleToken>>> positivesByClass = new LinkedHashMap<>();
+      for (String etype : etypes) {
+        positivesByClass.put(etype, sentencesWith(train, etype));
+      }
+      System.out.println("Loaded " + train.size() + " training and " + test.size() + " testing sentences.");
+      // --batchEval=n scores finished models n at a time, in one pass over the test set; see BatchScorer.
+      int batchSize = argp.get("batchEval", 0);
+      BatchScorer batchScorer = batchSize > 0 ? BatchScorer.build(test) : null;
+      // otherwise every model is scored against the same test set, and they're small; so by default, index it once.
+      FeatureIndex testIndex = batchScorer == null && argp.get("indexEval", true) ? FeatureIndex.build(test) : null;
+
+      // closed (which waits for its jobs) before tmpdir is deleted, even if something here throws.
+      try (TrainingScheduler scheduler = learner instanceof CRFSuiteLearner ?
+               new TrainingScheduler((CRFSuiteLearner) learner, argp.get("processes", Runtime.getRuntime().availableProcessors())) : null;
+           PrintWriter output = new PrintWriter(new OutputStreamWriter(new FileOutputStream(outputFile, true), StandardCharsets.UTF_8))) {
+        List<CompletableFuture<Void>> rows = new ArrayList<>();
+        List<Finished> pending = new ArrayList<>();
+        for (Config config : todo) {
+          List<List<SimpleToken>> sample = sample(positivesByClass.get(config.etype), config);
+          CompletableFuture<TrainingScheduler.TrainingResult> trained;
+          if(scheduler != null) {
+            trained = scheduler.submit(new TrainingScheduler.TrainingJob(config.etype, sample, config.model));
+          } else {
+            trained = CompletableFuture.supplyAsync(() -> {
+              Parameters info = Parameters.create();
+              TObjectFloatHashMap<String> weights = learner.learnFeatureWeights(sample, config.etype, info);
+              return new TrainingScheduler.TrainingResult(new TrainingScheduler.TrainingJob(config.etype, sample, config.model), weights, info);
+            }, evaluators);
+          }
+          rows.add(trained.thenAcceptAsync(result -> {
+            Finished finished = new Finished(config, sample.size(), new LinearTokenClassifier(result.weights), result.timings);
+            if(batchScorer != null) {
+              List<Finished> batch = null;
+              synchronized (pending) {
+                pending.add(finished);
+                if(pending.size() >= batchSize) {
+                  batch = new ArrayList<>(pending);
+                  pending.clear();
+                }
+              }
+              if(batch != null) {
+                evaluateBatch(batchScorer, batch, output);
+              }
+            } else {
+              Map<String, Double> measures = testIndex != null ?
+                  testIndex.evaluate(finished.classifier, config.etype) :
+                  BasicExperiment.evaluateModel(finished.classifier, test, config.etype);
+              writeRow(output, finished, measures);
+            }
+          }, evaluators).exceptionally(error -> {
+            System.err.println(config + " failed: " + error);
+            return null;
+          }));
+        }
+        CompletableFuture.allOf(rows.toArray(new CompletableFuture<?>[0])).join();
+        if(!pending.isEmpty()) {
+          evaluateBatch(batchScorer, pending, output);
+        }
+      }
+    } finally {
+      evaluators.shutdown();
+    }
+  }
+}
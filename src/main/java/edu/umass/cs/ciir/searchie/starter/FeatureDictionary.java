@@ -0,0 +1,199 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Assigns every distinct feature string a dense integer id, in order of first appearance.
+ * Share one of these across the training and testing corpora so their ids line up.
+ * @author jfoley
+ */
+public class FeatureDictionary {
+  public static final int MISSING = -1;
+  private final TObjectIntHashMap<String> ids;
+  private final ArrayList<String> names;
+  /** Distinct feature vectors of the tokens built on this dictionary, so repeats share one array; see {@link #internVector}. */
+  private final ConcurrentHashMap<Vector, Vector> vectors;
+  /** Vector ids handed out so far. */
+  final AtomicInteger vectorCount;
+
+  public FeatureDictionary() {
+    this.ids = new TObjectIntHashMap<>(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, MISSING);
+    this.names = new ArrayList<>();
+    this.vectors = new ConcurrentHashMap<>();
+    this.vectorCount = new AtomicInteger();
+  }
+
+  /** Look up a feature, assigning it the next id if we haven't seen it before. */
+  public int getOrAdd(String feature) {
+    int id = ids.get(feature);
+    if(id == MISSING) {
+      id = names.size();
+      ids.put(feature, id);
+      names.add(feature);
+    }
+    return id;
+  }
+
+  /** @return the id of this feature, or {@link #MISSING} if it's not in the dictionary. */
+  public int get(String feature) {
+    return ids.get(feature);
+  }
+
+  public String getName(int id) {
+    return names.get(id);
+  }
+
+  public int size() {
+    return names.size();
+  }
+
+  /** What a token whose first feature is this should keep as its lemma; our own copy, so it isn't repeated per token. */
+  public String lemmaFor(String feature, int id) {
+    return getName(id);
+  }
+
+  /** Translate a bag of features into sorted, de-duplicated ids, adding any new ones. */
+  public int[] getOrAddAll(Collection<String> features) {
+    return getOrAddAll(features.toArray(new String[0]), 0, features.size());
+  }
+
+  /** A token's vector from features[from, to): each distinct string counts once, as in a set of them. */
+  public int[] getOrAddAll(String[] features, int from, int to) {
+    int[] output = new int[to - from];
+    for (int i = from; i < to; i++) {
+      output[i - from] = getOrAdd(features[i]);
+    }
+    return sortedUnique(output, output.length);
+  }
+
+  /**
+   * A token's vector from the first n of ids: ids here of distinct feature strings (e.g., mapped from another
+   * dictionary's vector). Distinct strings have distinct ids here, so this is {@link #sortedUnique}; a
+   * {@link HashedFeatureDictionary} keeps the repeats its collisions make.
+   */
+  public int[] vectorOfDistinct(int[] ids, int n) {
+    return sortedUnique(ids, n);
+  }
+
+  /**
+   * Add every feature of another dictionary to this one, in the other's id order.
+   * @return for each id in other, the id of the same feature here.
+   */
+  public int[] addAll(FeatureDictionary other) {
+    int[] mapping = new int[other.size()];
+    for (int i = 0; i < mapping.length; i++) {
+      mapping[i] = getOrAdd(other.getName(i));
+    }
+    return mapping;
+  }
+
+  /** Sort the first n entries of ids in place and drop duplicates, like putting them in a set. */
+  public static int[] sortedUnique(int[] ids, int n) {
+    Arrays.sort(ids, 0, n);
+    int unique = 0;
+    for (int i = 0; i < n; i++) {
+      if(unique == 0 || ids[unique-1] != ids[i]) {
+        ids[unique++] = ids[i];
+      }
+    }
+    if(unique == ids.length) return ids;
+    return Arrays.copyOf(ids, unique);
+  }
+
+  /**
+   * The shared copy of this vector of sorted feature ids, with the next vector id if we haven't seen it before.
+   * The loaders build tokens on several threads: finding a vector takes no lock, and adding one only locks its bin.
+   */
+  public Vector internVector(int[] sortedIds) {
+    Vector key = new Vector(sortedIds);
+    Vector found = vectors.get(key);
+    if(found != null) return found;
+    return vectors.computeIfAbsent(key, vector -> {
+      vector.id = vectorCount.getAndIncrement();
+      return vector;
+    });
+  }
+
+  /** How many vector ids tokens have been given here; they're all below this. */
+  public int numVectors() {
+    return vectorCount.get();
+  }
+
+  /** A token's sorted feature ids, and which of its dictionary's vectors they are. */
+  public static final class Vector {
+    public final int[] ids;
+    final int hash;
+    int id = MISSING;
+
+    Vector(int[] ids) {
+      this.ids = ids;
+      this.hash = Arrays.hashCode(ids);
+    }
+
+    public int id() {
+      return id;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Vector && hash == ((Vector) o).hash && Arrays.equals(ids, ((Vector) o).ids);
+    }
+  }
+
+  /** A read-only view of sorted feature ids as the strings they stand for. */
+  public Set<String> asSet(int[] sortedIds) {
+    return new FeatureSet(this, sortedIds);
+  }
+
+  private static class FeatureSet extends AbstractSet<String> {
+    private final FeatureDictionary dictionary;
+    private final int[] ids;
+
+    FeatureSet(FeatureDictionary dictionary, int[] ids) {
+      this.dictionary = dictionary;
+      this.ids = ids;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if(!(o instanceof String)) return false;
+      int id = dictionary.get((String) o);
+      return id != MISSING && Arrays.binarySearch(ids, id) >= 0;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+      return new Iterator<String>() {
+        int pos = 0;
+        @Override public boolean hasNext() {
+          return pos < ids.length;
+        }
+        @Override public String next() {
+          if(pos >= ids.length) throw new NoSuchElementException();
+          return dictionary.getName(ids[pos++]);
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return ids.length;
+    }
+  }
+}
@@ -0,0 +1,228 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TObjectFloatHashMap;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An inverted index of a (test) corpus: for every feature id, the ids of the tokens that have it, in corpus order.
+ * Postings are delta-gaps as varints, all in one byte array.
+ *
+ * Scoring a model walks the postings of its non-zero weights and adds each weight into a per-token accumulator, so
+ * a model with a few hundred features costs its postings, not every feature of every token. Features are visited in
+ * ascending id order, which is the order forward scoring adds each token's weights in, so the scores are identical.
+ * @author jfoley
+ */
+public class FeatureIndex {
+  public final FeatureDictionary dictionary;
+  /** Every token, in corpus order; a token's position here is its id. */
+  public final SimpleToken[] tokens;
+  /** Each token's lemma as an id, in order of first appearance, for the "unique" measures. */
+  final int[] lemmaIds;
+  final int numLemmas;
+  /** postings for feature f are bytes [offsets[f], offsets[f+1]). */
+  final int[] offsets;
+  final byte[] postings;
+
+  FeatureIndex(FeatureDictionary dictionary, SimpleToken[] tokens, int[] lemmaIds, int numLemmas, int[] offsets, byte[] postings) {
+    this.dictionary = dictionary;
+    this.tokens = tokens;
+    this.lemmaIds = lemmaIds;
+    this.numLemmas = numLemmas;
+    this.offsets = offsets;
+    this.postings = postings;
+  }
+
+  /** Index sentences that all share one dictionary. */
+  public static FeatureIndex build(List<List<SimpleToken>> sentences) {
+    int numTokens = 0;
+    FeatureDictionary dictionary = null;
+    for (List<SimpleToken> sentence : sentences) {
+      numTokens += sentence.size();
+      for (SimpleToken token : sentence) {
+        if(dictionary == null) {
+          dictionary = token.getDictionary();
+        } else if(dictionary != token.getDictionary()) {
+          throw new IllegalArgumentException("Tokens must share one FeatureDictionary.");
+        }
+      }
+    }
+    if(dictionary == null) dictionary = new FeatureDictionary();
+    int numFeatures = dictionary.size();
+
+    // count, then lay every feature's token ids out contiguously:
+    SimpleToken[] tokens = new SimpleToken[numTokens];
+    int[] start = new int[numFeatures + 1];
+    int t = 0;
+    for (List<SimpleToken> sentence : sentences) {
+      for (SimpleToken token : sentence) {
+        tokens[t++] = token;
+        for (int f : token.features) {
+          start[f + 1]++;
+        }
+      }
+    }
+    for (int f = 0; f < numFeatures; f++) {
+      start[f + 1] += start[f];
+    }
+    int[] lemmaIds = new int[numTokens];
+    int numLemmas = LemmaAggregator.assignIds(tokens, lemmaIds);
+    int[] tokenIds = new int[start[numFeatures]];
+    int[] fill = Arrays.copyOf(start, numFeatures);
+    for (int id = 0; id < numTokens; id++) {
+      for (int f : tokens[id].features) {
+        tokenIds[fill[f]++] = id;
+      }
+    }
+
+    // then compress:
+    ByteArrayBuilder out = new ByteArrayBuilder(tokenIds.length + 16);
+    int[] offsets = new int[numFeatures + 1];
+    for (int f = 0; f < numFeatures; f++) {
+      int previous = 0;
+      for (int i = start[f]; i < start[f + 1]; i++) {
+        out.writeVarInt(tokenIds[i] - previous);
+        previous = tokenIds[i];
+      }
+      offsets[f + 1] = out.size;
+    }
+    return new FeatureIndex(dictionary, tokens, lemmaIds, numLemmas, offsets, out.toByteArray());
+  }
+
+  private static class ByteArrayBuilder {
+    byte[] data;
+    int size;
+
+    ByteArrayBuilder(int capacity) {
+      this.data = new byte[capacity];
+    }
+
+    void writeVarInt(int value) {
+      if(size + 5 > data.length) {
+        data = Arrays.copyOf(data, Math.max(data.length * 2, size + 5));
+      }
+      while ((value & ~0x7f) != 0) {
+        data[size++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      data[size++] = (byte) value;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(data, size);
+    }
+  }
+
+  public int numTokens() {
+    return tokens.length;
+  }
+
+  /** How many tokens have this feature. */
+  public int documentFrequency(int feature) {
+    int count = 0;
+    for (int i = offsets[feature]; i < offsets[feature + 1]; i++) {
+      if(postings[i] >= 0) count++; // last byte of each varint
+    }
+    return count;
+  }
+
+  /** The ids of the tokens with this feature, ascending. */
+  public int[] getPostings(int feature) {
+    TIntArrayList ids = new TIntArrayList();
+    int id = 0;
+    int shift = 0;
+    int gap = 0;
+    for (int i = offsets[feature]; i < offsets[feature + 1]; i++) {
+      byte b = postings[i];
+      gap |= (b & 0x7f) << shift;
+      if(b >= 0) {
+        id += gap;
+        ids.add(id);
+        gap = 0;
+        shift = 0;
+      } else {
+        shift += 7;
+      }
+    }
+    return ids.toArray();
+  }
+
+  /** Add weight into scores[t] for every token t with this feature. */
+  void accumulate(int feature, double weight, double[] scores) {
+    int id = 0;
+    int shift = 0;
+    int gap = 0;
+    for (int i = offsets[feature], end = offsets[feature + 1]; i < end; i++) {
+      byte b = postings[i];
+      gap |= (b & 0x7f) << shift;
+      if(b >= 0) {
+        id += gap;
+        scores[id] += weight;
+        gap = 0;
+        shift = 0;
+      } else {
+        shift += 7;
+      }
+    }
+  }
+
+  /** Scores of every token, by id; equal to scoring each token with its weights from {@link TokenClassifier#denseWeights}. */
+  public double[] score(TokenClassifier model) {
+    if(model instanceof LinearTokenClassifier) {
+      return score(((LinearTokenClassifier) model).featureWeights);
+    }
+    float[] weights = model.denseWeights(dictionary);
+    double[] scores = new double[tokens.length];
+    for (int f = 0; f < weights.length; f++) {
+      if(weights[f] != 0) {
+        accumulate(f, weights[f], scores);
+      }
+    }
+    return scores;
+  }
+
+  /** Only touches the features in the map, so a sampled model costs its postings and no more. */
+  public double[] score(TObjectFloatHashMap<String> featureWeights) {
+    // (id, weight) packed into longs, so sorting them puts ids in order.
+    TLongArrayList features = new TLongArrayList(featureWeights.size());
+    featureWeights.forEachEntry((fname, fval) -> {
+      int id = dictionary.get(fname);
+      if(id != FeatureDictionary.MISSING && id < offsets.length - 1 && fval != 0) {
+        features.add(((long) id << 32) | (Float.floatToRawIntBits(fval) & 0xffffffffL));
+      }
+      return true;
+    });
+    features.sort();
+    double[] scores = new double[tokens.length];
+    for (int i = 0; i < features.size(); i++) {
+      long packed = features.getQuick(i);
+      accumulate((int) (packed >>> 32), Float.intBitsToFloat((int) packed), scores);
+    }
+    return scores;
+  }
+
+  /**
+   * Same measures as {@link BasicExperiment#evaluateModel} on the indexed sentences.
+   * Lemmas already have ids here, so the unique ranking is built without their strings.
+   */
+  public Map<String, Double> evaluate(TokenClassifier model, String etype) {
+    double[] scores;
+    Instrumentation.Timer timer = Instrumentation.time("score");
+    scores = score(model);
+    timer.stop();
+    Instrumentation.count("score.tokens", tokens.length);
+
+    Instrumentation.Timer metrics = Instrumentation.time("metrics");
+    boolean[] truth = new boolean[tokens.length];
+    for (int t = 0; t < tokens.length; t++) {
+      truth[t] = tokens[t].truthLabel.equals(etype);
+    }
+    Map<String, Double> measures = LemmaAggregator.measures(scores, truth, lemmaIds, numLemmas, tokens.length, model.getIntercept());
+    metrics.stop();
+    return measures;
+  }
+}
@@ -0,0 +1,24 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import gnu.trove.map.hash.TObjectFloatHashMap;
+import org.lemurproject.galago.utility.Parameters;
+
+import java.util.List;
+
+/**
+ * Anything that can turn a sample of labeled sentences into flattened (etype - O) feature weights.
+ * @author jfoley
+ */
+public interface FeatureWeightLearner {
+  /**
+   * @param sentences training data; tokens labeled anything other than etype are treated as "O".
+   * @param cfg debug information (timings, etc.) gets written in here.
+   */
+  TObjectFloatHashMap<String> learnFeatureWeights(List<List<SimpleToken>> sentences, String etype, Parameters cfg);
+
+  /**
+   * Everything else that changes the weights learned (hyperparameters, which binary), as "name=value" pairs sorted by
+   * name and comma separated; equal options and inputs give equal weights.
+   */
+  String options();
+}
@@ -0,0 +1,178 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The hashing trick: a {@link FeatureDictionary} that stores nothing, mapping every feature string to one of 2^bits
+ * buckets with a sign, so memory stays the same however large the vocabulary grows.
+ *
+ * Ids are (bucket &lt;&lt; 1 | negative). Their names are what crfsuite should see: "h17" for +1, and "h17:-1" for the
+ * same attribute with value -1, so colliding features tend to cancel rather than pile up in one direction. Train with
+ * these names, then score with a {@link HashedTokenClassifier}, which applies the sign.
+ *
+ * Distinct features of one token that collide keep one id each, so a token's vector can repeat an id; crfsuite adds
+ * a repeated attribute once per repeat, and so does scoring, whether from loaded tokens or from raw strings.
+ * @author jfoley
+ */
+public class HashedFeatureDictionary extends FeatureDictionary {
+  /**
+   * A {@link HashedTokenClassifier} keeps 3 floats per bucket (its weights, then both signs by id), so 24 bits is
+   * 192MB of heap per model; 28 would be 3GB.
+   */
+  public static final int MAX_BITS = 24;
+  private static final int SEED = 0x5eed;
+  public final int bits;
+  private final int mask;
+
+  public HashedFeatureDictionary(int bits) {
+    if(bits < 1 || bits > MAX_BITS) throw new IllegalArgumentException("bits must be in [1," + MAX_BITS + "], not " + bits);
+    this.bits = bits;
+    this.mask = (1 << bits) - 1;
+  }
+
+  public int numBuckets() {
+    return 1 << bits;
+  }
+
+  public static int bucket(int id) {
+    return id >>> 1;
+  }
+
+  public static boolean isNegative(int id) {
+    return (id & 1) != 0;
+  }
+
+  /** Never adds anything; the same string always hashes to the same id. */
+  @Override
+  public int getOrAdd(String feature) {
+    int h = murmur3(feature, SEED);
+    // low bits pick the bucket, the top bit the sign.
+    return ((h & mask) << 1) | (h >>> 31);
+  }
+
+  /** The same as getOrAdd: every string is a raw feature. Use {@link #parseName} for the names we hand out. */
+  @Override
+  public int get(String feature) {
+    return getOrAdd(feature);
+  }
+
+  /** Repeated strings count once; distinct strings that collide count once each. */
+  @Override
+  public int[] getOrAddAll(String[] features, int from, int to) {
+    int n = to - from;
+    // (id, position) pairs, so strings that landed on the same id are next to each other.
+    long[] packed = new long[n];
+    for (int i = 0; i < n; i++) {
+      packed[i] = ((long) getOrAdd(features[from + i]) << 32) | i;
+    }
+    Arrays.sort(packed);
+    int[] output = new int[n];
+    int size = 0;
+    for (int i = 0; i < n; i++) {
+      boolean repeat = false;
+      for (int j = i - 1; j >= 0 && (packed[j] >>> 32) == (packed[i] >>> 32); j--) {
+        if(features[from + (int) packed[j]].equals(features[from + (int) packed[i]])) {
+          repeat = true;
+          break;
+        }
+      }
+      if(!repeat) output[size++] = (int) (packed[i] >>> 32);
+    }
+    return size == n ? output : Arrays.copyOf(output, size);
+  }
+
+  /** Sorted, keeping repeats: they're different features that collided. */
+  @Override
+  public int[] vectorOfDistinct(int[] ids, int n) {
+    Arrays.sort(ids, 0, n);
+    return n == ids.length ? ids : Arrays.copyOf(ids, n);
+  }
+
+  /**
+   * Not looked up: a table of every distinct vector is the kind of thing hashing is meant not to keep, so every token
+   * gets its own vector id, and nothing is shared or locked.
+   */
+  @Override
+  public Vector internVector(int[] sortedIds) {
+    Vector vector = new Vector(sortedIds);
+    vector.id = vectorCount.getAndIncrement();
+    return vector;
+  }
+
+  @Override
+  public String getName(int id) {
+    return isNegative(id) ? "h" + bucket(id) + ":-1" : "h" + bucket(id);
+  }
+
+  @Override
+  public int size() {
+    return numBuckets() << 1;
+  }
+
+  /** Keep the real string, or colliding lemmas would be merged in evaluation. */
+  @Override
+  public String lemmaFor(String feature, int id) {
+    return feature;
+  }
+
+  /** @return the id of "h17" or "h17:-1", or MISSING for anything else. */
+  public int parseName(String name) {
+    int end = name.endsWith(":-1") ? name.length() - 3 : name.length();
+    if(end < 2 || name.charAt(0) != 'h') return MISSING;
+    int bucket = 0;
+    for (int i = 1; i < end; i++) {
+      char c = name.charAt(i);
+      if(c < '0' || c > '9' || bucket > mask) return MISSING;
+      bucket = bucket * 10 + (c - '0');
+    }
+    if(bucket > mask) return MISSING;
+    return (bucket << 1) | (end == name.length() ? 0 : 1);
+  }
+
+  /** How many buckets the tokens of these corpora actually touch. */
+  public int bucketsUsed(List<List<SimpleToken>> sentences) {
+    BitSet used = new BitSet(numBuckets());
+    for (List<SimpleToken> sentence : sentences) {
+      for (SimpleToken token : sentence) {
+        for (int id : token.getFeatureIds()) {
+          used.set(bucket(id));
+        }
+      }
+    }
+    return used.cardinality();
+  }
+
+  /** MurmurHash3 (x86, 32-bit) over a string's UTF-16 code units, two per block. */
+  public static int murmur3(CharSequence input, int seed) {
+    final int c1 = 0xcc9e2d51;
+    final int c2 = 0x1b873593;
+    int h = seed;
+    int length = input.length();
+    int i = 0;
+    for (; i + 1 < length; i += 2) {
+      int k = input.charAt(i) | (input.charAt(i + 1) << 16);
+      k *= c1;
+      k = Integer.rotateLeft(k, 15);
+      k *= c2;
+      h ^= k;
+      h = Integer.rotateLeft(h, 13);
+      h = h * 5 + 0xe6546b64;
+    }
+    if(i < length) {
+      int k = input.charAt(i);
+      k *= c1;
+      k = Integer.rotateLeft(k, 15);
+      k *= c2;
+      h ^= k;
+    }
+    h ^= length * 2;
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
@@ -0,0 +1,89 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import gnu.trove.map.hash.TObjectFloatHashMap;
+
+import java.util.Set;
+
+/**
+ * A linear model over hashed features: one float per bucket, whatever the vocabulary. A feature's contribution is its
+ * bucket's weight times its sign, matching the "h17" / "h17:-1" attributes {@link HashedFeatureDictionary} trains with.
+ * @author jfoley
+ */
+public class HashedTokenClassifier implements TokenClassifier {
+  public final HashedFeatureDictionary hashing;
+  public final float[] weights;
+  private final long size;
+  /** weights by (signed) id, i.e., +w at bucket*2 and -w at bucket*2+1. */
+  private final float[] signed;
+
+  public HashedTokenClassifier(HashedFeatureDictionary hashing, float[] weights) {
+    if(weights.length != hashing.numBuckets()) throw new IllegalArgumentException("Expected " + hashing.numBuckets() + " weights, got " + weights.length);
+    this.hashing = hashing;
+    this.weights = weights;
+    this.signed = new float[hashing.size()];
+    long nonZero = 0;
+    for (int bucket = 0; bucket < weights.length; bucket++) {
+      signed[bucket << 1] = weights[bucket];
+      signed[(bucket << 1) | 1] = -weights[bucket];
+      if(weights[bucket] != 0) nonZero++;
+    }
+    this.size = nonZero;
+  }
+
+  /**
+   * From learned weights named by bucket ("h17"); anything else is ignored. The learner has to read "h17:-1" as
+   * attribute h17 with value -1, as crfsuite does; a separate "h17:-1" weight means it didn't.
+   */
+  public static HashedTokenClassifier fromFeatureWeights(HashedFeatureDictionary hashing, TObjectFloatHashMap<String> featureWeights) {
+    float[] weights = new float[hashing.numBuckets()];
+    featureWeights.forEachEntry((fname, fval) -> {
+      int id = hashing.parseName(fname);
+      if(id == FeatureDictionary.MISSING) return true;
+      if(HashedFeatureDictionary.isNegative(id)) {
+        throw new IllegalArgumentException("Learner treated signed attribute " + fname + " as its own feature.");
+      }
+      weights[HashedFeatureDictionary.bucket(id)] = fval;
+      return true;
+    });
+    return new HashedTokenClassifier(hashing, weights);
+  }
+
+  /** @param features raw feature strings, hashed here. */
+  @Override
+  public double score(Set<String> features) {
+    double pred = 0;
+    for (String feature : features) {
+      pred += signed[hashing.getOrAdd(feature)];
+    }
+    return pred;
+  }
+
+  @Override
+  public float[] denseWeights(FeatureDictionary dictionary) {
+    if(dictionary != hashing && !(dictionary instanceof HashedFeatureDictionary && ((HashedFeatureDictionary) dictionary).bits == hashing.bits)) {
+      throw new IllegalArgumentException("Tokens weren't hashed into " + hashing.numBuckets() + " buckets.");
+    }
+    return signed;
+  }
+
+  @Override
+  public double getIntercept() {
+    return 0;
+  }
+
+  /** Buckets with a non-zero weight. */
+  @Override
+  public long getSize() {
+    return size;
+  }
+
+  @Override
+  public HashedTokenClassifier deriveSampled(int k) {
+    if(k >= size) return this;
+    TObjectFloatHashMap<String> byBucket = new TObjectFloatHashMap<>();
+    for (int bucket = 0; bucket < weights.length; bucket++) {
+      if(weights[bucket] != 0) byBucket.put(hashing.getName(bucket << 1), weights[bucket]);
+    }
+    return fromFeatureWeights(hashing, new LinearTokenClassifier(byBucket).deriveSampled(k).featureWeights);
+  }
+}
@@ -0,0 +1,166 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import org.lemurproject.galago.utility.Parameters;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Nanosecond timers (a {@link LatencyHistogram} per stage), counters, and heap samples for a whole run, reported as
+ * JSON. Stages are coarse (loading a corpus, one crfsuite learn, scoring a test set), so this is always on:
+ * <pre>
+ *   Instrumentation.Timer timer = Instrumentation.time("load");
+ *   ...
+ *   timer.stop();
+ *   Instrumentation.count("load.tokens", n);
+ * </pre>
+ * @author jfoley
+ */
+public class Instrumentation {
+  public static final Instrumentation global = new Instrumentation();
+
+  private final long started = System.nanoTime();
+  private final Map<String, LatencyHistogram> timers = new ConcurrentHashMap<>();
+  private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+  private final AtomicLong heapSamples = new AtomicLong();
+  private final AtomicLong lastHeapUsed = new AtomicLong();
+  private final AtomicLong maxHeapUsed = new AtomicLong();
+  private ScheduledExecutorService snapshots;
+  private PrintStream snapshotOutput;
+
+  public static Timer time(String stage) {
+    return global.start(stage);
+  }
+
+  public static void count(String counter, long delta) {
+    global.add(counter, delta);
+  }
+
+  public class Timer {
+    final String stage;
+    final long start = System.nanoTime();
+    long elapsed = -1;
+
+    Timer(String stage) {
+      this.stage = stage;
+    }
+
+    /** Record this stage (once) and return how long it took in nanoseconds. */
+    public long stop() {
+      if(elapsed < 0) {
+        elapsed = System.nanoTime() - start;
+        record(stage, elapsed);
+      }
+      return elapsed;
+    }
+
+    public double seconds() {
+      return stop() / 1e9;
+    }
+  }
+
+  public Timer start(String stage) {
+    return new Timer(stage);
+  }
+
+  /** Record a duration measured some other way, e.g., thread CPU time. */
+  public void record(String stage, long nanos) {
+    timers.computeIfAbsent(stage, ignored -> new LatencyHistogram()).record(nanos);
+    sampleHeap();
+  }
+
+  public void add(String counter, long delta) {
+    counters.computeIfAbsent(counter, ignored -> new AtomicLong()).addAndGet(delta);
+  }
+
+  public void sampleHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    long used = runtime.totalMemory() - runtime.freeMemory();
+    heapSamples.incrementAndGet();
+    lastHeapUsed.set(used);
+    maxHeapUsed.accumulateAndGet(used, Math::max);
+  }
+
+  public Parameters report() {
+    sampleHeap();
+    Parameters report = Parameters.create();
+    report.put("uptimeSeconds", (System.nanoTime() - started) / 1e9);
+
+    Parameters stages = Parameters.create();
+    for (Map.Entry<String, LatencyHistogram> kv : new TreeMap<>(timers).entrySet()) {
+      LatencyHistogram histogram = kv.getValue();
+      Parameters stage = histogram.toParameters();
+      stage.put("totalSeconds", histogram.sum() / 1e9);
+      stages.put(kv.getKey(), stage);
+    }
+    report.put("timers", stages);
+
+    Parameters counts = Parameters.create();
+    for (Map.Entry<String, AtomicLong> kv : new TreeMap<>(counters).entrySet()) {
+      counts.put(kv.getKey(), kv.getValue().get());
+    }
+    report.put("counters", counts);
+
+    Runtime runtime = Runtime.getRuntime();
+    Parameters heap = Parameters.create();
+    heap.put("samples", heapSamples.get());
+    heap.put("usedBytes", lastHeapUsed.get());
+    heap.put("maxUsedBytes", maxHeapUsed.get());
+    heap.put("committedBytes", runtime.totalMemory());
+    heap.put("maxBytes", runtime.maxMemory());
+    report.put("heap", heap);
+    return report;
+  }
+
+  public void writeReport(File output) {
+    try (Writer out = new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8)) {
+      out.write(report().toPrettyString());
+      out.write('\n');
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** Append a one-line report every period to output (a JSON-lines file), or stderr if output is null. */
+  public synchronized void startSnapshots(long periodSeconds, File output) {
+    stopSnapshots();
+    PrintStream out;
+    try {
+      out = output == null ? System.err : new PrintStream(new FileOutputStream(output, true), true, "UTF-8");
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    snapshots = Executors.newSingleThreadScheduledExecutor(TrainingScheduler.daemonThreads("instrumentation-snapshot"));
+    snapshots.scheduleAtFixedRate(() -> out.println(report()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    snapshotOutput = out;
+  }
+
+  /** Stop the snapshots, and close their file (never stderr) once the last one has been written. */
+  public synchronized void stopSnapshots() {
+    if(snapshots != null) {
+      snapshots.shutdown();
+      try {
+        snapshots.awaitTermination(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      snapshots = null;
+    }
+    if(snapshotOutput != null && snapshotOutput != System.err) {
+      snapshotOutput.close();
+    }
+    snapshotOutput = null;
+  }
+}
@@ -0,0 +1,316 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TObjectFloatHashMap;
+import org.lemurproject.galago.utility.Parameters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Trains in-process, straight from the sentences, instead of writing files for crfsuite and reading its dump back.
+ *
+ * The "crf" objective is a linear-chain CRF (state features plus label transitions); "logistic" drops the transitions
+ * and normalizes every token on its own. Both are fit with L-BFGS and L2 regularization, and like crfsuite only
+ * (attribute, label) pairs seen in the training data get a weight, so the flattened (etype - O) weights are comparable
+ * to {@link CRFSuiteLearner#parseCRFSuiteModelDump}.
+ * @author jfoley
+ */
+public class JavaCRFLearner implements FeatureWeightLearner {
+  public static final String BACKGROUND = "O";
+  /** "crf" or "logistic". */
+  public String objective = "crf";
+  /** Objective is -log-likelihood + c2 * |w|^2, as in crfsuite. */
+  public double c2 = 1.0;
+  public int maxIterations = 1000;
+  public double epsilon = 1e-5;
+  public boolean quiet = false;
+
+  @Override
+  public String options() {
+    return "c2=" + c2 + ",epsilon=" + epsilon + ",maxIterations=" + maxIterations + ",objective=" + objective;
+  }
+
+  @Override
+  public TObjectFloatHashMap<String> learnFeatureWeights(List<List<SimpleToken>> sentences, String etype, Parameters cfg) {
+    if(sentences.isEmpty()) {
+      return new TObjectFloatHashMap<>();
+    }
+    return train(sentences, etype, cfg).flatten(etype, BACKGROUND);
+  }
+
+  public Model train(List<List<SimpleToken>> sentences, String etype, Parameters cfg) {
+    if(!quiet) System.out.println("\t\tBEGIN TRAIN (in-process " + objective + "): " + sentences.size() + " sentences");
+    Instrumentation.Timer timer = Instrumentation.time("learn");
+    boolean chain;
+    switch (objective) {
+      case "crf": chain = true; break;
+      case "logistic": chain = false; break;
+      default: throw new IllegalArgumentException("Unknown objective: " + objective);
+    }
+
+    TrainingData data = new TrainingData(sentences, etype, chain);
+    Model model = new Model(data);
+    LBFGS optimizer = new LBFGS();
+    optimizer.maxIterations = maxIterations;
+    optimizer.epsilon = epsilon;
+    double loss = optimizer.minimize(model::objective, model.weights);
+
+    cfg.put("trainingTime", timer.seconds());
+    cfg.put("iterations", optimizer.iterations);
+    cfg.put("loss", loss);
+    cfg.put("numParameters", model.weights.length);
+    return model;
+  }
+
+  /** Sentences with compact attribute and label ids, and which (attribute, label) pairs have parameters. */
+  static class TrainingData {
+    final FeatureDictionary dictionary;
+    final FeatureDictionary labels = new FeatureDictionary();
+    final int[] attributes; // local attribute -> dictionary id
+    final List<int[][]> tokens = new ArrayList<>();
+    final List<int[]> gold = new ArrayList<>();
+    final boolean chain;
+    /** numAttributes x numLabels: parameter index, or -1 for pairs never seen in training. */
+    final int[] stateParameter;
+    final int numParameters;
+
+    TrainingData(List<List<SimpleToken>> sentences, String etype, boolean chain) {
+      this.chain = chain;
+      FeatureDictionary dictionary = null;
+      TIntIntHashMap localIds = new TIntIntHashMap(1024, 0.5f, -1, -1);
+      labels.getOrAdd(BACKGROUND);
+      for (List<SimpleToken> sentence : sentences) {
+        if(sentence.isEmpty()) continue;
+        int[][] sentenceTokens = new int[sentence.size()][];
+        int[] sentenceLabels = new int[sentence.size()];
+        for (int t = 0; t < sentence.size(); t++) {
+          SimpleToken token = sentence.get(t);
+          if(dictionary == null) {
+            dictionary = token.getDictionary();
+          } else if(dictionary != token.getDictionary()) {
+            throw new IllegalArgumentException("All tokens must share one FeatureDictionary.");
+          }
+          int[] ids = token.getFeatureIds();
+          int[] local = new int[ids.length];
+          for (int i = 0; i < ids.length; i++) {
+            int id = localIds.get(ids[i]);
+            if(id < 0) {
+              id = localIds.size();
+              localIds.put(ids[i], id);
+            }
+            local[i] = id;
+          }
+          sentenceTokens[t] = local;
+          sentenceLabels[t] = labels.getOrAdd(relabel(token.getLabel(), etype));
+        }
+        if(chain) {
+          tokens.add(sentenceTokens);
+          gold.add(sentenceLabels);
+        } else {
+          for (int t = 0; t < sentenceTokens.length; t++) {
+            tokens.add(new int[][] {sentenceTokens[t]});
+            gold.add(new int[] {sentenceLabels[t]});
+          }
+        }
+      }
+      this.dictionary = dictionary;
+
+      attributes = new int[localIds.size()];
+      localIds.forEachEntry((global, local) -> {
+        attributes[local] = global;
+        return true;
+      });
+
+      int numLabels = labels.size();
+      stateParameter = new int[attributes.length * numLabels];
+      Arrays.fill(stateParameter, -1);
+      int next = 0;
+      for (int s = 0; s < tokens.size(); s++) {
+        int[][] sentence = tokens.get(s);
+        for (int t = 0; t < sentence.length; t++) {
+          int y = gold.get(s)[t];
+          for (int a : sentence[t]) {
+            if(stateParameter[a * numLabels + y] < 0) {
+              stateParameter[a * numLabels + y] = next++;
+            }
+          }
+        }
+      }
+      numParameters = next + (chain ? numLabels * numLabels : 0);
+    }
+
+    int numLabels() {
+      return labels.size();
+    }
+
+    int transition(int from, int to) {
+      return numParameters - numLabels() * numLabels() + from * numLabels() + to;
+    }
+
+    static String relabel(String label, String etype) {
+      if(etype == null) return label;
+      return label.equals(etype) ? etype : BACKGROUND;
+    }
+  }
+
+  public class Model {
+    final TrainingData data;
+    final double[] weights;
+    private double[][] state = new double[0][];
+    private double[][] alpha = new double[0][];
+    private double[][] beta = new double[0][];
+    private final double[] scratch;
+
+    Model(TrainingData data) {
+      this.data = data;
+      this.weights = new double[data.numParameters];
+      this.scratch = new double[data.numLabels()];
+    }
+
+    /** Negative log-likelihood plus the L2 penalty, and its gradient. */
+    double objective(double[] w, double[] gradient) {
+      Arrays.fill(gradient, 0);
+      final int L = data.numLabels();
+      double loss = 0;
+      for (int s = 0; s < data.tokens.size(); s++) {
+        int[][] sentence = data.tokens.get(s);
+        int[] gold = data.gold.get(s);
+        int n = sentence.length;
+        reserve(n, L);
+
+        // state scores and the gold path's score:
+        double goldScore = 0;
+        for (int t = 0; t < n; t++) {
+          for (int y = 0; y < L; y++) {
+            double sum = 0;
+            for (int a : sentence[t]) {
+              int p = data.stateParameter[a * L + y];
+              if(p >= 0) sum += w[p];
+            }
+            state[t][y] = sum;
+          }
+          goldScore += state[t][gold[t]];
+          if(data.chain && t > 0) goldScore += w[data.transition(gold[t-1], gold[t])];
+        }
+
+        // forward-backward in log space:
+        for (int y = 0; y < L; y++) {
+          alpha[0][y] = state[0][y];
+          beta[n-1][y] = 0;
+        }
+        for (int t = 1; t < n; t++) {
+          for (int y = 0; y < L; y++) {
+            for (int prev = 0; prev < L; prev++) {
+              scratch[prev] = alpha[t-1][prev] + w[data.transition(prev, y)];
+            }
+            alpha[t][y] = state[t][y] + logSumExp(scratch, L);
+          }
+        }
+        for (int t = n - 2; t >= 0; t--) {
+          for (int y = 0; y < L; y++) {
+            for (int next = 0; next < L; next++) {
+              scratch[next] = w[data.transition(y, next)] + state[t+1][next] + beta[t+1][next];
+            }
+            beta[t][y] = logSumExp(scratch, L);
+          }
+        }
+        double logZ = logSumExp(alpha[n-1], L);
+        loss += logZ - goldScore;
+
+        // gradient = expected counts - observed counts
+        for (int t = 0; t < n; t++) {
+          for (int y = 0; y < L; y++) {
+            double marginal = Math.exp(alpha[t][y] + beta[t][y] - logZ);
+            for (int a : sentence[t]) {
+              int p = data.stateParameter[a * L + y];
+              if(p >= 0) gradient[p] += marginal;
+            }
+          }
+          for (int a : sentence[t]) {
+            gradient[data.stateParameter[a * L + gold[t]]] -= 1;
+          }
+          if(t > 0) {
+            for (int prev = 0; prev < L; prev++) {
+              for (int y = 0; y < L; y++) {
+                int p = data.transition(prev, y);
+                gradient[p] += Math.exp(alpha[t-1][prev] + w[p] + state[t][y] + beta[t][y] - logZ);
+              }
+            }
+            gradient[data.transition(gold[t-1], gold[t])] -= 1;
+          }
+        }
+      }
+
+      if(c2 > 0) {
+        for (int i = 0; i < w.length; i++) {
+          loss += c2 * w[i] * w[i];
+          gradient[i] += 2 * c2 * w[i];
+        }
+      }
+      return loss;
+    }
+
+    private void reserve(int n, int L) {
+      if(state.length >= n) return;
+      state = new double[n][L];
+      alpha = new double[n][L];
+      beta = new double[n][L];
+    }
+
+    /** Every label's state weights and the transitions, as {@link CRFSuiteLearner#readModel} would read them; e.g., for a {@link SequenceTagger}. */
+    public CRFSuiteModel toCRFSuiteModel() {
+      final int L = data.numLabels();
+      List<String> labels = new ArrayList<>(L);
+      float[][] transitions = new float[L][L];
+      Map<String, TObjectFloatHashMap<String>> stateWeights = new HashMap<>();
+      for (int y = 0; y < L; y++) {
+        labels.add(data.labels.getName(y));
+        if(data.chain) {
+          for (int next = 0; next < L; next++) {
+            transitions[y][next] = (float) weights[data.transition(y, next)];
+          }
+        }
+        TObjectFloatHashMap<String> forLabel = new TObjectFloatHashMap<>();
+        for (int a = 0; a < data.attributes.length; a++) {
+          int p = data.stateParameter[a * L + y];
+          if(p >= 0) forLabel.put(data.dictionary.getName(data.attributes[a]), (float) weights[p]);
+        }
+        stateWeights.put(data.labels.getName(y), forLabel);
+      }
+      return new CRFSuiteModel(labels, transitions, stateWeights);
+    }
+
+    /** The state weight of every feature for label, minus its weight for background. */
+    public TObjectFloatHashMap<String> flatten(String etype, String background) {
+      final int L = data.numLabels();
+      int positive = data.labels.get(etype);
+      int negative = data.labels.get(background);
+      TObjectFloatHashMap<String> flattened = new TObjectFloatHashMap<>();
+      for (int a = 0; a < data.attributes.length; a++) {
+        int pp = positive < 0 ? -1 : data.stateParameter[a * L + positive];
+        int np = negative < 0 ? -1 : data.stateParameter[a * L + negative];
+        if(pp < 0 && np < 0) continue;
+        double weight = (pp < 0 ? 0 : weights[pp]) - (np < 0 ? 0 : weights[np]);
+        flattened.put(data.dictionary.getName(data.attributes[a]), (float) weight);
+      }
+      return flattened;
+    }
+  }
+
+  static double logSumExp(double[] xs, int n) {
+    double max = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < n; i++) {
+      max = Math.max(max, xs[i]);
+    }
+    if(max == Double.NEGATIVE_INFINITY) return max;
+    double sum = 0;
+    for (int i = 0; i < n; i++) {
+      sum += Math.exp(xs[i] - max);
+    }
+    return max + Math.log(sum);
+  }
+}
@@ -0,0 +1,143 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+/**
+ * Limited-memory BFGS with a backtracking (Armijo) line search; defaults follow crfsuite's lbfgs trainer.
+ * @author jfoley
+ */
+public class LBFGS {
+  public interface Objective {
+    /** @return f(x), after writing the gradient of f at x into gradient. */
+    double evaluate(double[] x, double[] gradient);
+  }
+
+  public int numMemories = 6;
+  public int maxIterations = 1000;
+  /** Stop once |g| / max(1, |x|) drops below this. */
+  public double epsilon = 1e-5;
+  /** Stop once f improves by less than this fraction over the last period iterations. */
+  public double delta = 1e-5;
+  public int period = 10;
+  public int maxLineSearch = 20;
+
+  /** How many iterations the last call to minimize took. */
+  public int iterations;
+
+  /** Minimize fn starting from x; x is overwritten with the solution, and the objective there is returned. */
+  public double minimize(Objective fn, double[] x) {
+    final int n = x.length;
+    final int m = numMemories;
+    double[][] s = new double[m][n];
+    double[][] y = new double[m][n];
+    double[] rho = new double[m];
+    double[] alpha = new double[m];
+    int stored = 0;
+    int newest = -1;
+
+    double[] g = new double[n];
+    double[] xNext = new double[n];
+    double[] gNext = new double[n];
+    double[] d = new double[n];
+    double[] history = new double[Math.max(1, period)];
+
+    double f = fn.evaluate(x, g);
+    history[0] = f;
+    iterations = 0;
+    while (iterations < maxIterations) {
+      if(norm(g) / Math.max(1.0, norm(x)) < epsilon) break;
+
+      // two-loop recursion: d = -H g
+      System.arraycopy(g, 0, d, 0, n);
+      for (int k = 0; k < stored; k++) {
+        int i = Math.floorMod(newest - k, m);
+        alpha[i] = rho[i] * dot(s[i], d);
+        axpy(-alpha[i], y[i], d);
+      }
+      if(stored > 0) {
+        scale(dot(s[newest], y[newest]) / dot(y[newest], y[newest]), d);
+      } else {
+        scale(1.0 / norm(g), d);
+      }
+      for (int k = stored - 1; k >= 0; k--) {
+        int i = Math.floorMod(newest - k, m);
+        double beta = rho[i] * dot(y[i], d);
+        axpy(alpha[i] - beta, s[i], d);
+      }
+      scale(-1.0, d);
+
+      double slope = dot(g, d);
+      if(slope >= 0) {
+        // not a descent direction; forget the curvature history and go downhill.
+        stored = 0;
+        System.arraycopy(g, 0, d, 0, n);
+        scale(-1.0 / norm(g), d);
+        slope = dot(g, d);
+      }
+
+      double step = 1.0;
+      double fNext = Double.NaN;
+      boolean accepted = false;
+      for (int tries = 0; tries < maxLineSearch; tries++) {
+        for (int i = 0; i < n; i++) {
+          xNext[i] = x[i] + step * d[i];
+        }
+        fNext = fn.evaluate(xNext, gNext);
+        if(fNext <= f + 1e-4 * step * slope) {
+          accepted = true;
+          break;
+        }
+        step *= 0.5;
+      }
+      if(!accepted) break;
+
+      int next = (newest + 1) % m;
+      for (int i = 0; i < n; i++) {
+        s[next][i] = xNext[i] - x[i];
+        y[next][i] = gNext[i] - g[i];
+      }
+      double sy = dot(s[next], y[next]);
+      if(sy > 1e-10) {
+        rho[next] = 1.0 / sy;
+        newest = next;
+        stored = Math.min(stored + 1, m);
+      } else if(stored == m) {
+        stored--; // we just wrote over the oldest pair.
+      }
+
+      System.arraycopy(xNext, 0, x, 0, n);
+      System.arraycopy(gNext, 0, g, 0, n);
+      f = fNext;
+      iterations++;
+
+      if(period > 0 && iterations >= period) {
+        double before = history[iterations % period];
+        if((before - f) / Math.max(1.0, Math.abs(f)) < delta) break;
+      }
+      history[iterations % history.length] = f;
+    }
+    return f;
+  }
+
+  static double dot(double[] a, double[] b) {
+    double sum = 0;
+    for (int i = 0; i < a.length; i++) {
+      sum += a[i] * b[i];
+    }
+    return sum;
+  }
+
+  static double norm(double[] a) {
+    return Math.sqrt(dot(a, a));
+  }
+
+  static void axpy(double alpha, double[] x, double[] y) {
+    for (int i = 0; i < x.length; i++) {
+      y[i] += alpha * x[i];
+    }
+  }
+
+  static void scale(double alpha, double[] x) {
+    for (int i = 0; i < x.length; i++) {
+      x[i] *= alpha;
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import org.lemurproject.galago.utility.Parameters;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of durations in nanoseconds, with log-linear buckets: exact below 32ns, then 32 buckets
+ * per power of two, so percentiles are within about 3% of the true value. Recording is a couple of atomic adds.
+ * @author jfoley
+ */
+public class LatencyHistogram {
+  static final int SUB_BITS = 5;
+  static final int SUB = 1 << SUB_BITS;
+  static final int NUM_BUCKETS = SUB + (63 - SUB_BITS) * SUB;
+
+  private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  static int bucket(long nanos) {
+    if(nanos < SUB) return (int) Math.max(0, nanos);
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    int shift = exponent - SUB_BITS;
+    return SUB + shift * SUB + (int) ((nanos >>> shift) - SUB);
+  }
+
+  /** The middle of the range of durations that land in this bucket. */
+  static long bucketValue(int bucket) {
+    if(bucket < SUB) return bucket;
+    int shift = (bucket - SUB) / SUB;
+    long lower = (long) (SUB + (bucket - SUB) % SUB) << shift;
+    return lower + ((1L << shift) - 1) / 2;
+  }
+
+  public void record(long nanos) {
+    counts.incrementAndGet(bucket(nanos));
+    total.incrementAndGet();
+    sum.addAndGet(nanos);
+    max.accumulateAndGet(nanos, Math::max);
+  }
+
+  /** Record the time since start, a {@link System#nanoTime()}. */
+  public void recordSince(long start) {
+    record(System.nanoTime() - start);
+  }
+
+  public long count() {
+    return total.get();
+  }
+
+  /** Total of everything recorded, in nanoseconds. */
+  public long sum() {
+    return sum.get();
+  }
+
+  public double mean() {
+    long n = total.get();
+    return n == 0 ? 0 : sum.get() / (double) n;
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  /** @param q in [0,1], e.g. 0.99 for the 99th percentile. */
+  public long percentile(double q) {
+    long n = total.get();
+    if(n == 0) return 0;
+    long rank = Math.max(1, (long) Math.ceil(q * n));
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      seen += counts.get(i);
+      if(seen >= rank) {
+        return Math.min(bucketValue(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  public void merge(LatencyHistogram other) {
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      long c = other.counts.get(i);
+      if(c != 0) counts.addAndGet(i, c);
+    }
+    total.addAndGet(other.total.get());
+    sum.addAndGet(other.sum.get());
+    max.accumulateAndGet(other.max.get(), Math::max);
+  }
+
+  /** count, and mean, p50, p90, p99, p999 and max in microseconds. */
+  public Parameters toParameters() {
+    Parameters p = Parameters.create();
+    p.put("count", count());
+    p.put("meanMicros", mean() / 1e3);
+    p.put("p50Micros", percentile(0.5) / 1e3);
+    p.put("p90Micros", percentile(0.9) / 1e3);
+    p.put("p99Micros", percentile(0.99) / 1e3);
+    p.put("p999Micros", percentile(0.999) / 1e3);
+    p.put("maxMicros", max() / 1e3);
+    return p;
+  }
+}
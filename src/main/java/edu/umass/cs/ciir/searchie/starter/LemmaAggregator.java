@@ -0,0 +1,120 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The best score, and how many tokens were true, for every distinct lemma; lemmas get ids in order of first appearance.
+ * Kept as parallel primitive arrays, so adding a token allocates nothing once its lemma has been seen.
+ * @author jfoley
+ */
+public class LemmaAggregator {
+  final FeatureDictionary lemmas;
+  double[] maxScore;
+  int[] numTrue;
+  int[] numTotal;
+
+  public LemmaAggregator() {
+    this.lemmas = new FeatureDictionary();
+    this.maxScore = new double[256];
+    this.numTrue = new int[256];
+    this.numTotal = new int[256];
+  }
+
+  public void add(String lemma, boolean truth, double score) {
+    int id = lemmas.getOrAdd(lemma);
+    if(id == maxScore.length) {
+      grow();
+    }
+    if(numTotal[id] == 0 || score > maxScore[id]) {
+      maxScore[id] = score;
+    }
+    if(truth) {
+      numTrue[id]++;
+    }
+    numTotal[id]++;
+  }
+
+  private void grow() {
+    int capacity = maxScore.length * 2;
+    maxScore = Arrays.copyOf(maxScore, capacity);
+    numTrue = Arrays.copyOf(numTrue, capacity);
+    numTotal = Arrays.copyOf(numTotal, capacity);
+  }
+
+  /** Fold in lemmas collected somewhere else (e.g., another thread), as if they'd been added here afterwards. */
+  public void merge(LemmaAggregator other) {
+    for (int i = 0; i < other.size(); i++) {
+      int id = lemmas.getOrAdd(other.lemmas.getName(i));
+      if(id == maxScore.length) {
+        grow();
+      }
+      if(numTotal[id] == 0 || other.maxScore[i] > maxScore[id]) {
+        maxScore[id] = other.maxScore[i];
+      }
+      numTrue[id] += other.numTrue[i];
+      numTotal[id] += other.numTotal[i];
+    }
+  }
+
+  public int size() {
+    return lemmas.size();
+  }
+
+  public String getLemma(int id) {
+    return lemmas.getName(id);
+  }
+
+  public double bestScore(int id) {
+    return maxScore[id];
+  }
+
+  public double fractionTrue(int id) {
+    return numTrue[id] / (double) numTotal[id];
+  }
+
+  /** The "unique" ranking: each lemma's best score, true if any of its tokens were. */
+  public RankingMetrics computeMetrics(double threshold, int... depths) {
+    boolean[] anyTrue = new boolean[size()];
+    for (int i = 0; i < anyTrue.length; i++) {
+      anyTrue[i] = numTrue[i] > 0;
+    }
+    return RankingMetrics.compute(maxScore, anyTrue, anyTrue.length, threshold, depths);
+  }
+
+  /**
+   * Give each token's lemma an id into lemmaIds, in order of first appearance, for {@link #measures}.
+   * @return the number of distinct lemmas.
+   */
+  public static int assignIds(SimpleToken[] tokens, int[] lemmaIds) {
+    FeatureDictionary lemmas = new FeatureDictionary();
+    for (int t = 0; t < tokens.length; t++) {
+      lemmaIds[t] = lemmas.getOrAdd(tokens[t].lemma);
+    }
+    return lemmas.size();
+  }
+
+  /**
+   * The regular measures of scores, then the "u" measures of the unique ranking, for tokens whose lemmas already
+   * have ids below numLemmas: the same as adding every token to a LemmaAggregator, without the lemma strings.
+   */
+  public static Map<String, Double> measures(double[] scores, boolean[] truth, int[] lemmaIds, int numLemmas, int n, double threshold) {
+    double[] bestScore = new double[numLemmas];
+    boolean[] seen = new boolean[numLemmas];
+    boolean[] anyTrue = new boolean[numLemmas];
+    for (int t = 0; t < n; t++) {
+      int lemma = lemmaIds[t];
+      // the same comparison as add, not Math.max, which would let a NaN win.
+      if(!seen[lemma] || scores[t] > bestScore[lemma]) {
+        bestScore[lemma] = scores[t];
+        seen[lemma] = true;
+      }
+      anyTrue[lemma] |= truth[t];
+    }
+    Map<String, Double> measures = new HashMap<>();
+    RankingMetrics.compute(scores, truth, n, threshold, RankingMetrics.DEFAULT_DEPTHS).putMeasures("", measures);
+    RankingMetrics.compute(bestScore, anyTrue, numLemmas, threshold, RankingMetrics.DEFAULT_DEPTHS).putMeasures("u", measures);
+    return measures;
+  }
+}
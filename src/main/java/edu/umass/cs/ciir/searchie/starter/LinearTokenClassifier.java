@@ -1,20 +1,26 @@
 package edu.umass.cs.ciir.searchie.starter;
 
 import ciir.jfoley.chai.collections.TopKHeap;
+import gnu.trove.list.array.TFloatArrayList;
 import gnu.trove.map.hash.TObjectFloatHashMap;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 /**
  * @author jfoley
  */
-public class LinearTokenClassifier {
+public class LinearTokenClassifier implements TokenClassifier {
   public final TObjectFloatHashMap<String> featureWeights;
+  /** featureWeights laid out by the ids of the last dictionary we scored against; rebuilt when it changes. */
+  private volatile DenseWeights dense;
 
   public LinearTokenClassifier(TObjectFloatHashMap<String> featureWeights) {
     this.featureWeights = featureWeights;
   }
 
+  @Override
   public double score(Set<String> features) {
     double pred = 0;
     for (String feature : features) {
@@ -23,14 +29,53 @@ public class LinearTokenClassifier {
     return pred;
   }
 
+  /** Score a token through its feature ids rather than by hashing every feature string. */
+  @Override
+  public double score(SimpleToken token) {
+    return score(denseWeights(token.getDictionary()), token.getFeatureIds());
+  }
+
+  public static double score(float[] denseWeights, int[] featureIds) {
+    double pred = 0;
+    for (int id : featureIds) {
+      pred += denseWeights[id];
+    }
+    return pred;
+  }
+
+  /**
+   * @return a weight for every id in the dictionary (0 for features this model doesn't have).
+   * Cached, so don't modify featureWeights after you start scoring.
+   */
+  @Override
+  public float[] denseWeights(FeatureDictionary dictionary) {
+    DenseWeights current = dense;
+    if(current == null || current.dictionary != dictionary || current.weights.length != dictionary.size()) {
+      float[] weights = new float[dictionary.size()];
+      featureWeights.forEachEntry((fname, fval) -> {
+        int id = dictionary.get(fname);
+        if(id != FeatureDictionary.MISSING) {
+          weights[id] = fval;
+        }
+        return true;
+      });
+      current = new DenseWeights(dictionary, weights);
+      dense = current;
+    }
+    return current.weights;
+  }
+
+  @Override
   public double getIntercept() {
     return 0;
   }
 
+  @Override
   public long getSize() {
     return featureWeights.size();
   }
 
+  @Override
   public LinearTokenClassifier deriveSampled(int k) {
     // limit to however many features...
     TopKHeap<ComparableFeature> features = new TopKHeap<>(Math.min(k, featureWeights.size()));
@@ -45,4 +90,31 @@ public class LinearTokenClassifier {
     }
     return new LinearTokenClassifier(heaviestFeatures);
   }
+
+  /** {@link #deriveSampled}, straight into the compact format; see {@link CompactLinearModel#quantize} for bits. */
+  public CompactLinearModel deriveSampledCompact(int k, int bits) {
+    TopKHeap<ComparableFeature> features = new TopKHeap<>(Math.min(k, featureWeights.size()));
+    featureWeights.forEachEntry((fname, fval) -> {
+      features.offer(new ComparableFeature(fval, fname));
+      return true;
+    });
+
+    List<String> names = new ArrayList<>();
+    TFloatArrayList weights = new TFloatArrayList();
+    for (ComparableFeature feature : features) {
+      names.add(feature.name);
+      weights.add(feature.weight);
+    }
+    return CompactLinearModel.quantize(names, weights.toArray(), bits);
+  }
+
+  static class DenseWeights {
+    final FeatureDictionary dictionary;
+    final float[] weights;
+
+    DenseWeights(FeatureDictionary dictionary, float[] weights) {
+      this.dictionary = dictionary;
+      this.weights = weights;
+    }
+  }
 }
\ No newline at end of file
@@ -0,0 +1,387 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import org.lemurproject.galago.utility.Parameters;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A binary, columnar copy of a CRFSuite file that we read back through {@link FileChannel#map}.
+ *
+ * Layout (big-endian): a header, the feature string table, the label string table, then int arrays for
+ * sentence offsets, per-token offsets into the feature ids (CSR), label ids, lemma ids and the feature ids themselves.
+ * Feature ids are in the order they first appear in the source file, so loading into an empty dictionary
+ * gives the same ids as parsing the text.
+ *
+ * {@link #toSentences} brings every token onto the heap, which only saves the parsing. {@link #evaluate} scores
+ * straight from the mapped columns instead: the heap holds the model's weights and a score, truth bit and lemma id per
+ * token, and the feature ids stay in the page cache.
+ * @author jfoley
+ */
+public class MappedCorpus {
+  public static final long MAGIC = 0x534e4c50435246L; // "SNLPCRF"
+  public static final int VERSION = 2;
+  private static final int HEADER_BYTES = 8 + 4 + 8 + 8 + 4 * 5;
+
+  private final StringTable features;
+  private final StringTable labels;
+  private final IntBuffer sentenceStart;
+  private final IntBuffer tokenStart;
+  private final IntBuffer labelIds;
+  private final IntBuffer lemmaIds;
+  private final IntBuffer featureIds;
+
+  private MappedCorpus(StringTable features, StringTable labels, IntBuffer sentenceStart, IntBuffer tokenStart, IntBuffer labelIds, IntBuffer lemmaIds, IntBuffer featureIds) {
+    this.features = features;
+    this.labels = labels;
+    this.sentenceStart = sentenceStart;
+    this.tokenStart = tokenStart;
+    this.labelIds = labelIds;
+    this.lemmaIds = lemmaIds;
+    this.featureIds = featureIds;
+  }
+
+  /** One-time converter: java ... MappedCorpus --input=data/train.snlpl.all.crfsuite [--output=...] */
+  public static void main(String[] args) throws IOException {
+    Parameters argp = Parameters.parseArgs(args);
+    File input = new File(argp.getString("input"));
+    File output = new File(argp.get("output", cacheFileFor(input).getPath()));
+    List<List<SimpleToken>> sentences = SimpleToken.loadCRFSuiteInputFormat(input);
+    write(sentences, input, output);
+    System.out.println("Wrote " + sentences.size() + " sentences to " + output);
+  }
+
+  public static File cacheFileFor(File source) {
+    return new File(source.getPath() + ".bin");
+  }
+
+  /** A cache is up to date if it's readable and was built from a source of the same size and modification time. */
+  public static boolean isUpToDate(File cache, File source) {
+    if(!cache.exists()) return false;
+    try (RandomAccessFile raf = new RandomAccessFile(cache, "r")) {
+      if(raf.length() < HEADER_BYTES) return false;
+      return raf.readLong() == MAGIC &&
+          raf.readInt() == VERSION &&
+          raf.readLong() == source.length() &&
+          raf.readLong() == source.lastModified();
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Write sentences out; their feature ids (and dictionary order) are kept as-is, so load them into a fresh dictionary first.
+   * Written to a temporary file and moved into place, so concurrent readers never see a partial cache.
+   */
+  public static void write(List<List<SimpleToken>> sentences, File source, File output) throws IOException {
+    FeatureDictionary dictionary = null;
+    int numTokens = 0;
+    long numIds = 0;
+    FeatureDictionary labelDictionary = new FeatureDictionary();
+    for (List<SimpleToken> sentence : sentences) {
+      for (SimpleToken token : sentence) {
+        if(dictionary == null) {
+          dictionary = token.getDictionary();
+        } else if(dictionary != token.getDictionary()) {
+          throw new IllegalArgumentException("All tokens must share one FeatureDictionary.");
+        }
+        labelDictionary.getOrAdd(token.getLabel());
+        numTokens++;
+        numIds += token.features.length;
+      }
+    }
+    if(dictionary == null) dictionary = new FeatureDictionary();
+    if(numIds > Integer.MAX_VALUE) {
+      throw new IOException("Too many feature occurrences for one corpus cache: " + numIds);
+    }
+
+    File tmp = new File(output.getPath() + ".tmp" + System.nanoTime());
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+      out.writeLong(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(source.length());
+      out.writeLong(source.lastModified());
+      out.writeInt(dictionary.size());
+      out.writeInt(labelDictionary.size());
+      out.writeInt(sentences.size());
+      out.writeInt(numTokens);
+      out.writeInt((int) numIds);
+
+      writeStrings(out, dictionary);
+      writeStrings(out, labelDictionary);
+
+      int tokenIndex = 0;
+      out.writeInt(tokenIndex);
+      for (List<SimpleToken> sentence : sentences) {
+        tokenIndex += sentence.size();
+        out.writeInt(tokenIndex);
+      }
+      int idIndex = 0;
+      out.writeInt(idIndex);
+      for (List<SimpleToken> sentence : sentences) {
+        for (SimpleToken token : sentence) {
+          idIndex += token.features.length;
+          out.writeInt(idIndex);
+        }
+      }
+      for (List<SimpleToken> sentence : sentences) {
+        for (SimpleToken token : sentence) {
+          out.writeInt(labelDictionary.get(token.getLabel()));
+        }
+      }
+      for (List<SimpleToken> sentence : sentences) {
+        for (SimpleToken token : sentence) {
+          out.writeInt(dictionary.get(token.lemma));
+        }
+      }
+      for (List<SimpleToken> sentence : sentences) {
+        for (SimpleToken token : sentence) {
+          for (int id : token.features) {
+            out.writeInt(id);
+          }
+        }
+      }
+    } catch (IOException e) {
+      Files.deleteIfExists(tmp.toPath());
+      throw e;
+    }
+    Files.move(tmp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  static void writeStrings(DataOutputStream out, FeatureDictionary strings) throws IOException {
+    List<byte[]> encoded = new ArrayList<>(strings.size());
+    int offset = 0;
+    out.writeInt(offset);
+    for (int i = 0; i < strings.size(); i++) {
+      byte[] data = strings.getName(i).getBytes(StandardCharsets.UTF_8);
+      encoded.add(data);
+      offset += data.length;
+      out.writeInt(offset);
+    }
+    for (byte[] data : encoded) {
+      out.write(data);
+    }
+  }
+
+  /** Open source's cache, writing it first if it's missing or stale; the parsed tokens are dropped once it's written. */
+  public static MappedCorpus openCached(File source) throws IOException {
+    File cache = cacheFileFor(source);
+    if(!isUpToDate(cache, source)) {
+      write(SimpleToken.loadCRFSuiteInputFormatParallel(source, new FeatureDictionary()), source, cache);
+    }
+    return open(cache);
+  }
+
+  public static MappedCorpus open(File cache) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(cache, "r");
+         FileChannel channel = raf.getChannel()) {
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+      if(header.getLong() != MAGIC) throw new IOException("Not a corpus cache: " + cache);
+      if(header.getInt() != VERSION) throw new IOException("Wrong corpus cache version: " + cache);
+      header.getLong(); // source length
+      header.getLong(); // source modified
+      int numFeatures = header.getInt();
+      int numLabels = header.getInt();
+      int numSentences = header.getInt();
+      int numTokens = header.getInt();
+      int numIds = header.getInt();
+
+      long position = HEADER_BYTES;
+      StringTable features = StringTable.map(channel, position, numFeatures);
+      position += features.sizeInBytes();
+      StringTable labels = StringTable.map(channel, position, numLabels);
+      position += labels.sizeInBytes();
+
+      IntBuffer sentenceStart = mapInts(channel, position, numSentences + 1);
+      position += 4L * (numSentences + 1);
+      IntBuffer tokenStart = mapInts(channel, position, numTokens + 1);
+      position += 4L * (numTokens + 1);
+      IntBuffer labelIds = mapInts(channel, position, numTokens);
+      position += 4L * numTokens;
+      IntBuffer lemmaIds = mapInts(channel, position, numTokens);
+      position += 4L * numTokens;
+      IntBuffer featureIds = mapInts(channel, position, numIds);
+      return new MappedCorpus(features, labels, sentenceStart, tokenStart, labelIds, lemmaIds, featureIds);
+    }
+  }
+
+  static IntBuffer mapInts(FileChannel channel, long position, int count) throws IOException {
+    if(4L * count > Integer.MAX_VALUE) throw new IOException("Corpus cache section too large to map: " + count + " ints");
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * count).asIntBuffer();
+  }
+
+  public int numSentences() {
+    return sentenceStart.limit() - 1;
+  }
+
+  public int numTokens() {
+    return labelIds.limit();
+  }
+
+  public int numFeatures() {
+    return features.size();
+  }
+
+  /** Sentence s covers tokens [sentenceStart(s), sentenceStart(s+1)). */
+  public int sentenceStart(int sentence) {
+    return sentenceStart.get(sentence);
+  }
+
+  /** Token t's features are {@link #featureId} for [tokenStart(t), tokenStart(t+1)). */
+  public int tokenStart(int token) {
+    return tokenStart.get(token);
+  }
+
+  public int featureId(int position) {
+    return featureIds.get(position);
+  }
+
+  public String featureName(int id) {
+    return features.get(id);
+  }
+
+  public String label(int token) {
+    return labels.get(labelIds.get(token));
+  }
+
+  public int lemmaId(int token) {
+    return lemmaIds.get(token);
+  }
+
+  /** Bring the corpus onto the heap as tokens, translating our ids into the given dictionary. */
+  public List<List<SimpleToken>> toSentences(FeatureDictionary dictionary) {
+    int[] mapping = mapFeatures(dictionary);
+    String[] labelNames = new String[labels.size()];
+    for (int i = 0; i < labelNames.length; i++) {
+      labelNames[i] = labels.get(i);
+    }
+
+    List<List<SimpleToken>> output = new ArrayList<>(numSentences());
+    for (int s = 0; s < numSentences(); s++) {
+      int end = sentenceStart(s + 1);
+      List<SimpleToken> sentence = new ArrayList<>(end - sentenceStart(s));
+      for (int t = sentenceStart(s); t < end; t++) {
+        int begin = tokenStart(t);
+        int[] ids = new int[tokenStart(t + 1) - begin];
+        for (int i = 0; i < ids.length; i++) {
+          ids[i] = mapping[featureId(begin + i)];
+        }
+        String lemma = dictionary.getName(mapping[lemmaId(t)]);
+        sentence.add(new SimpleToken(labelNames[labelIds.get(t)], lemma, dictionary.vectorOfDistinct(ids, ids.length), dictionary));
+      }
+      output.add(sentence);
+    }
+    return output;
+  }
+
+  /** Where each of our feature ids is in dictionary; features it doesn't have yet are added, as by toSentences. */
+  public int[] mapFeatures(FeatureDictionary dictionary) {
+    int[] mapping = new int[numFeatures()];
+    for (int i = 0; i < mapping.length; i++) {
+      mapping[i] = dictionary.getOrAdd(featureName(i));
+    }
+    return mapping;
+  }
+
+  /**
+   * Score every token from the mapped feature ids. Weights are added in this file's id order, so a score can differ
+   * from {@link TokenClassifier#score(SimpleToken)} in its last bits when mapping doesn't preserve that order.
+   * @param mapping from {@link #mapFeatures}, for the dictionary the model's weights are laid out by.
+   */
+  public double[] score(TokenClassifier model, FeatureDictionary dictionary, int[] mapping) {
+    float[] dense = model.denseWeights(dictionary);
+    float[] weights = new float[numFeatures()];
+    for (int i = 0; i < weights.length; i++) {
+      weights[i] = mapping[i] < dense.length ? dense[mapping[i]] : 0f;
+    }
+    double[] scores = new double[numTokens()];
+    IntBuffer ids = featureIds.duplicate();
+    for (int t = 0; t < scores.length; t++) {
+      double pred = 0;
+      for (int i = tokenStart(t), end = tokenStart(t + 1); i < end; i++) {
+        pred += weights[ids.get(i)];
+      }
+      scores[t] = pred;
+    }
+    return scores;
+  }
+
+  /** Same measures as {@link BasicExperiment#evaluateModel} on this corpus, without bringing its tokens onto the heap. */
+  public Map<String, Double> evaluate(TokenClassifier model, FeatureDictionary dictionary, int[] mapping, String etype) {
+    double[] scores;
+    Instrumentation.Timer timer = Instrumentation.time("score");
+    scores = score(model, dictionary, mapping);
+    timer.stop();
+    Instrumentation.count("score.tokens", scores.length);
+
+    Instrumentation.Timer metrics = Instrumentation.time("metrics");
+    int label = -1;
+    for (int i = 0; i < labels.size(); i++) {
+      if(labels.get(i).equals(etype)) label = i;
+    }
+    boolean[] truth = new boolean[scores.length];
+    // lemmas are feature ids here; renumber them in order of first appearance, as LemmaAggregator would.
+    int[] lemmaNumber = new int[numFeatures()];
+    Arrays.fill(lemmaNumber, -1);
+    int numLemmas = 0;
+    int[] lemmas = new int[scores.length];
+    for (int t = 0; t < scores.length; t++) {
+      truth[t] = labelIds.get(t) == label;
+      int lemma = lemmaId(t);
+      if(lemmaNumber[lemma] < 0) lemmaNumber[lemma] = numLemmas++;
+      lemmas[t] = lemmaNumber[lemma];
+    }
+    Map<String, Double> measures = LemmaAggregator.measures(scores, truth, lemmas, numLemmas, scores.length, model.getIntercept());
+    metrics.stop();
+    return measures;
+  }
+
+  /** Offsets followed by concatenated UTF-8 bytes; decoded on demand. */
+  static class StringTable {
+    final IntBuffer offsets;
+    final ByteBuffer data;
+
+    StringTable(IntBuffer offsets, ByteBuffer data) {
+      this.offsets = offsets;
+      this.data = data;
+    }
+
+    static StringTable map(FileChannel channel, long position, int count) throws IOException {
+      IntBuffer offsets = mapInts(channel, position, count + 1);
+      int length = offsets.get(count);
+      ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, position + 4L * (count + 1), length);
+      return new StringTable(offsets, data);
+    }
+
+    int size() {
+      return offsets.limit() - 1;
+    }
+
+    long sizeInBytes() {
+      return 4L * offsets.limit() + data.limit();
+    }
+
+    String get(int index) {
+      int start = offsets.get(index);
+      byte[] bytes = new byte[offsets.get(index + 1) - start];
+      ByteBuffer view = data.duplicate();
+      view.position(start);
+      view.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+  }
+}
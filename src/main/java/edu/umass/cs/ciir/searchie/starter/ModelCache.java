@@ -0,0 +1,247 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TObjectFloatHashMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Flattened weights of already-trained models, on disk, keyed by what went into training them.
+ *
+ * The key is a SHA-256 of the algorithm, any options, and the training data as crfsuite would see it (relabeled, in
+ * sentence order), see {@link #key}. Entries are written to a
+ * temporary file and moved into place, so several JVMs can share a directory: readers only ever see whole entries.
+ * Hits touch the file's mtime, and once the directory grows past maxBytes the least recently used entries go,
+ * under a file lock so two processes don't evict at once. Listing the directory costs a stat per entry, so a cache only
+ * does it when the bytes it knows of may be over maxBytes, or every {@link #RESCAN_PUTS} puts to notice other writers.
+ * @author jfoley
+ */
+public class ModelCache {
+  static final int MAGIC = 0x53574331; // SWC1
+  static final String SUFFIX = ".weights";
+  private static final Object evictionLock = new Object();
+  /** List the directory at least this often, since other processes may be filling it too. */
+  static final int RESCAN_PUTS = 64;
+
+  public final File directory;
+  public final long maxBytes;
+  /** The directory's size at the last scan plus what we've put since; -1 before the first scan. */
+  private long knownBytes = -1;
+  private int putsSinceScan = 0;
+
+  public ModelCache(File directory, long maxBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    if(!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+      throw new RuntimeException("Couldn't create model cache directory: " + directory);
+    }
+  }
+
+  /**
+   * Hex SHA-256 of everything that determines the trained weights: the algorithm, any options (e.g., which crfsuite
+   * binary), and the relabeled training data. Each token's features are hashed sorted by name rather than in dictionary
+   * id order, so the same sample loaded in a different order hits the same entry.
+   * @param etype as for {@link CRFSuiteWriter}: null keeps every label.
+   */
+  public static String key(List<List<SimpleToken>> sentences, String etype, String algorithm, String... options) {
+    MessageDigest sha;
+    try {
+      sha = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DigestOutputStream(new DiscardOutputStream(), sha), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeBoolean(etype != null);
+      if(etype != null) out.writeUTF(etype);
+      out.writeUTF(algorithm);
+      out.writeInt(options.length);
+      for (String option : options) {
+        out.writeUTF(option);
+      }
+      // each distinct feature vector is sorted and encoded once; hashed tokens never share one, so don't keep them.
+      FeatureDictionary dictionary = null;
+      boolean cacheVectors = false;
+      TIntObjectHashMap<byte[]> encoded = new TIntObjectHashMap<>();
+      for (List<SimpleToken> sentence : sentences) {
+        if(sentence.isEmpty()) continue; // crfsuite never sees these either
+        out.writeInt(sentence.size());
+        for (SimpleToken token : sentence) {
+          if(dictionary != token.getDictionary()) {
+            dictionary = token.getDictionary();
+            encoded.clear();
+            cacheVectors = !(dictionary instanceof HashedFeatureDictionary);
+          }
+          out.writeUTF(JavaCRFLearner.TrainingData.relabel(token.getLabel(), etype));
+          byte[] features = cacheVectors ? encoded.get(token.vector) : null;
+          if(features == null) {
+            features = encodeSorted(token);
+            if(cacheVectors) encoded.put(token.vector, features);
+          }
+          out.write(features);
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    StringBuilder hex = new StringBuilder();
+    for (byte b : sha.digest()) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  /** A token's feature names in sorted order: a count, then each as UTF. */
+  private static byte[] encodeSorted(SimpleToken token) throws IOException {
+    String[] names = new String[token.features.length];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = token.getDictionary().getName(token.features[i]);
+    }
+    Arrays.sort(names);
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(buffer);
+    out.writeInt(names.length);
+    for (String name : names) {
+      out.writeUTF(name);
+    }
+    out.flush();
+    return buffer.toByteArray();
+  }
+
+  File fileFor(String key) {
+    return new File(directory, key + SUFFIX);
+  }
+
+  /** @return the cached weights, or null if they aren't (or are no longer) here. */
+  public TObjectFloatHashMap<String> get(String key) {
+    File entry = fileFor(key);
+    TObjectFloatHashMap<String> weights;
+    try {
+      weights = read(entry);
+    } catch (FileNotFoundException | NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      System.err.println("Dropping unreadable model cache entry " + entry + ": " + e.getMessage());
+      entry.delete();
+      return null;
+    }
+    // mtime is our recency; losing this race to an eviction is harmless.
+    entry.setLastModified(System.currentTimeMillis());
+    return weights;
+  }
+
+  public void put(String key, TObjectFloatHashMap<String> weights) {
+    File entry = fileFor(key);
+    File tmp = new File(directory, key + ".tmp" + System.nanoTime());
+    try {
+      try {
+        write(weights, tmp);
+        Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(tmp.toPath());
+      }
+      if(shouldEvict(entry.length())) {
+        evict();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** Count a new entry; true if it's time to list the directory again. */
+  private synchronized boolean shouldEvict(long added) {
+    putsSinceScan++;
+    if(knownBytes >= 0) knownBytes += added;
+    return knownBytes < 0 || knownBytes > maxBytes || putsSinceScan >= RESCAN_PUTS;
+  }
+
+  private synchronized void scanned(long total) {
+    knownBytes = total;
+    putsSinceScan = 0;
+  }
+
+  /** Delete least recently used entries until the directory fits in maxBytes again. */
+  public void evict() throws IOException {
+    synchronized (evictionLock) { // FileLock is per-JVM, so keep our own threads apart too.
+      try (FileChannel lockFile = FileChannel.open(new File(directory, ".lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+        lockFile.lock(); // released when the channel closes.
+        File[] entries = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if(entries == null) return;
+        long total = 0;
+        // read each mtime once; they can change under us while sorting.
+        long[] lastUsed = new long[entries.length];
+        Integer[] order = new Integer[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+          total += entries[i].length();
+          lastUsed[i] = entries[i].lastModified();
+          order[i] = i;
+        }
+        if(total > maxBytes) {
+          Arrays.sort(order, Comparator.comparingLong(i -> lastUsed[i]));
+          for (int i : order) {
+            if(total <= maxBytes) break;
+            long size = entries[i].length();
+            if(entries[i].delete()) total -= size;
+          }
+        }
+        scanned(total);
+      }
+    }
+  }
+
+  /** int magic, int count, then (UTF feature, float weight) pairs sorted by feature. */
+  static void write(TObjectFloatHashMap<String> weights, File output) throws IOException {
+    String[] features = weights.keys(new String[weights.size()]);
+    Arrays.sort(features);
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(features.length);
+      for (String feature : features) {
+        out.writeUTF(feature);
+        out.writeFloat(weights.get(feature));
+      }
+    }
+  }
+
+  static TObjectFloatHashMap<String> read(File input) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(input), 1 << 16))) {
+      if(in.readInt() != MAGIC) throw new IOException("Not a model cache entry: " + input);
+      int count = in.readInt();
+      if(count < 0) throw new EOFException();
+      TObjectFloatHashMap<String> weights = new TObjectFloatHashMap<>(Math.max(16, count * 2));
+      for (int i = 0; i < count; i++) {
+        String feature = in.readUTF();
+        weights.put(feature, in.readFloat());
+      }
+      return weights;
+    }
+  }
+
+  private static class DiscardOutputStream extends OutputStream {
+    @Override public void write(int b) { }
+    @Override public void write(byte[] b, int off, int len) { }
+  }
+}
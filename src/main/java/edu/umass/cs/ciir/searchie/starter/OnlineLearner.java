@@ -0,0 +1,188 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import gnu.trove.map.hash.TObjectFloatHashMap;
+import org.lemurproject.galago.utility.Parameters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A binary (etype vs. everything else) token classifier trained one sentence at a time, for annotation loops where the
+ * sample grows a little at a time and retraining crfsuite from scratch per step is too slow.
+ *
+ * "perceptron" is the averaged perceptron. "sgd" is logistic regression by SGD with a constant learning rate and L2
+ * regularization applied lazily: a feature's weight is only decayed (all the steps it missed at once) when a token
+ * has it, so an update costs time proportional to that token's features, not the model.
+ *
+ * Weights are indexed by the ids of the dictionary of the first sentence seen; later sentences must share it.
+ * As a {@link FeatureWeightLearner}, it trains a fresh model for {@link #epochs} shuffled passes over the sample.
+ * @author jfoley
+ */
+public class OnlineLearner implements FeatureWeightLearner {
+  /** "perceptron" or "sgd". */
+  public String algorithm;
+  public double learningRate = 0.1;
+  /** Per-step L2 decay for "sgd": each step multiplies weights by (1 - learningRate * l2). */
+  public double l2 = 1e-4;
+  public int epochs = 5;
+  public long seed = 0;
+
+  private String etype;
+  private FeatureDictionary dictionary;
+  private double[] weights = new double[0];
+  /** perceptron: sum over updates of (change * tokens seen before it), for the average. */
+  private double[] stepWeighted = new double[0];
+  /** sgd: the step each weight has been decayed through. */
+  private long[] lastDecay = new long[0];
+  private long step = 1;
+
+  /** Configuration only; for use as a {@link FeatureWeightLearner}. */
+  public OnlineLearner(String algorithm) {
+    if(!algorithm.equals("perceptron") && !algorithm.equals("sgd")) {
+      throw new IllegalArgumentException("Unknown online algorithm: " + algorithm);
+    }
+    this.algorithm = algorithm;
+  }
+
+  /** A model for this etype, ready for {@link #update} calls. */
+  public OnlineLearner(String etype, String algorithm) {
+    this(algorithm);
+    this.etype = etype;
+  }
+
+  private OnlineLearner fresh(String etype) {
+    OnlineLearner model = new OnlineLearner(etype, algorithm);
+    model.learningRate = learningRate;
+    model.l2 = l2;
+    model.epochs = epochs;
+    model.seed = seed;
+    return model;
+  }
+
+  @Override
+  public String options() {
+    return "algorithm=" + algorithm + ",epochs=" + epochs + ",l2=" + l2 + ",learningRate=" + learningRate + ",seed=" + seed;
+  }
+
+  @Override
+  public TObjectFloatHashMap<String> learnFeatureWeights(List<List<SimpleToken>> sentences, String etype, Parameters cfg) {
+    Instrumentation.Timer timer = Instrumentation.time("learn");
+    OnlineLearner model = fresh(etype);
+    List<List<SimpleToken>> order = new ArrayList<>(sentences);
+    Random rand = new Random(seed);
+    for (int epoch = 0; epoch < epochs; epoch++) {
+      Collections.shuffle(order, rand);
+      for (List<SimpleToken> sentence : order) {
+        model.update(sentence);
+      }
+    }
+    TObjectFloatHashMap<String> output = model.toFeatureWeights();
+    cfg.put("trainingTime", timer.seconds());
+    cfg.put("epochs", epochs);
+    cfg.put("steps", model.step - 1);
+    return output;
+  }
+
+  /** Learn from one more labeled sentence, in place. */
+  public void update(List<SimpleToken> sentence) {
+    for (SimpleToken token : sentence) {
+      update(token);
+    }
+  }
+
+  public void update(SimpleToken token) {
+    if(etype == null) throw new IllegalStateException("No etype; use new OnlineLearner(etype, algorithm) for updates.");
+    if(dictionary == null) {
+      dictionary = token.getDictionary();
+    } else if(dictionary != token.getDictionary()) {
+      throw new IllegalArgumentException("Tokens must share one FeatureDictionary.");
+    }
+    if(weights.length < dictionary.size()) {
+      grow(dictionary.size());
+    }
+
+    int[] features = token.getFeatureIds();
+    double y = token.getLabel().equals(etype) ? 1 : -1;
+    if(algorithm.equals("perceptron")) {
+      double score = 0;
+      for (int f : features) {
+        score += weights[f];
+      }
+      if(y * score <= 0) {
+        for (int f : features) {
+          weights[f] += y;
+          stepWeighted[f] += (step - 1) * y;
+        }
+      }
+    } else {
+      double score = 0;
+      for (int f : features) {
+        decay(f);
+        score += weights[f];
+      }
+      // gradient of log(1 + exp(-y * score)) is -y * sigmoid(-y * score)
+      double change = learningRate * y / (1 + Math.exp(y * score));
+      for (int f : features) {
+        weights[f] += change;
+      }
+    }
+    step++;
+  }
+
+  private double decayFactor(long steps) {
+    return Math.pow(1 - learningRate * l2, steps);
+  }
+
+  private void decay(int f) {
+    if(lastDecay[f] != step) {
+      weights[f] *= decayFactor(step - lastDecay[f]);
+      lastDecay[f] = step;
+    }
+  }
+
+  private void grow(int size) {
+    int capacity = Math.max(size, weights.length * 2);
+    weights = Arrays.copyOf(weights, capacity);
+    if(algorithm.equals("perceptron")) {
+      stepWeighted = Arrays.copyOf(stepWeighted, capacity);
+    } else {
+      // new weights are zero, so it doesn't matter when they were last decayed.
+      lastDecay = Arrays.copyOf(lastDecay, capacity);
+    }
+  }
+
+  /** The weight as of now: averaged over every token seen for the perceptron, decayed through the last step for sgd. */
+  public double getWeight(int id) {
+    if(id >= weights.length || step == 1) return 0;
+    if(algorithm.equals("perceptron")) {
+      return weights[id] - stepWeighted[id] / (step - 1);
+    }
+    return weights[id] * decayFactor(step - 1 - lastDecay[id]);
+  }
+
+  /** Non-zero weights by feature name; doesn't change the model, so keep calling {@link #update} afterwards. */
+  public TObjectFloatHashMap<String> toFeatureWeights() {
+    TObjectFloatHashMap<String> output = new TObjectFloatHashMap<>();
+    if(dictionary == null) return output;
+    int n = Math.min(weights.length, dictionary.size());
+    for (int id = 0; id < n; id++) {
+      float w = (float) getWeight(id);
+      if(w != 0) {
+        output.put(dictionary.getName(id), w);
+      }
+    }
+    return output;
+  }
+
+  public LinearTokenClassifier toClassifier() {
+    return new LinearTokenClassifier(toFeatureWeights());
+  }
+
+  /** How many tokens we've learned from. */
+  public long numUpdates() {
+    return step - 1;
+  }
+}
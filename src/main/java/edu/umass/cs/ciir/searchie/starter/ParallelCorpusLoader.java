@@ -0,0 +1,226 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/**
+ * Loads a CRFSuite file by cutting it into byte ranges at blank lines (sentence boundaries) and parsing
+ * those on the fork-join pool. Each range gets its own dictionary, merged into the caller's in file order,
+ * so feature ids come out exactly as {@link SimpleToken#loadCRFSuiteInputFormat(File, FeatureDictionary)} assigns them.
+ * @author jfoley
+ */
+public class ParallelCorpusLoader {
+  public static final int DEFAULT_CHUNK_BYTES = 8 * 1024 * 1024;
+  private static final int SCAN_BYTES = 64 * 1024;
+
+  private final File where;
+  private final int chunkBytes;
+
+  public ParallelCorpusLoader(File where, int chunkBytes) {
+    this.where = where;
+    this.chunkBytes = chunkBytes;
+  }
+
+  public static List<List<SimpleToken>> load(File where, FeatureDictionary dictionary) throws IOException {
+    return new ParallelCorpusLoader(where, DEFAULT_CHUNK_BYTES).load(dictionary);
+  }
+
+  public List<List<SimpleToken>> load(FeatureDictionary dictionary) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(where, "r");
+         FileChannel channel = raf.getChannel()) {
+      List<long[]> ranges = findRanges(channel);
+
+      List<Chunk> chunks;
+      try {
+        chunks = ForkJoinPool.commonPool().submit(() ->
+            ranges.parallelStream().map(range -> parse(channel, range)).collect(Collectors.toList())
+        ).join();
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+
+      // ids have to be handed out in file order, but once they are the token rewriting can go wide again.
+      List<int[]> mappings = new ArrayList<>(chunks.size());
+      for (Chunk chunk : chunks) {
+        mappings.add(dictionary.addAll(chunk.dictionary));
+      }
+      List<List<List<SimpleToken>>> remapped = ForkJoinPool.commonPool().submit(() ->
+          chunks.parallelStream()
+              .map(chunk -> chunk.toSentences(mappings.get(chunk.index), dictionary))
+              .collect(Collectors.toList())
+      ).join();
+
+      List<List<SimpleToken>> output = new ArrayList<>();
+      for (List<List<SimpleToken>> sentences : remapped) {
+        output.addAll(sentences);
+      }
+      return output;
+    }
+  }
+
+  /** Cut [0, size) into {start, end, index} ranges of about chunkBytes, each starting at the beginning of the file or of a blank line. */
+  private List<long[]> findRanges(FileChannel channel) throws IOException {
+    long size = channel.size();
+    List<long[]> ranges = new ArrayList<>();
+    long start = 0;
+    while (start < size) {
+      long end = start + chunkBytes >= size ? size : nextBlankLine(channel, start + chunkBytes, size);
+      ranges.add(new long[] {start, end, ranges.size()});
+      start = end;
+    }
+    return ranges;
+  }
+
+  /** @return the offset of the first blank line that starts at or after position, or size if there isn't one. */
+  private static long nextBlankLine(FileChannel channel, long position, long size) throws IOException {
+    ByteBuffer window = ByteBuffer.allocate(SCAN_BYTES);
+    // back up one byte so a newline right before position still counts as the end of the previous line.
+    long offset = position - 1;
+    boolean afterNewline = false;
+    long lineStart = -1;
+    while (offset < size) {
+      window.clear();
+      int amount = channel.read(window, offset);
+      if(amount <= 0) break;
+      for (int i = 0; i < amount; i++) {
+        byte b = window.get(i);
+        if(b == '\n') {
+          if(afterNewline && lineStart >= 0) {
+            return lineStart; // everything since the last newline was whitespace.
+          }
+          afterNewline = true;
+          lineStart = offset + i + 1;
+        } else if((b & 0xff) > ' ') {
+          afterNewline = false;
+          lineStart = -1;
+        }
+      }
+      offset += amount;
+    }
+    return (afterNewline && lineStart >= 0) ? lineStart : size;
+  }
+
+  private Chunk parse(FileChannel channel, long[] range) {
+    long start = range[0];
+    long end = range[1];
+    byte[] data = new byte[(int) (end - start)];
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(data);
+      while (buffer.hasRemaining()) {
+        if(channel.read(buffer, start + buffer.position()) < 0) break;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    Chunk chunk = new Chunk((int) range[2]);
+    int[] tabs = new int[64];
+    int lineStart = 0;
+    while (lineStart < data.length) {
+      int lineEnd = lineStart;
+      while (lineEnd < data.length && data[lineEnd] != '\n') lineEnd++;
+      int next = lineEnd + 1;
+      if(lineEnd > lineStart && data[lineEnd - 1] == '\r') lineEnd--;
+
+      if(isBlank(data, lineStart, lineEnd)) {
+        chunk.endSentence();
+        lineStart = next;
+        continue;
+      }
+
+      // same fields as line.split("\t"), which drops trailing empty ones.
+      int numFields = 0;
+      int fieldStart = lineStart;
+      for (int i = lineStart; i <= lineEnd; i++) {
+        if(i == lineEnd || data[i] == '\t') {
+          if(numFields * 2 + 2 > tabs.length) {
+            int[] bigger = new int[tabs.length * 2];
+            System.arraycopy(tabs, 0, bigger, 0, tabs.length);
+            tabs = bigger;
+          }
+          tabs[numFields * 2] = fieldStart;
+          tabs[numFields * 2 + 1] = i;
+          numFields++;
+          fieldStart = i + 1;
+        }
+      }
+      while (numFields > 0 && tabs[numFields * 2 - 2] == tabs[numFields * 2 - 1]) numFields--;
+
+      String label = new String(data, tabs[0], tabs[1] - tabs[0], StandardCharsets.UTF_8);
+      int[] features = new int[numFields - 1];
+      for (int f = 1; f < numFields; f++) {
+        int from = tabs[f * 2];
+        features[f-1] = chunk.dictionary.getOrAdd(new String(data, from, tabs[f * 2 + 1] - from, StandardCharsets.UTF_8));
+      }
+      chunk.addToken(label, features);
+      lineStart = next;
+    }
+    chunk.endSentence();
+    return chunk;
+  }
+
+  private static boolean isBlank(byte[] data, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if((data[i] & 0xff) > ' ') return false;
+    }
+    return true;
+  }
+
+  /** Tokens of one range with ids from its own dictionary, in line order (the first is the token name). */
+  private static class Chunk {
+    final int index;
+    final FeatureDictionary dictionary = new FeatureDictionary();
+    final List<String> labels = new ArrayList<>();
+    final List<int[]> features = new ArrayList<>();
+    final TIntArrayList sentenceEnds = new TIntArrayList();
+
+    Chunk(int index) {
+      this.index = index;
+    }
+
+    void addToken(String label, int[] ids) {
+      labels.add(label);
+      features.add(ids);
+    }
+
+    void endSentence() {
+      int lastEnd = sentenceEnds.isEmpty() ? 0 : sentenceEnds.get(sentenceEnds.size() - 1);
+      if(labels.size() > lastEnd) {
+        sentenceEnds.add(labels.size());
+      }
+    }
+
+    List<List<SimpleToken>> toSentences(int[] mapping, FeatureDictionary target) {
+      List<List<SimpleToken>> sentences = new ArrayList<>(sentenceEnds.size());
+      int t = 0;
+      for (int s = 0; s < sentenceEnds.size(); s++) {
+        int end = sentenceEnds.get(s);
+        List<SimpleToken> sentence = new ArrayList<>(end - t);
+        for (; t < end; t++) {
+          int[] ids = features.get(t);
+          String first = dictionary.getName(ids[0]);
+          String token = target.lemmaFor(first, mapping[ids[0]]);
+          // one id per distinct string before mapping, so the target decides what its collisions count for.
+          ids = FeatureDictionary.sortedUnique(ids, ids.length);
+          for (int i = 0; i < ids.length; i++) {
+            ids[i] = mapping[ids[i]];
+          }
+          sentence.add(new SimpleToken(labels.get(t), token, target.vectorOfDistinct(ids, ids.length), target));
+        }
+        sentences.add(sentence);
+      }
+      return sentences;
+    }
+  }
+}
@@ -0,0 +1,183 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * AUC, AP, P@k and the confusion counts at a threshold, from parallel score and truth arrays in one sort and one sweep.
+ *
+ * Positive and negative scores are sorted separately (in parallel, for big inputs) and merged highest-first.
+ * These are not chai's {@code AUC} and {@code BinaryClassifierInfo} numbers, which depended on the order tied items
+ * happened to arrive in (for the unique measures, a HashMap's). Here, measures version {@link #VERSION}:
+ * <ul>
+ *   <li>Tied scores are treated as every order of the tie being equally likely: AUC counts a tied (positive, negative)
+ *   pair as half, and AP and P@k are their expected values over the tie (McSherry and Najork, 2008).</li>
+ *   <li>P@k always divides by k; ranks past the end of a short ranking count as misses.</li>
+ *   <li>A score strictly above the threshold is a positive prediction.</li>
+ *   <li>A NaN score (e.g., from a model that diverged) ranks with -Infinity, below every real score.</li>
+ * </ul>
+ * Sparse models leave many tokens tied (often at 0), so AP, uAP and F1 move relative to older runs; anything that
+ * saves measures should save {@link #VERSION} with them.
+ * @author jfoley
+ */
+public class RankingMetrics {
+  /** Bumped whenever a definition above changes, so measures from different definitions aren't compared. */
+  public static final int VERSION = 2;
+  public static final int[] DEFAULT_DEPTHS = {10, 100, 1000};
+
+  public final int numPositive;
+  public final int numNegative;
+  public final double auc;
+  public final double averagePrecision;
+  /** Requested depths, and the (expected) precision at each. */
+  public final int[] depths;
+  public final double[] precisionAtDepth;
+  public final long truePositives;
+  public final long falsePositives;
+  public final long trueNegatives;
+  public final long falseNegatives;
+
+  private RankingMetrics(int numPositive, int numNegative, double auc, double averagePrecision, int[] depths, double[] precisionAtDepth,
+                         long truePositives, long falsePositives, long trueNegatives, long falseNegatives) {
+    this.numPositive = numPositive;
+    this.numNegative = numNegative;
+    this.auc = auc;
+    this.averagePrecision = averagePrecision;
+    this.depths = depths;
+    this.precisionAtDepth = precisionAtDepth;
+    this.truePositives = truePositives;
+    this.falsePositives = falsePositives;
+    this.trueNegatives = trueNegatives;
+    this.falseNegatives = falseNegatives;
+  }
+
+  /** Look at the first n entries of scores and truth. */
+  public static RankingMetrics compute(double[] scores, boolean[] truth, int n, double threshold, int... depths) {
+    int numPositive = 0;
+    for (int i = 0; i < n; i++) {
+      if(truth[i]) numPositive++;
+    }
+    int numNegative = n - numPositive;
+    double[] positives = new double[numPositive];
+    double[] negatives = new double[numNegative];
+    int numNaN = 0;
+    for (int i = 0, p = 0, q = 0; i < n; i++) {
+      double score = scores[i];
+      // NaN equals nothing, not even itself, so it would never leave the sweep below.
+      if(Double.isNaN(score)) {
+        score = Double.NEGATIVE_INFINITY;
+        numNaN++;
+      }
+      if(truth[i]) {
+        positives[p++] = score;
+      } else {
+        negatives[q++] = score;
+      }
+    }
+    if(numNaN > 0) {
+      Instrumentation.count("metrics.nanScores", numNaN);
+    }
+    // ascending; we walk both from the top.
+    Arrays.parallelSort(positives);
+    Arrays.parallelSort(negatives);
+
+    int[] sortedDepths = depths.clone();
+    Arrays.sort(sortedDepths);
+    double[] precisionAtDepth = new double[sortedDepths.length];
+    int nextDepth = 0;
+
+    double correctlyOrderedPairs = 0;
+    double sumPrecision = 0;
+    long tp = 0, fp = 0, tn = 0, fn = 0;
+    int p = numPositive - 1;
+    int q = numNegative - 1;
+    int above = 0; // items ranked before the current tie group
+    int positivesAbove = 0;
+    while (p >= 0 || q >= 0) {
+      double score = p < 0 ? negatives[q] : q < 0 ? positives[p] : Math.max(positives[p], negatives[q]);
+      int pg = 0;
+      while (p >= 0 && positives[p] == score) { pg++; p--; }
+      int ng = 0;
+      while (q >= 0 && negatives[q] == score) { ng++; q--; }
+      int g = pg + ng;
+
+      // negatives below this group, plus half of those tied with it:
+      correctlyOrderedPairs += pg * ((q + 1) + 0.5 * ng);
+
+      if(score > threshold) {
+        tp += pg;
+        fp += ng;
+      } else {
+        fn += pg;
+        tn += ng;
+      }
+
+      if(pg > 0) {
+        // E[rel(j) * precision(j)] at each position j of the group, over orders of the tie.
+        for (int j = 1; j <= g; j++) {
+          double positivesThrough = positivesAbove + 1 + (g == 1 ? 0 : (j - 1) * (pg - 1) / (double) (g - 1));
+          sumPrecision += (pg / (double) g) * positivesThrough / (above + j);
+        }
+      }
+
+      while (nextDepth < sortedDepths.length && sortedDepths[nextDepth] <= above + g) {
+        int k = sortedDepths[nextDepth];
+        precisionAtDepth[nextDepth++] = k <= 0 ? 0 : (positivesAbove + (k - above) * (pg / (double) g)) / k;
+      }
+
+      above += g;
+      positivesAbove += pg;
+    }
+    // deeper than the whole ranking: the missing ranks count as misses.
+    for (; nextDepth < sortedDepths.length; nextDepth++) {
+      int k = sortedDepths[nextDepth];
+      precisionAtDepth[nextDepth] = k <= 0 ? 0 : positivesAbove / (double) k;
+    }
+
+    double auc = numPositive == 0 || numNegative == 0 ? 0 : correctlyOrderedPairs / ((double) numPositive * numNegative);
+    double ap = numPositive == 0 ? 0 : sumPrecision / numPositive;
+    return new RankingMetrics(numPositive, numNegative, auc, ap, sortedDepths, precisionAtDepth, tp, fp, tn, fn);
+  }
+
+  public double precisionAt(int depth) {
+    int i = Arrays.binarySearch(depths, depth);
+    if(i < 0) throw new IllegalArgumentException("P@" + depth + " wasn't computed; have " + Arrays.toString(depths));
+    return precisionAtDepth[i];
+  }
+
+  public double precision() {
+    return truePositives + falsePositives == 0 ? 0 : truePositives / (double) (truePositives + falsePositives);
+  }
+
+  public double recall() {
+    return truePositives + falseNegatives == 0 ? 0 : truePositives / (double) (truePositives + falseNegatives);
+  }
+
+  public double f1() {
+    double p = precision();
+    double r = recall();
+    return p + r == 0 ? 0 : 2 * p * r / (p + r);
+  }
+
+  public double accuracy() {
+    long total = truePositives + falsePositives + trueNegatives + falseNegatives;
+    return total == 0 ? 0 : (truePositives + trueNegatives) / (double) total;
+  }
+
+  /** The usual measure names (AUC, P10, ..., AP, P, R, F1, Accuracy, TP, FP, TN, FN), each after prefix. */
+  public void putMeasures(String prefix, Map<String, Double> measures) {
+    measures.put(prefix + "AUC", auc);
+    for (int i = 0; i < depths.length; i++) {
+      measures.put(prefix + "P" + depths[i], precisionAtDepth[i]);
+    }
+    measures.put(prefix + "AP", averagePrecision);
+    measures.put(prefix + "P", precision());
+    measures.put(prefix + "R", recall());
+    measures.put(prefix + "F1", f1());
+    measures.put(prefix + "Accuracy", accuracy());
+    measures.put(prefix + "TP", (double) truePositives);
+    measures.put(prefix + "FP", (double) falsePositives);
+    measures.put(prefix + "TN", (double) trueNegatives);
+    measures.put(prefix + "FN", (double) falseNegatives);
+  }
+}
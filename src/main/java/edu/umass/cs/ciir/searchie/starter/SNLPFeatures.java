@@ -2,16 +2,23 @@ package edu.umass.cs.ciir.searchie.starter;
 
 import ciir.jfoley.chai.collections.util.MapFns;
 import ciir.jfoley.chai.string.StrUtil;
+import gnu.trove.list.array.TIntArrayList;
+import org.lemurproject.galago.utility.Parameters;
 
 import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * @author jfoley
  */
 public class SNLPFeatures {
   public static List<IndexOfParser> featureParsers = new ArrayList<>(Arrays.asList(
-      new IndexOfParser("cl") {
+      new IndexOfParser("cl", "###|C") {
         @Override public String parseValue(String input) {
           if("###|C".equals(input)) {
             return "#";
@@ -19,7 +26,7 @@ public class SNLPFeatures {
           return null;
         }
       },
-      new IndexOfParser("ng") {
+      new IndexOfParser("ng", "#|C") {
         @Override public String parseValue(String input) {
           String ng = beforeIfEndsWith(input, "#|C");
           if(ng != null) {
@@ -29,89 +36,20 @@ public class SNLPFeatures {
           return null;
         }
       },
-      new IndexOfParser("w[R]") {
-        @Override public String parseValue(String input) {
-          return beforeIfEndsWith(input, "-DISJN|C");
-        }
-      },
-      new IndexOfParser("w[L]") {
-        @Override public String parseValue(String input) {
-          return beforeIfEndsWith(input, "-DISJP|C");
-        }
-      },
-      new IndexOfParser("w[-1]") {
-        @Override public String parseValue(String input) {
-          String result = beforeIfEndsWith(input, "-PW|C");
-          if(result != null) return result;
-          result = beforeIfEndsWith(input, "-PSEQpW|CpC");
-          return result;
-        }
-      },
-      new IndexOfParser("p[1]") {
-        @Override public String parseValue(String input) {
-          return beforeIfEndsWith(input, "-NTAG|C");
-        }
-      },
-      new IndexOfParser("sh[-1,0,1]") {
-        @Override public String parseValue(String input) {
-          String result = beforeIfEndsWith(input, "-PCNTYPE|C");
-          return result;
-        }
-      },
-      new IndexOfParser("sh[-1,0]") {
-        @Override public String parseValue(String input) {
-          String result = beforeIfEndsWith(input, "-PCTYPE|C");
-          if(result != null) return result;
-          result = beforeIfEndsWith(input, "-TYPES|CpC");
-          if(result != null) return result;
-          return result;
-        }
-      },
-      new IndexOfParser("w[0]") {
-        @Override public String parseValue(String input) {
-          String result = beforeIfEndsWith(input, "-WORD|C");
-          if(result != null) return result;
-          result = beforeIfEndsWith(input, "-PSEQW|CpC");
-          if(result != null) return result;
-          return result;
-        }
-      },
-      new IndexOfParser("c[1]") {
-        @Override public String parseValue(String input) {
-          return beforeIfEndsWith(input, "-NDISTSIM|C");
-        }
-      },
-      new IndexOfParser("sh[0]w[-2]") {
-        @Override public String parseValue(String input) {
-          return beforeIfEndsWith(input, "-PPW_CTYPE|C");
-        }
-      },
-      new IndexOfParser("w[0]p[-1]") {
-        @Override public String parseValue(String input) {
-          return beforeIfEndsWith(input, "-W-PT|C");
-        }
-      },
-      new IndexOfParser("sh[0,1]") {
-        @Override public String parseValue(String input) {
-          return beforeIfEndsWith(input, "-CNTYPE|C");
-        }
-      },
-      new IndexOfParser("sh[0]") {
-        @Override public String parseValue(String input) {
-          String result = beforeIfEndsWith(input, "-TYPE|C");
-          if(result != null) return result;
-          result = beforeIfEndsWith(input, "-TPS2|CpC");
-          if(result != null) return result;
-          result = beforeIfEndsWith(input, "-PSEQcS|CpC");
-          if(result != null) return result;
-          return result;
-        }
-      },
-      new IndexOfParser("w[0]p[1]") {
-        @Override public String parseValue(String input) {
-          return beforeIfEndsWith(input, "-W-NT|C");
-        }
-      },
+      new SuffixParser("w[R]", "-DISJN|C"),
+      new SuffixParser("w[L]", "-DISJP|C"),
+      new SuffixParser("w[-1]", "-PW|C", "-PSEQpW|CpC"),
+      new SuffixParser("p[1]", "-NTAG|C"),
+      new SuffixParser("sh[-1,0,1]", "-PCNTYPE|C"),
+      new SuffixParser("sh[-1,0]", "-PCTYPE|C", "-TYPES|CpC"),
+      new SuffixParser("w[0]", "-WORD|C", "-PSEQW|CpC"),
+      new SuffixParser("c[1]", "-NDISTSIM|C"),
+      new SuffixParser("sh[0]w[-2]", "-PPW_CTYPE|C"),
+      new SuffixParser("w[0]p[-1]", "-W-PT|C"),
+      new SuffixParser("sh[0,1]", "-CNTYPE|C"),
+      new SuffixParser("sh[0]", "-TYPE|C", "-TPS2|CpC", "-PSEQcS|CpC"),
+      new SuffixParser("w[0]p[1]", "-W-NT|C"),
+      // no suffixes: "NO-OCCURRENCE-PATTERN..." matches by prefix, so this one is tried on everything.
       new IndexOfParser("ocp") {
         @Override public String parseValue(String input) {
           if(input.contains("OCCURRENCE")) {
@@ -125,98 +63,44 @@ public class SNLPFeatures {
           return null;
         }
       },
-      new IndexOfParser("w[1]") {
-        @Override public String parseValue(String input) {
-          return beforeIfEndsWith(input, "-NW|C");
-        }
-      },
-      new IndexOfParser("sh[0]w[-1]") {
-        @Override public String parseValue(String input) {
-          return beforeIfEndsWith(input, "-PW_CTYPE|C");
-        }
-      },
-      new IndexOfParser("ti") {
+      new SuffixParser("w[1]", "-NW|C"),
+      new SuffixParser("sh[0]w[-1]", "-PW_CTYPE|C"),
+      new IndexOfParser("ti", "IS_TITLE|C") {
         @Override public String parseValue(String input) {
           if("IS_TITLE|C".equals(input)) return "TITLE";
           return null;
         }
       },
-      new IndexOfParser("sh[0]w[2]") {
-        @Override public String parseValue(String input) {
-          return beforeIfEndsWith(input, "-NNW_CTYPE|C");
-        }
-      },
-      new IndexOfParser("c[0]") {
-        @Override public String parseValue(String input) {
-          String result = beforeIfEndsWith(input, "-DISTSIM|C");
-          if(result != null) return result;
-          result = beforeIfEndsWith(input, "-PSEQcDS|CpC");
-          if(result != null) return result;
-          return result;
-        }
-      },
-      new IndexOfParser("c[-1]") {
-        @Override public String parseValue(String input) {
-          String result = beforeIfEndsWith(input, "-PDISTSIM|C");
-          if(result != null) return result;
-          result = beforeIfEndsWith(input, "-PSEQpDS|CpC");
-          if(result != null) return result;
-          return result;
-        }
-      },
-      new IndexOfParser("c[-1,0]") {
-        @Override public String parseValue(String input) {
-          return beforeIfEndsWith(input, "-PSEQpcDS|CpC");
-        }
-      },
-      new IndexOfParser("p[0]") {
-        @Override public String parseValue(String input) {
-          return beforeIfEndsWith(input, "-TAG|C");
-        }
-      },
-      new IndexOfParser("sh[0]w[1]") {
-        @Override public String parseValue(String input) {
-          return beforeIfEndsWith(input, "-NW_CTYPE|C");
-        }
-      },
-      new IndexOfParser("sh[-1]") {
-        @Override public String parseValue(String input) {
-          String result = beforeIfEndsWith(input, "-PTYPE|C");
-          if(result != null) return result;
-          result = beforeIfEndsWith(input, "-PSEQpS|CpC");
-          return result;
-        }
-      },
-      new IndexOfParser("sh[1]") {
-        @Override public String parseValue(String input) {
-          String result = beforeIfEndsWith(input, "-NTYPE|C");
-          if(result != null) return result;
-          result = beforeIfEndsWith(input, "-TNS1|CpC");
-          if(result != null) return result;
-          return result;
-        }
-      },
-      new IndexOfParser("w[-1,0]") {
-        @Override public String parseValue(String input) {
-          return beforeIfEndsWith(input, "-PSEQW2|CpC");
-        }
-      },
-      new IndexOfParser("w[0]p[0]") {
-        @Override public String parseValue(String input) {
-          return beforeIfEndsWith(input, "-W-T|C");
-        }
-      },
-      new IndexOfParser("p[-1]") {
-        @Override public String parseValue(String input) {
-          return beforeIfEndsWith(input, "-PTAG|C");
-        }
-      }
+      new SuffixParser("sh[0]w[2]", "-NNW_CTYPE|C"),
+      new SuffixParser("c[0]", "-DISTSIM|C", "-PSEQcDS|CpC"),
+      new SuffixParser("c[-1]", "-PDISTSIM|C", "-PSEQpDS|CpC"),
+      new SuffixParser("c[-1,0]", "-PSEQpcDS|CpC"),
+      new SuffixParser("p[0]", "-TAG|C"),
+      new SuffixParser("sh[0]w[1]", "-NW_CTYPE|C"),
+      new SuffixParser("sh[-1]", "-PTYPE|C", "-PSEQpS|CpC"),
+      new SuffixParser("sh[1]", "-NTYPE|C", "-TNS1|CpC"),
+      new SuffixParser("w[-1,0]", "-PSEQW2|CpC"),
+      new SuffixParser("w[0]p[0]", "-W-T|C"),
+      new SuffixParser("p[-1]", "-PTAG|C")
   ));
 
+  private static volatile SuffixDispatcher dispatcher = null;
+
+  /** The dispatcher for the current {@link #featureParsers}; rebuilt if that list has been changed since. */
+  public static SuffixDispatcher dispatcher() {
+    SuffixDispatcher current = dispatcher;
+    if(current == null || !current.compiledFrom(featureParsers)) {
+      current = new SuffixDispatcher(featureParsers);
+      dispatcher = current;
+    }
+    return current;
+  }
+
   public static Set<String> parseAllFeatures(Collection<String> inputFeatures) {
+    SuffixDispatcher parsers = dispatcher();
     HashSet<String> ft = new HashSet<>();
     for (String inputFeature : inputFeatures) {
-      parseStanfordNERFeatures(inputFeature, ft);
+      parseStanfordNERFeatures(parsers, inputFeature, ft);
     }
     return ft;
   }
@@ -227,35 +111,115 @@ public class SNLPFeatures {
     return MapFns.mapValues(ftText, xs -> StrUtil.join(new ArrayList<>(xs), " "));
   }
   public static void toFieldFeatures(Collection<String> inputFeatures, Map<String, Set<String>> ftText) {
+    SuffixDispatcher parsers = dispatcher();
     for (String inputFeature : inputFeatures) {
-      for ( IndexOfParser parser : featureParsers ) {
+      for ( IndexOfParser parser : parsers.candidates(inputFeature) ) {
         parser.extractToFielded(inputFeature , ftText);
       }
     }
   }
 
-  private static void parseStanfordNERFeatures( String fstr, Set<String> parsed_features ) {
+  private static void parseStanfordNERFeatures( SuffixDispatcher parsers, String fstr, Set<String> parsed_features ) {
+    String fvalue = parseStanfordNERFeature(parsers, fstr);
+    if(fvalue != null) {
+      parsed_features.add(fvalue);
+    }
+  }
+
+  /** @return "key=value" from the first parser that accepts fstr, or null. */
+  @Nullable
+  private static String parseStanfordNERFeature( SuffixDispatcher parsers, String fstr ) {
     fstr = fstr.trim();
-    if(fstr.equals("PSEQ|CpC")) return;
-    boolean found = false;
-    for ( IndexOfParser parser : featureParsers ) {
+    if(fstr.equals("PSEQ|CpC")) return null;
+    for ( IndexOfParser parser : parsers.candidates(fstr) ) {
       String fvalue = parser.parse( fstr );
       if ( fvalue != null ) {
-        parsed_features.add(fvalue);
-        found = true;
+        return fvalue;
+      }
+    }
+    System.err.println(fstr);
+    return null;
+  }
+
+  /**
+   * Parse every feature in a dictionary once, on all cores.
+   * @return the "key=value" feature for each id, or null where nothing parses it.
+   */
+  public static String[] parseDictionary(FeatureDictionary dictionary) {
+    SuffixDispatcher parsers = dispatcher();
+    String[] parsed = new String[dictionary.size()];
+    IntStream.range(0, parsed.length).parallel().forEach(id -> parsed[id] = parseStanfordNERFeature(parsers, dictionary.getName(id)));
+    return parsed;
+  }
+
+  /**
+   * {@link #parseAllFeatures} for every token of a corpus. Each distinct feature string is parsed once (see
+   * {@link #parseDictionary}), then tokens are rewritten in parallel into target. Lemmas become their parsed form.
+   */
+  public static List<List<SimpleToken>> parseCorpus(List<List<SimpleToken>> sentences, FeatureDictionary target) {
+    FeatureDictionary source = null;
+    for (List<SimpleToken> sentence : sentences) {
+      if(!sentence.isEmpty()) {
+        source = sentence.get(0).getDictionary();
         break;
       }
     }
-    if(!found) {
-      System.err.println(fstr);
+    if(source == null) return new ArrayList<>();
+
+    String[] parsed = parseDictionary(source);
+    int[] mapping = new int[parsed.length];
+    for (int id = 0; id < parsed.length; id++) {
+      mapping[id] = parsed[id] == null ? FeatureDictionary.MISSING : target.getOrAdd(parsed[id]);
     }
+    // lemmas that don't parse keep their raw string, so every lemma is still in the dictionary.
+    FeatureDictionary from = source;
+    int[] lemmaMapping = mapping.clone();
+    for (List<SimpleToken> sentence : sentences) {
+      for (SimpleToken token : sentence) {
+        int id = from.get(token.lemma);
+        if(lemmaMapping[id] == FeatureDictionary.MISSING) {
+          lemmaMapping[id] = target.getOrAdd(token.lemma);
+        }
+      }
+    }
+
+    return sentences.parallelStream().map(sentence -> {
+      List<SimpleToken> output = new ArrayList<>(sentence.size());
+      for (SimpleToken token : sentence) {
+        if(token.getDictionary() != from) throw new IllegalArgumentException("All tokens must share one FeatureDictionary.");
+        int[] ids = new int[token.features.length];
+        int n = 0;
+        for (int id : token.features) {
+          if(mapping[id] != FeatureDictionary.MISSING) ids[n++] = mapping[id];
+        }
+        String lemma = target.getName(lemmaMapping[from.get(token.lemma)]);
+        output.add(new SimpleToken(token.getLabel(), lemma, target.vectorOfDistinct(ids, n), target));
+      }
+      return output;
+    }).collect(Collectors.toList());
+  }
+
+  /** Rewrite a raw .crfsuite file into one with parsed "key=value" features, e.g., for training on those instead. */
+  public static void convertCorpus(File input, File output) throws IOException {
+    List<List<SimpleToken>> parsed = parseCorpus(SimpleToken.loadCRFSuiteInputFormatParallel(input, new FeatureDictionary()), new FeatureDictionary());
+    try (CRFSuiteWriter out = new CRFSuiteWriter(new FileOutputStream(output), null)) {
+      out.writeAll(parsed);
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    Parameters argp = Parameters.parseArgs(args);
+    convertCorpus(new File(argp.getString("input")), new File(argp.getString("output")));
   }
 
   public static abstract class IndexOfParser {
     final String key;
+    /** parseValue only ever accepts input ending in one of these; none means it has to be tried on everything. */
+    final String[] suffixes;
 
-    public IndexOfParser(String key) {
+    public IndexOfParser(String key, String... suffixes) {
       this.key = key;
+      this.suffixes = suffixes;
     }
 
     public final String beforeIfEndsWith(String input, String query) {
@@ -279,4 +243,111 @@ public class SNLPFeatures {
     @Nullable
     abstract public String parseValue(String input);
   }
-}
\ No newline at end of file
+
+  /** The common case: strip the first of these suffixes that the input ends with. */
+  public static class SuffixParser extends IndexOfParser {
+    public SuffixParser(String key, String... suffixes) {
+      super(key, suffixes);
+    }
+
+    @Override public String parseValue(String input) {
+      for (String suffix : suffixes) {
+        String result = beforeIfEndsWith(input, suffix);
+        if(result != null) return result;
+      }
+      return null;
+    }
+  }
+
+  /**
+   * A trie of every parser's suffixes, reversed, so one backward scan over a feature string finds the few parsers
+   * that could accept it. Candidates keep their order in the parser list, so trying them in turn gives the same
+   * first-match-wins answer as trying every parser.
+   */
+  public static class SuffixDispatcher {
+    private final IndexOfParser[] parsers;
+    private final Node root;
+
+    private static class Node {
+      char[] keys = new char[0];
+      Node[] children = new Node[0];
+      /** Parsers declaring a suffix that ends here. */
+      TIntArrayList own = new TIntArrayList();
+      /** Parsers that could accept any input whose scan reaches this node, in list order. */
+      IndexOfParser[] candidates;
+
+      Node child(char c) {
+        for (int i = 0; i < keys.length; i++) {
+          if(keys[i] == c) return children[i];
+        }
+        return null;
+      }
+
+      Node getOrAdd(char c) {
+        Node found = child(c);
+        if(found != null) return found;
+        keys = Arrays.copyOf(keys, keys.length + 1);
+        children = Arrays.copyOf(children, children.length + 1);
+        keys[keys.length - 1] = c;
+        children[children.length - 1] = found = new Node();
+        return found;
+      }
+    }
+
+    public SuffixDispatcher(List<IndexOfParser> parsers) {
+      this.parsers = parsers.toArray(new IndexOfParser[0]);
+      this.root = new Node();
+      for (int i = 0; i < this.parsers.length; i++) {
+        String[] suffixes = this.parsers[i].suffixes;
+        if(suffixes.length == 0) {
+          root.own.add(i);
+          continue;
+        }
+        for (String suffix : suffixes) {
+          Node node = root;
+          for (int j = suffix.length() - 1; j >= 0; j--) {
+            node = node.getOrAdd(suffix.charAt(j));
+          }
+          node.own.add(i);
+        }
+      }
+      finish(root, new TIntArrayList());
+    }
+
+    private void finish(Node node, TIntArrayList inherited) {
+      TIntArrayList here = new TIntArrayList(inherited);
+      here.addAll(node.own);
+      here.sort();
+      IndexOfParser[] candidates = new IndexOfParser[here.size()];
+      int n = 0;
+      for (int i = 0; i < here.size(); i++) {
+        if(i > 0 && here.get(i) == here.get(i - 1)) continue; // one parser, two nested suffixes.
+        candidates[n++] = parsers[here.get(i)];
+      }
+      node.candidates = Arrays.copyOf(candidates, n);
+      node.own = null;
+      for (Node child : node.children) {
+        finish(child, here);
+      }
+    }
+
+    /** Every parser that might accept input, in list order; the rest certainly return null. */
+    public IndexOfParser[] candidates(String input) {
+      Node node = root;
+      for (int i = input.length() - 1; i >= 0; i--) {
+        Node next = node.child(input.charAt(i));
+        if(next == null) break;
+        node = next;
+      }
+      return node.candidates;
+    }
+
+    boolean compiledFrom(List<IndexOfParser> current) {
+      if(current.size() != parsers.length) return false;
+      for (int i = 0; i < parsers.length; i++) {
+        if(current.get(i) != parsers[i]) return false;
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import ciir.jfoley.chai.io.LinesIterable;
+import org.lemurproject.galago.utility.Parameters;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Talks to a {@link ScoringServer}; its main is a load generator that sends sentences from a crfsuite file over many
+ * connections at once and reports round-trip latency per sentence and throughput.
+ * @author jfoley
+ */
+public class ScoringClient implements Closeable {
+  private final Socket socket;
+  private final BufferedReader in;
+  private final Writer out;
+
+  public ScoringClient(String host, int port) throws IOException {
+    this.socket = new Socket(host, port);
+    socket.setTcpNoDelay(true);
+    this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), 1 << 16);
+    this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 1 << 16);
+  }
+
+  /** Send a command (e.g. "#model PER", "#stats") and return the reply. */
+  public String command(String line) throws IOException {
+    out.write(line);
+    out.write('\n');
+    out.flush();
+    return in.readLine();
+  }
+
+  /** Score a sentence of token lines (label, tab, features) in one round trip. */
+  public double[] scoreSentence(List<String> tokenLines) throws IOException {
+    for (String line : tokenLines) {
+      out.write(line);
+      out.write('\n');
+    }
+    out.write('\n');
+    out.flush();
+    double[] scores = new double[tokenLines.size()];
+    for (int i = 0; i < scores.length; i++) {
+      String reply = in.readLine();
+      if(reply == null) throw new IOException("Server closed the connection.");
+      if(reply.startsWith("ERROR")) throw new IOException(reply);
+      scores[i] = Double.parseDouble(reply);
+    }
+    if(!"".equals(in.readLine())) throw new IOException("Expected a sentence break.");
+    return scores;
+  }
+
+  @Override
+  public void close() throws IOException {
+    socket.close();
+  }
+
+  /** Sentences of raw token lines, at most maxSentences of them. */
+  public static List<List<String>> readSentences(File input, int maxSentences) throws IOException {
+    List<List<String>> sentences = new ArrayList<>();
+    List<String> current = new ArrayList<>();
+    try (LinesIterable lines = LinesIterable.fromFile(input)) {
+      for (String line : lines) {
+        if(line.trim().isEmpty()) {
+          if(!current.isEmpty()) {
+            sentences.add(current);
+            current = new ArrayList<>();
+            if(sentences.size() >= maxSentences) break;
+          }
+        } else {
+          current.add(line);
+        }
+      }
+    }
+    if(!current.isEmpty() && sentences.size() < maxSentences) {
+      sentences.add(current);
+    }
+    return sentences;
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    // java ... ScoringClient --port=8123 --input=data/testb.snlpl.all.crfsuite --connections=8 --seconds=30
+    Parameters argp = Parameters.parseArgs(args);
+    String host = argp.get("host", "localhost");
+    int port = argp.get("port", 8123);
+    List<List<String>> sentences = readSentences(new File(argp.get("input", "data/testb.snlpl.all.crfsuite")), argp.get("sentences", 10000));
+    if(sentences.isEmpty()) throw new IllegalArgumentException("No sentences to send.");
+    int numConnections = argp.get("connections", 8);
+    long warmupNanos = TimeUnit.SECONDS.toNanos(argp.get("warmup", 5L));
+    long deadline = System.nanoTime() + warmupNanos + TimeUnit.SECONDS.toNanos(argp.get("seconds", 30L));
+    String model = argp.get("model", (String) null);
+
+    LatencyHistogram latency = new LatencyHistogram();
+    AtomicInteger next = new AtomicInteger();
+    AtomicLong tokens = new AtomicLong();
+    long measuredStart = System.nanoTime() + warmupNanos;
+    List<Thread> threads = new ArrayList<>();
+    List<Throwable> errors = new ArrayList<>();
+    for (int c = 0; c < numConnections; c++) {
+      Thread thread = new Thread(() -> {
+        try (ScoringClient client = new ScoringClient(host, port)) {
+          if(model != null) {
+            String reply = client.command("#model " + model);
+            if(!reply.startsWith("OK")) throw new IOException(reply);
+          }
+          while (true) {
+            long start = System.nanoTime();
+            if(start > deadline) break;
+            List<String> sentence = sentences.get(Math.floorMod(next.getAndIncrement(), sentences.size()));
+            client.scoreSentence(sentence);
+            // only count what happens after warmup.
+            if(start >= measuredStart) {
+              latency.recordSince(start);
+              tokens.addAndGet(sentence.size());
+            }
+          }
+        } catch (IOException e) {
+          synchronized (errors) {
+            errors.add(e);
+          }
+        }
+      }, "load-" + c);
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (Throwable error : errors) {
+      System.err.println(error);
+    }
+
+    double seconds = (System.nanoTime() - measuredStart) / 1e9;
+    Parameters report = Parameters.create();
+    report.put("connections", numConnections);
+    report.put("seconds", seconds);
+    report.put("sentencesPerSecond", latency.count() / seconds);
+    report.put("tokensPerSecond", tokens.get() / seconds);
+    report.put("sentenceLatency", latency.toParameters());
+    try (ScoringClient client = new ScoringClient(host, port)) {
+      report.put("server", Parameters.parseString(client.command("#stats")));
+    }
+    System.out.println(report.toPrettyString());
+  }
+}
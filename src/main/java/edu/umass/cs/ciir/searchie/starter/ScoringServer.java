@@ -0,0 +1,370 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import org.lemurproject.galago.utility.Parameters;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps trained models in memory and scores tokens sent over a local socket, so a tagging pipeline doesn't pay JVM
+ * startup, corpus loading and training per document.
+ *
+ * The protocol is lines of UTF-8. A token is a line as in {@link SimpleToken#loadCRFSuiteInputFormat}: a label
+ * (ignored), then tab-separated features; the reply is one line with its score. A blank line (a sentence break) is
+ * echoed. "#model NAME" switches this connection to another loaded model, and "#stats" replies with a line of JSON.
+ * Replies come back in request order, so a client can send a whole sentence before reading.
+ *
+ * Tokens from every connection go into one queue; a batcher thread takes whatever has arrived (waiting at most
+ * maxDelayMicros for more, up to maxBatch) and hands the batch to the worker pool.
+ *
+ * That queue (maxQueued tokens), the batches waiting for a worker, and each connection's unsent replies (maxPending) are bounded. When either is
+ * full, the connection's reader stops reading until there's room, so a client that sends faster than we score, or
+ * stops reading its replies, is held back by TCP instead of growing the heap and everyone's latency.
+ * @author jfoley
+ */
+public class ScoringServer implements Closeable {
+  public final Map<String, TokenClassifier> models;
+  public final int maxBatch;
+  public final long maxDelayNanos;
+  public final int maxPending;
+  private final ServerSocket socket;
+  private final ExecutorService workers;
+  private final BlockingQueue<Request> queue;
+  private volatile boolean running = true;
+  private Thread batcher;
+
+  /** Time from a token being read until its score is ready. */
+  public final LatencyHistogram latency = new LatencyHistogram();
+  public final AtomicLong tokens = new AtomicLong();
+  public final AtomicLong batches = new AtomicLong();
+  public final AtomicInteger connections = new AtomicInteger();
+  private final long started = System.nanoTime();
+
+  public ScoringServer(Map<String, TokenClassifier> models, int port, int threads, int maxBatch, long maxDelayMicros) throws IOException {
+    this(models, port, threads, maxBatch, maxDelayMicros, maxBatch * threads * 4, 4096);
+  }
+
+  public ScoringServer(Map<String, TokenClassifier> models, int port, int threads, int maxBatch, long maxDelayMicros, int maxQueued, int maxPending) throws IOException {
+    if(models.isEmpty()) throw new IllegalArgumentException("No models to serve.");
+    this.models = models;
+    this.maxBatch = maxBatch;
+    this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+    this.maxPending = maxPending;
+    this.queue = new ArrayBlockingQueue<>(maxQueued);
+    this.socket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+    // a few batches wait for a worker; past that the batcher scores one itself, and stops draining the queue meanwhile.
+    this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(threads * 2),
+        TrainingScheduler.daemonThreads("scoring-worker"), new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  public int getPort() {
+    return socket.getLocalPort();
+  }
+
+  private static class Request {
+    final TokenClassifier model;
+    final Set<String> features;
+    final long arrived = System.nanoTime();
+    final CompletableFuture<String> reply = new CompletableFuture<>();
+
+    Request(TokenClassifier model, Set<String> features) {
+      this.model = model;
+      this.features = features;
+    }
+  }
+
+  /** Accept connections and batch their tokens on background threads. */
+  public void start() {
+    batcher = new Thread(this::batchLoop, "scoring-batcher");
+    batcher.setDaemon(true);
+    batcher.start();
+    Thread acceptor = new Thread(this::acceptLoop, "scoring-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  private void acceptLoop() {
+    while (running) {
+      try {
+        Socket client = socket.accept();
+        client.setTcpNoDelay(true);
+        connections.incrementAndGet();
+        new Connection(client).start();
+      } catch (SocketException e) {
+        // closed.
+        return;
+      } catch (IOException e) {
+        System.err.println("accept: " + e.getMessage());
+      }
+    }
+  }
+
+  private void batchLoop() {
+    List<Request> batch = new ArrayList<>();
+    try {
+      while (running) {
+        batch.add(queue.take());
+        queue.drainTo(batch, maxBatch - batch.size());
+        long deadline = batch.get(0).arrived + maxDelayNanos;
+        while (batch.size() < maxBatch) {
+          long wait = deadline - System.nanoTime();
+          if(wait <= 0) break;
+          Request next = queue.poll(wait, TimeUnit.NANOSECONDS);
+          if(next == null) break;
+          batch.add(next);
+          queue.drainTo(batch, maxBatch - batch.size());
+        }
+        List<Request> work = batch;
+        batch = new ArrayList<>();
+        batches.incrementAndGet();
+        workers.execute(() -> score(work));
+      }
+    } catch (InterruptedException e) {
+      // shutting down.
+    }
+    // whatever we took but didn't hand over.
+    fail(batch);
+  }
+
+  private static void fail(List<Request> requests) {
+    for (Request request : requests) {
+      request.reply.complete("ERROR server closed");
+    }
+  }
+
+  /** Answer everything still queued with an error, so no connection waits on a reply that isn't coming. */
+  private void failQueued() {
+    List<Request> leftover = new ArrayList<>();
+    queue.drainTo(leftover);
+    fail(leftover);
+  }
+
+  /** Wait for room in the queue (we stop reading, and the client's sends back up), unless we're closed. */
+  private void enqueue(Request request) throws InterruptedException {
+    while (!queue.offer(request, 100, TimeUnit.MILLISECONDS)) {
+      if(!running) {
+        fail(Collections.singletonList(request));
+        return;
+      }
+    }
+    if(!running) failQueued(); // closed before the batcher could see it.
+  }
+
+  private void score(List<Request> batch) {
+    for (Request request : batch) {
+      try {
+        double score = request.model.score(request.features);
+        latency.recordSince(request.arrived);
+        request.reply.complete(Double.toString(score));
+      } catch (RuntimeException e) {
+        request.reply.complete("ERROR " + e);
+      }
+    }
+    tokens.addAndGet(batch.size());
+  }
+
+  public Parameters stats() {
+    double seconds = (System.nanoTime() - started) / 1e9;
+    Parameters p = Parameters.create();
+    p.put("tokens", tokens.get());
+    p.put("batches", batches.get());
+    p.put("meanBatchSize", batches.get() == 0 ? 0.0 : tokens.get() / (double) batches.get());
+    p.put("connections", (long) connections.get());
+    p.put("uptimeSeconds", seconds);
+    p.put("tokensPerSecond", tokens.get() / seconds);
+    p.put("latency", latency.toParameters());
+    return p;
+  }
+
+  /** Reads requests from one client; a second thread writes the replies back in order. */
+  private class Connection {
+    final Socket client;
+    final BlockingQueue<CompletableFuture<String>> replies = new ArrayBlockingQueue<>(maxPending);
+    final CompletableFuture<String> closed = CompletableFuture.completedFuture(null);
+    /** Set once the writer stops, so a reader waiting for room in replies gives up. */
+    volatile boolean writerDone = false;
+    TokenClassifier model = models.values().iterator().next();
+
+    Connection(Socket client) {
+      this.client = client;
+    }
+
+    void start() {
+      Thread reader = new Thread(this::readLoop, "scoring-reader-" + client.getPort());
+      reader.setDaemon(true);
+      reader.start();
+      Thread writer = new Thread(this::writeLoop, "scoring-writer-" + client.getPort());
+      writer.setDaemon(true);
+      writer.start();
+    }
+
+    void readLoop() {
+      // not closed here: closing a socket's stream closes the socket, and the writer may have replies left to send.
+      try {
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8), 1 << 16);
+        String line;
+        while ((line = in.readLine()) != null) {
+          if(line.trim().isEmpty()) {
+            reply(CompletableFuture.completedFuture(""));
+          } else if(line.startsWith("#")) {
+            reply(CompletableFuture.completedFuture(command(line)));
+          } else {
+            String[] data = line.split("\t");
+            Set<String> features = new HashSet<>(data.length * 2);
+            for (int i = 1; i < data.length; i++) {
+              features.add(data[i]);
+            }
+            Request request = new Request(model, features);
+            reply(request.reply);
+            enqueue(request);
+          }
+        }
+      } catch (IOException | InterruptedException e) {
+        // client went away.
+      } finally {
+        try {
+          reply(closed);
+        } catch (IOException | InterruptedException ignored) { }
+      }
+    }
+
+    /** Queue a reply to be written, waiting while maxPending are already waiting. */
+    void reply(CompletableFuture<String> reply) throws IOException, InterruptedException {
+      while (!replies.offer(reply, 100, TimeUnit.MILLISECONDS)) {
+        if(writerDone) throw new IOException("Client stopped reading.");
+      }
+    }
+
+    String command(String line) {
+      if(line.startsWith("#model ")) {
+        String name = line.substring("#model ".length()).trim();
+        TokenClassifier found = models.get(name);
+        if(found == null) return "ERROR unknown model " + name + "; have " + models.keySet();
+        model = found;
+        return "OK " + name;
+      }
+      if(line.trim().equals("#stats")) {
+        return stats().toString();
+      }
+      return "ERROR unknown command " + line;
+    }
+
+    void writeLoop() {
+      try (Writer out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8), 1 << 16)) {
+        while (true) {
+          CompletableFuture<String> reply = replies.take();
+          if(reply == closed) break;
+          out.write(reply.join());
+          out.write('\n');
+          // flush once we've caught up; replies still queued go out in the same write.
+          if(replies.isEmpty() || !replies.peek().isDone()) {
+            out.flush();
+          }
+        }
+      } catch (IOException | InterruptedException e) {
+        // client went away.
+      } finally {
+        writerDone = true;
+        replies.clear();
+        connections.decrementAndGet();
+        try {
+          client.close();
+        } catch (IOException ignored) { }
+      }
+    }
+  }
+
+  /**
+   * Stop accepting and batching. Batches already with a worker are scored; tokens still queued (or sent later, on
+   * connections that stay open) are answered with an error rather than never.
+   */
+  @Override
+  public void close() throws IOException {
+    running = false;
+    socket.close();
+    try {
+      if(batcher != null) {
+        batcher.interrupt();
+        batcher.join();
+      }
+      failQueued();
+      workers.shutdown();
+      workers.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * "name=file" pairs, comma separated. A file saved by {@link CompactLinearModel#save} is served as is (binary
+   * searched, and as small as it was saved); anything
+   * else is read as a crfsuite dump and flattened for the etype that is its name (e.g. PER=per.dump.txt).
+   */
+  public static Map<String, TokenClassifier> loadModels(String spec) throws IOException {
+    Map<String, TokenClassifier> models = new LinkedHashMap<>();
+    for (String entry : spec.split(",")) {
+      int eq = entry.indexOf('=');
+      if(eq <= 0) throw new IllegalArgumentException("Expected name=file, found: " + entry);
+      String name = entry.substring(0, eq);
+      File file = new File(entry.substring(eq + 1));
+      TokenClassifier model;
+      if(CompactLinearModel.isCompactModel(file)) {
+        model = CompactLinearModel.load(file);
+      } else {
+        model = new LinearTokenClassifier(CRFSuiteLearner.parseCRFSuiteModelDump(file, name));
+      }
+      System.out.println("Loaded " + name + ": " + model.getSize() + " features from " + file);
+      models.put(name, model);
+    }
+    return models;
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    // java ... ScoringServer --models=PER=per.clm,LOC=loc.clm --port=8123
+    Parameters argp = Parameters.parseArgs(args);
+    Map<String, TokenClassifier> models = loadModels(argp.getString("models"));
+    try (ScoringServer server = new ScoringServer(models,
+        argp.get("port", 8123),
+        argp.get("threads", Runtime.getRuntime().availableProcessors()),
+        argp.get("maxBatch", 256),
+        argp.get("maxDelayMicros", 100L),
+        // bounds on tokens waiting to be scored, and on each connection's unsent replies:
+        argp.get("maxQueued", 4096),
+        argp.get("maxPending", 4096))) {
+      server.start();
+      System.out.println("Scoring on localhost:" + server.getPort());
+      // --reportEvery=seconds prints stats as we go.
+      long reportEvery = argp.get("reportEvery", 0L);
+      while (true) {
+        Thread.sleep(reportEvery > 0 ? TimeUnit.SECONDS.toMillis(reportEvery) : Long.MAX_VALUE);
+        System.out.println(server.stats());
+      }
+    }
+  }
+}
@@ -0,0 +1,210 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import gnu.trove.map.hash.TObjectFloatHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Linear-chain CRF decoding in-process, with the state weights of every label and the transitions from a
+ * {@link CRFSuiteModel}: Viterbi for the best labels, forward-backward for each token's label marginals.
+ *
+ * State weights are packed by feature id, weights[feature * numLabels + label], for one dictionary. Each thread keeps
+ * its own lattice, grown to the longest sentence it has seen, so decoding a sentence allocates nothing beyond its output.
+ * @author jfoley
+ */
+public class SequenceTagger {
+  public final List<String> labels;
+  public final FeatureDictionary dictionary;
+  final int numLabels;
+  final int numFeatures;
+  final float[] stateWeights;
+  /** transitions[from * numLabels + to]. */
+  final double[] transitions;
+  private final ThreadLocal<Lattice> lattices;
+
+  public SequenceTagger(CRFSuiteModel model, FeatureDictionary dictionary) {
+    if(dictionary instanceof HashedFeatureDictionary) {
+      throw new IllegalArgumentException("Hashed features carry a sign that crfsuite dumps don't; decode with a regular FeatureDictionary.");
+    }
+    this.labels = new ArrayList<>(model.labels);
+    this.dictionary = dictionary;
+    this.numLabels = labels.size();
+    this.numFeatures = dictionary.size();
+    this.stateWeights = new float[numFeatures * numLabels];
+    for (Map.Entry<String, TObjectFloatHashMap<String>> kv : model.stateWeights.entrySet()) {
+      int y = labels.indexOf(kv.getKey());
+      if(y < 0) throw new IllegalArgumentException("State features for an unknown label: " + kv.getKey());
+      kv.getValue().forEachEntry((fname, fval) -> {
+        int id = dictionary.get(fname);
+        if(id != FeatureDictionary.MISSING && id < numFeatures) {
+          stateWeights[id * numLabels + y] = fval;
+        }
+        return true;
+      });
+    }
+    this.transitions = new double[numLabels * numLabels];
+    for (int from = 0; from < numLabels; from++) {
+      for (int to = 0; to < numLabels; to++) {
+        transitions[from * numLabels + to] = model.transitions[from][to];
+      }
+    }
+    this.lattices = ThreadLocal.withInitial(() -> new Lattice(numLabels));
+  }
+
+  /** Per-thread buffers, [token * numLabels + label]. */
+  private static class Lattice {
+    final double[] scratch;
+    double[] state = new double[0];
+    double[] alpha = new double[0];
+    double[] beta = new double[0];
+    int[] back = new int[0];
+
+    Lattice(int numLabels) {
+      this.scratch = new double[numLabels];
+    }
+
+    void reserve(int size) {
+      if(state.length >= size) return;
+      int capacity = Math.max(size, state.length * 2);
+      state = new double[capacity];
+      alpha = new double[capacity];
+      beta = new double[capacity];
+      back = new int[capacity];
+    }
+  }
+
+  public int getLabelId(String label) {
+    return labels.indexOf(label);
+  }
+
+  /** Fill lattice.state with every token's state score for every label. */
+  private Lattice score(List<SimpleToken> sentence) {
+    final int L = numLabels;
+    Lattice lattice = lattices.get();
+    lattice.reserve(sentence.size() * L);
+    double[] state = lattice.state;
+    for (int t = 0; t < sentence.size(); t++) {
+      SimpleToken token = sentence.get(t);
+      if(token.getDictionary() != dictionary) throw new IllegalArgumentException("Tokens must share the tagger's FeatureDictionary.");
+      int base = t * L;
+      Arrays.fill(state, base, base + L, 0);
+      for (int f : token.features) {
+        if(f >= numFeatures) continue; // added to the dictionary after this tagger; no weights.
+        int w = f * L;
+        for (int y = 0; y < L; y++) {
+          state[base + y] += stateWeights[w + y];
+        }
+      }
+    }
+    return lattice;
+  }
+
+  /** The best label sequence, as label ids into output[0, sentence.size()). Ties go to the lower label id. */
+  public void viterbi(List<SimpleToken> sentence, int[] output) {
+    final int L = numLabels;
+    int n = sentence.size();
+    if(n == 0) return;
+    Lattice lattice = score(sentence);
+    double[] state = lattice.state;
+    double[] delta = lattice.alpha;
+    int[] back = lattice.back;
+    System.arraycopy(state, 0, delta, 0, L);
+    for (int t = 1; t < n; t++) {
+      int prevBase = (t - 1) * L;
+      for (int y = 0; y < L; y++) {
+        double best = Double.NEGATIVE_INFINITY;
+        int arg = 0;
+        for (int prev = 0; prev < L; prev++) {
+          double s = delta[prevBase + prev] + transitions[prev * L + y];
+          if(s > best) {
+            best = s;
+            arg = prev;
+          }
+        }
+        delta[t * L + y] = state[t * L + y] + best;
+        back[t * L + y] = arg;
+      }
+    }
+    int last = 0;
+    for (int y = 1; y < L; y++) {
+      if(delta[(n - 1) * L + y] > delta[(n - 1) * L + last]) last = y;
+    }
+    output[n - 1] = last;
+    for (int t = n - 1; t > 0; t--) {
+      output[t - 1] = back[t * L + output[t]];
+    }
+  }
+
+  public int[] viterbi(List<SimpleToken> sentence) {
+    int[] output = new int[sentence.size()];
+    viterbi(sentence, output);
+    return output;
+  }
+
+  /**
+   * Forward-backward in log space: the probability that each token has this label, into output[offset, offset + n).
+   */
+  public void marginals(List<SimpleToken> sentence, int label, double[] output, int offset) {
+    final int L = numLabels;
+    int n = sentence.size();
+    if(n == 0) return;
+    Lattice lattice = score(sentence);
+    double[] state = lattice.state;
+    double[] alpha = lattice.alpha;
+    double[] beta = lattice.beta;
+    double[] scratch = lattice.scratch;
+    System.arraycopy(state, 0, alpha, 0, L);
+    Arrays.fill(beta, (n - 1) * L, n * L, 0);
+    for (int t = 1; t < n; t++) {
+      for (int y = 0; y < L; y++) {
+        for (int prev = 0; prev < L; prev++) {
+          scratch[prev] = alpha[(t - 1) * L + prev] + transitions[prev * L + y];
+        }
+        alpha[t * L + y] = state[t * L + y] + logSumExp(scratch);
+      }
+    }
+    for (int t = n - 2; t >= 0; t--) {
+      for (int y = 0; y < L; y++) {
+        for (int next = 0; next < L; next++) {
+          scratch[next] = transitions[y * L + next] + state[(t + 1) * L + next] + beta[(t + 1) * L + next];
+        }
+        beta[t * L + y] = logSumExp(scratch);
+      }
+    }
+    System.arraycopy(alpha, (n - 1) * L, scratch, 0, L);
+    double logZ = logSumExp(scratch);
+    for (int t = 0; t < n; t++) {
+      output[offset + t] = Math.exp(alpha[t * L + label] + beta[t * L + label] - logZ);
+    }
+  }
+
+  private static double logSumExp(double[] xs) {
+    return JavaCRFLearner.logSumExp(xs, xs.length);
+  }
+
+  /** Viterbi labels for every sentence, on the fork-join pool. */
+  public List<int[]> tagAll(List<List<SimpleToken>> sentences) {
+    return ForkJoinPool.commonPool().submit(() ->
+        sentences.parallelStream().map(this::viterbi).collect(Collectors.toList())
+    ).join();
+  }
+
+  /** Every token's marginal probability of label, in corpus order; sentences are decoded on the fork-join pool. */
+  public double[] marginalsAll(List<List<SimpleToken>> sentences, int label) {
+    int[] start = new int[sentences.size() + 1];
+    for (int s = 0; s < sentences.size(); s++) {
+      start[s + 1] = start[s] + sentences.get(s).size();
+    }
+    double[] output = new double[start[sentences.size()]];
+    ForkJoinPool.commonPool().submit(() ->
+        IntStream.range(0, sentences.size()).parallel().forEach(s -> marginals(sentences.get(s), label, output, start[s]))
+    ).join();
+    return output;
+  }
+}
@@ -5,7 +5,7 @@ import ciir.jfoley.chai.io.LinesIterable;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 
@@ -15,16 +15,39 @@ import java.util.Set;
 public class SimpleToken {
   final String truthLabel;
   final String lemma;
-  public final HashSet<String> features;
+  /**
+   * Sorted ids of this token's features in {@link #dictionary}; one array shared by every token with the same ones,
+   * unless it's a {@link HashedFeatureDictionary}. Unique, except that those repeat an id for each feature that
+   * collided into it.
+   */
+  public final int[] features;
+  /**
+   * Which distinct feature vector of {@link #dictionary} this is; tokens with the same features have the same one.
+   * A {@link HashedFeatureDictionary} doesn't look for repeats, so there each token has its own.
+   */
+  public final int vector;
+  public final FeatureDictionary dictionary;
 
-  public SimpleToken(String truthLabel, String lemma, HashSet<String> features) {
+  public SimpleToken(String truthLabel, String lemma, int[] features, FeatureDictionary dictionary) {
     this.truthLabel = truthLabel;
     this.lemma = lemma;
-    this.features = features;
+    FeatureDictionary.Vector interned = dictionary.internVector(features);
+    this.vector = interned.id();
+    this.features = interned.ids;
+    this.dictionary = dictionary;
+  }
+
+  public SimpleToken(String truthLabel, String lemma, Collection<String> features, FeatureDictionary dictionary) {
+    this(truthLabel, lemma, dictionary.getOrAddAll(features), dictionary);
   }
 
   /** If you've already got CRFSuite files, load it into this simple representation. */
   public static List<List<SimpleToken>> loadCRFSuiteInputFormat(File where) throws IOException {
+    return loadCRFSuiteInputFormat(where, new FeatureDictionary());
+  }
+
+  /** Load a CRFSuite file, sharing feature ids with anything else loaded into this dictionary. */
+  public static List<List<SimpleToken>> loadCRFSuiteInputFormat(File where, FeatureDictionary dictionary) throws IOException {
     List<SimpleToken> tokens = new ArrayList<>();
     try (LinesIterable lines = LinesIterable.fromFile(where)) {
       for (String line : lines) {
@@ -35,12 +58,10 @@ public class SimpleToken {
         }
         String[] data = line.split("\t");
         String label = data[0];
-        String token = data[1]; // first feature is token name; also keep as feature!
-        HashSet<String> features = new HashSet<>(data.length);
-        for (int i = 1; i < data.length; i++) {
-          features.add(data[i].intern());
-        }
-        tokens.add(new SimpleToken(label, token, features));
+        int[] features = dictionary.getOrAddAll(data, 1, data.length);
+        // first feature is token name; also keep as feature! The dictionary holds the canonical copy.
+        String token = dictionary.lemmaFor(data[1], dictionary.get(data[1]));
+        tokens.add(new SimpleToken(label, token, features, dictionary));
       }
     }
 
@@ -48,7 +69,7 @@ public class SimpleToken {
     List<SimpleToken> cur = new ArrayList<>();
     for (SimpleToken token : tokens) {
       if(token == null) {
-        if(cur.isEmpty()) {
+        if(!cur.isEmpty()) {
           dataBySentence.add(cur);
           cur = new ArrayList<>();
         }
@@ -62,11 +83,61 @@ public class SimpleToken {
     return dataBySentence;
   }
 
+  /** Same output as {@link #loadCRFSuiteInputFormat(File, FeatureDictionary)}, but parsed on all cores; see {@link ParallelCorpusLoader}. */
+  public static List<List<SimpleToken>> loadCRFSuiteInputFormatParallel(File where, FeatureDictionary dictionary) throws IOException {
+    return ParallelCorpusLoader.load(where, dictionary);
+  }
+
+  /** If you've got a cache from {@link MappedCorpus} that's newer than this file, load that instead; otherwise build one. */
+  public static List<List<SimpleToken>> loadCRFSuiteInputFormatCached(File where, FeatureDictionary dictionary) throws IOException {
+    File cache = MappedCorpus.cacheFileFor(where);
+    if(MappedCorpus.isUpToDate(cache, where)) {
+      return MappedCorpus.open(cache).toSentences(dictionary);
+    }
+
+    // parse into a fresh dictionary so the cache holds ids in this file's own first-appearance order.
+    FeatureDictionary local = new FeatureDictionary();
+    List<List<SimpleToken>> sentences = loadCRFSuiteInputFormatParallel(where, local);
+    try {
+      MappedCorpus.write(sentences, where, cache);
+    } catch (IOException e) {
+      System.err.println("Couldn't write corpus cache " + cache + ": " + e.getMessage());
+    }
+    return remap(sentences, dictionary.addAll(local), dictionary);
+  }
+
+  /** Rewrite tokens into another dictionary, given where each of their old ids went. */
+  public static List<List<SimpleToken>> remap(List<List<SimpleToken>> sentences, int[] mapping, FeatureDictionary target) {
+    List<List<SimpleToken>> output = new ArrayList<>(sentences.size());
+    for (List<SimpleToken> sentence : sentences) {
+      List<SimpleToken> remapped = new ArrayList<>(sentence.size());
+      for (SimpleToken token : sentence) {
+        int[] ids = new int[token.features.length];
+        for (int i = 0; i < ids.length; i++) {
+          ids[i] = mapping[token.features[i]];
+        }
+        String lemma = target.lemmaFor(token.lemma, mapping[token.dictionary.get(token.lemma)]);
+        remapped.add(new SimpleToken(token.truthLabel, lemma, target.vectorOfDistinct(ids, ids.length), target));
+      }
+      output.add(remapped);
+    }
+    return output;
+  }
+
   public String getLabel() {
     return truthLabel;
   }
 
+  /** A view of this token's features as strings; prefer {@link #getFeatureIds()} in loops. */
   public Set<String> getFeatures() {
+    return dictionary.asSet(features);
+  }
+
+  public int[] getFeatureIds() {
     return features;
   }
+
+  public FeatureDictionary getDictionary() {
+    return dictionary;
+  }
 }
\ No newline at end of file
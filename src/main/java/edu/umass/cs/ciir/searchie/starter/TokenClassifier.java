@@ -0,0 +1,26 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import java.util.Set;
+
+/**
+ * A linear model over token features, however its weights are stored.
+ * @author jfoley
+ */
+public interface TokenClassifier {
+  double score(Set<String> features);
+
+  /** Score a token through its feature ids rather than by looking up every feature string. */
+  default double score(SimpleToken token) {
+    return LinearTokenClassifier.score(denseWeights(token.getDictionary()), token.getFeatureIds());
+  }
+
+  /** @return a weight for every id in the dictionary (0 for features this model doesn't have). */
+  float[] denseWeights(FeatureDictionary dictionary);
+
+  double getIntercept();
+
+  long getSize();
+
+  /** Keep only the k heaviest (by absolute weight) features. */
+  TokenClassifier deriveSampled(int k);
+}
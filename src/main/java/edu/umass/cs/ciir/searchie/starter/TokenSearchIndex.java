@@ -0,0 +1,503 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import ciir.jfoley.chai.io.LinesIterable;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TObjectFloatHashMap;
+import org.lemurproject.galago.utility.Parameters;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * An on-disk inverted index of a CRFSuite corpus with one document per token, for running trained models over corpora
+ * too large to load:
+ * <pre>
+ *   TokenSearchIndex --build=data/testb.snlpl.all.crfsuite --index=testb.idx
+ *   TokenSearchIndex --index=testb.idx --models=PER=per.clm --top=20 [--lemmas=true]
+ * </pre>
+ * Not a Galago index; see the README for why.
+ *
+ * The terms are the crfsuite features themselves, so a {@link LinearTokenClassifier} is already a weighted query:
+ * walk the postings of each of its features and add its weight into an accumulator per token. Nothing but the term
+ * table and the postings read is touched; tokens that share no feature with the model score 0, and top-n lists
+ * include them where 0 ranks.
+ *
+ * Scoring is term-at-a-time and exhaustive, not MaxScore or WAND: there's an accumulator (a trove entry) for every
+ * token that shares any feature with the model, so the heap needed grows with the postings of the model's most common
+ * features, up to every token in the index. Fine for a model's worth of rare features over a corpus of millions of
+ * tokens; a model with a weight on something nearly every token has (a bias, or w[0]=the) needs that many entries.
+ *
+ * Files in the index directory (big-endian):
+ * terms: the features as a string table sorted by UTF-8 bytes, then each one's id in order of first appearance, then
+ * where its postings start (longs, numTerms+1 of them); postings: ascending token ids as ints;
+ * lemmaIds and labelIds: an int per token; lemmas and labels: string tables; meta.json, written last.
+ * @author jfoley
+ */
+public class TokenSearchIndex implements Closeable {
+  /** Postings are read this many ids at a time. */
+  private static final int READ_INTS = 1 << 14;
+
+  public final Parameters meta;
+  private final MappedCorpus.StringTable terms;
+  private final IntBuffer firstSeen;
+  private final LongBuffer postingStart;
+  private final IntBuffer lemmaIds;
+  private final IntBuffer labelIds;
+  private final MappedCorpus.StringTable lemmas;
+  private final MappedCorpus.StringTable labels;
+  private final RandomAccessFile postingsFile;
+  private final FileChannel postings;
+
+  private TokenSearchIndex(Parameters meta, MappedCorpus.StringTable terms, IntBuffer firstSeen, LongBuffer postingStart, IntBuffer lemmaIds, IntBuffer labelIds, MappedCorpus.StringTable lemmas, MappedCorpus.StringTable labels, RandomAccessFile postingsFile) {
+    this.meta = meta;
+    this.terms = terms;
+    this.firstSeen = firstSeen;
+    this.postingStart = postingStart;
+    this.lemmaIds = lemmaIds;
+    this.labelIds = labelIds;
+    this.lemmas = lemmas;
+    this.labels = labels;
+    this.postingsFile = postingsFile;
+    this.postings = postingsFile.getChannel();
+  }
+
+  /**
+   * Index a crfsuite file in two streaming passes (or more): the first assigns ids and counts postings, the rest fill in
+   * as many terms' postings at a time as fit in postingsBudget ints. Only the feature vocabulary is kept on the heap.
+   */
+  public static void build(File input, File dir, long postingsBudget) throws IOException {
+    if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Couldn't create index directory: " + dir);
+    File metaFile = new File(dir, "meta.json");
+    if(metaFile.exists() && !metaFile.delete()) throw new IOException("Couldn't replace " + metaFile);
+
+    FeatureDictionary dictionary = new FeatureDictionary();
+    FeatureDictionary lemmaDictionary = new FeatureDictionary();
+    FeatureDictionary labelDictionary = new FeatureDictionary();
+    TIntArrayList df = new TIntArrayList();
+    int numTokens = 0;
+    try (LinesIterable lines = LinesIterable.fromFile(input);
+         DataOutputStream lemmaOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, "lemmaIds")), 1 << 16));
+         DataOutputStream labelOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, "labelIds")), 1 << 16))) {
+      for (String line : lines) {
+        if(line.trim().isEmpty()) continue;
+        String[] data = line.split("\t");
+        for (int id : featureIds(data, dictionary, true)) {
+          while (df.size() <= id) df.add(0);
+          df.setQuick(id, df.getQuick(id) + 1);
+        }
+        lemmaOut.writeInt(lemmaDictionary.getOrAdd(data[1]));
+        labelOut.writeInt(labelDictionary.getOrAdd(data[0]));
+        numTokens++;
+      }
+    }
+
+    // terms sorted by bytes for binary search; postings laid out in that order.
+    int numTerms = dictionary.size();
+    byte[][] encoded = new byte[numTerms][];
+    Integer[] order = new Integer[numTerms];
+    for (int id = 0; id < numTerms; id++) {
+      encoded[id] = dictionary.getName(id).getBytes(StandardCharsets.UTF_8);
+      order[id] = id;
+    }
+    Arrays.sort(order, (lhs, rhs) -> CompactLinearModel.compare(encoded[lhs], 0, encoded[lhs].length, encoded[rhs]));
+    int[] rank = new int[numTerms];
+    long[] start = new long[numTerms + 1];
+    for (int r = 0; r < numTerms; r++) {
+      rank[order[r]] = r;
+      start[r + 1] = start[r] + df.getQuick(order[r]);
+    }
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, "terms")), 1 << 16))) {
+      long offset = 0;
+      out.writeInt(0);
+      for (int r = 0; r < numTerms; r++) {
+        offset += encoded[order[r]].length;
+        if(offset > Integer.MAX_VALUE) throw new IOException("Feature names too large for one term table: " + offset);
+        out.writeInt((int) offset);
+      }
+      for (int r = 0; r < numTerms; r++) {
+        out.write(encoded[order[r]]);
+      }
+      for (int r = 0; r < numTerms; r++) {
+        out.writeInt(order[r]);
+      }
+      for (long s : start) {
+        out.writeLong(s);
+      }
+    }
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, "lemmas")), 1 << 16))) {
+      MappedCorpus.writeStrings(out, lemmaDictionary);
+    }
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, "labels")), 1 << 16))) {
+      MappedCorpus.writeStrings(out, labelDictionary);
+    }
+
+    int passes = 0;
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, "postings")), 1 << 16))) {
+      for (int lo = 0; lo < numTerms; ) {
+        int hi = lo + 1;
+        while (hi < numTerms && start[hi + 1] - start[lo] <= postingsBudget) hi++;
+        int[] block = new int[(int) (start[hi] - start[lo])];
+        int[] fill = new int[hi - lo];
+        for (int r = lo; r < hi; r++) {
+          fill[r - lo] = (int) (start[r] - start[lo]);
+        }
+        int token = 0;
+        try (LinesIterable lines = LinesIterable.fromFile(input)) {
+          for (String line : lines) {
+            if(line.trim().isEmpty()) continue;
+            for (int id : featureIds(line.split("\t"), dictionary, false)) {
+              int r = rank[id];
+              if(r >= lo && r < hi) {
+                block[fill[r - lo]++] = token;
+              }
+            }
+            token++;
+          }
+        }
+        for (int id : block) {
+          out.writeInt(id);
+        }
+        passes++;
+        lo = hi;
+      }
+    }
+
+    Parameters meta = Parameters.create();
+    meta.put("source", input.getPath());
+    meta.put("numTokens", numTokens);
+    meta.put("numTerms", numTerms);
+    meta.put("numPostings", start[numTerms]);
+    meta.put("numLemmas", lemmaDictionary.size());
+    meta.put("numLabels", labelDictionary.size());
+    meta.put("postingPasses", passes);
+    try (Writer out = new OutputStreamWriter(new FileOutputStream(metaFile), StandardCharsets.UTF_8)) {
+      out.write(meta.toPrettyString());
+      out.write('\n');
+    }
+  }
+
+  /** The sorted, unique ids of a token line's features, as {@link SimpleToken#loadCRFSuiteInputFormat} assigns them. */
+  private static int[] featureIds(String[] data, FeatureDictionary dictionary, boolean add) {
+    int[] ids = new int[data.length - 1];
+    for (int i = 1; i < data.length; i++) {
+      ids[i - 1] = add ? dictionary.getOrAdd(data[i]) : dictionary.get(data[i]);
+    }
+    return FeatureDictionary.sortedUnique(ids, ids.length);
+  }
+
+  public static TokenSearchIndex open(File dir) throws IOException {
+    File metaFile = new File(dir, "meta.json");
+    if(!metaFile.exists()) throw new IOException("Not a finished index: " + dir);
+    Parameters meta = Parameters.parseFile(metaFile);
+    int numTokens = meta.getInt("numTokens");
+    int numTerms = meta.getInt("numTerms");
+
+    MappedCorpus.StringTable terms;
+    IntBuffer firstSeen;
+    LongBuffer postingStart;
+    try (RandomAccessFile raf = new RandomAccessFile(new File(dir, "terms"), "r");
+         FileChannel channel = raf.getChannel()) {
+      terms = MappedCorpus.StringTable.map(channel, 0, numTerms);
+      long position = terms.sizeInBytes();
+      firstSeen = MappedCorpus.mapInts(channel, position, numTerms);
+      position += 4L * numTerms;
+      postingStart = channel.map(FileChannel.MapMode.READ_ONLY, position, 8L * (numTerms + 1)).asLongBuffer();
+    }
+    IntBuffer lemmaIds = mapInts(new File(dir, "lemmaIds"), numTokens);
+    IntBuffer labelIds = mapInts(new File(dir, "labelIds"), numTokens);
+    MappedCorpus.StringTable lemmas = mapStrings(new File(dir, "lemmas"), meta.getInt("numLemmas"));
+    MappedCorpus.StringTable labels = mapStrings(new File(dir, "labels"), meta.getInt("numLabels"));
+    return new TokenSearchIndex(meta, terms, firstSeen, postingStart, lemmaIds, labelIds, lemmas, labels, new RandomAccessFile(new File(dir, "postings"), "r"));
+  }
+
+  private static IntBuffer mapInts(File file, int count) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+         FileChannel channel = raf.getChannel()) {
+      return MappedCorpus.mapInts(channel, 0, count);
+    }
+  }
+
+  private static MappedCorpus.StringTable mapStrings(File file, int count) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+         FileChannel channel = raf.getChannel()) {
+      return MappedCorpus.StringTable.map(channel, 0, count);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    postingsFile.close();
+  }
+
+  public int numTokens() {
+    return lemmaIds.limit();
+  }
+
+  public int numTerms() {
+    return terms.size();
+  }
+
+  /** @return the term number of feature, or -1. */
+  public int find(String feature) {
+    byte[] query = feature.getBytes(StandardCharsets.UTF_8);
+    int lo = 0;
+    int hi = numTerms() - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int cmp = compare(terms.data, terms.offsets.get(mid), terms.offsets.get(mid + 1), query);
+      if(cmp < 0) {
+        lo = mid + 1;
+      } else if(cmp > 0) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  private static int compare(ByteBuffer a, int start, int end, byte[] b) {
+    int n = Math.min(end - start, b.length);
+    for (int i = 0; i < n; i++) {
+      int cmp = (a.get(start + i) & 0xff) - (b[i] & 0xff);
+      if(cmp != 0) return cmp;
+    }
+    return (end - start) - b.length;
+  }
+
+  public long documentFrequency(int term) {
+    return postingStart.get(term + 1) - postingStart.get(term);
+  }
+
+  public String getLemma(int token) {
+    return lemmas.get(lemmaIds.get(token));
+  }
+
+  public String getLabel(int token) {
+    return labels.get(labelIds.get(token));
+  }
+
+  /** Add weight into scores for every token with this term. */
+  private void accumulate(int term, double weight, TIntDoubleHashMap scores) throws IOException {
+    long end = postingStart.get(term + 1);
+    ByteBuffer buffer = ByteBuffer.allocate(4 * (int) Math.min(end - postingStart.get(term), READ_INTS));
+    for (long at = postingStart.get(term); at < end; ) {
+      int count = (int) Math.min(end - at, READ_INTS);
+      buffer.clear();
+      buffer.limit(4 * count);
+      while (buffer.hasRemaining()) {
+        if(postings.read(buffer, 4 * at + buffer.position()) < 0) throw new EOFException("Truncated postings at term " + term);
+      }
+      buffer.flip();
+      IntBuffer ids = buffer.asIntBuffer();
+      for (int i = 0; i < count; i++) {
+        scores.adjustOrPutValue(ids.get(i), weight, weight);
+      }
+      at += count;
+    }
+  }
+
+  /**
+   * The score of every token sharing a feature with the model. Terms are added in order of first appearance, which is
+   * the order forward scoring adds a freshly loaded copy of this corpus in, so the scores are the same.
+   */
+  public TIntDoubleHashMap score(TObjectFloatHashMap<String> featureWeights) throws IOException {
+    TIntArrayList found = new TIntArrayList();
+    List<Float> weights = new ArrayList<>();
+    featureWeights.forEachEntry((fname, fval) -> {
+      int term = find(fname);
+      if(term >= 0 && fval != 0) {
+        found.add(term);
+        weights.add(fval);
+      }
+      return true;
+    });
+    // (first appearance, index) packed into longs, so sorting them puts terms in order.
+    long[] query = new long[found.size()];
+    for (int i = 0; i < query.length; i++) {
+      query[i] = ((long) firstSeen.get(found.getQuick(i)) << 32) | i;
+    }
+    Arrays.sort(query);
+    TIntDoubleHashMap scores = new TIntDoubleHashMap();
+    for (long packed : query) {
+      int i = (int) packed;
+      accumulate(found.getQuick(i), weights.get(i), scores);
+    }
+    return scores;
+  }
+
+  public static class Hit {
+    public final int token;
+    public final String lemma;
+    public final String label;
+    public final double score;
+
+    public Hit(int token, String lemma, String label, double score) {
+      this.token = token;
+      this.lemma = lemma;
+      this.label = label;
+      this.score = score;
+    }
+  }
+
+  /** Keys with the n highest values, best first; ties go to the lower key (token). */
+  private static int[] top(TIntDoubleHashMap values, int n) {
+    PriorityQueue<Integer> heap = new PriorityQueue<>((lhs, rhs) -> {
+      int cmp = Double.compare(values.get(lhs), values.get(rhs));
+      return cmp != 0 ? cmp : Integer.compare(rhs, lhs);
+    });
+    values.forEachKey(key -> {
+      heap.offer(key);
+      if(heap.size() > n) heap.poll();
+      return true;
+    });
+    int[] output = new int[heap.size()];
+    for (int i = output.length - 1; i >= 0; i--) {
+      output[i] = heap.poll();
+    }
+    return output;
+  }
+
+  private static int countPositive(int[] ranked, TIntDoubleHashMap scores) {
+    int count = 0;
+    while (count < ranked.length && scores.get(ranked[count]) > 0) count++;
+    return count;
+  }
+
+  private int nextUnscored(TIntDoubleHashMap scores, int token) {
+    while (token < numTokens() && scores.containsKey(token)) token++;
+    return token;
+  }
+
+  /** The n best tokens, best first; ties go to the earlier token. */
+  public List<Hit> topTokens(TObjectFloatHashMap<String> featureWeights, int n) throws IOException {
+    Instrumentation.Timer timer = Instrumentation.time("indexQuery");
+    TIntDoubleHashMap scores = score(featureWeights);
+    timer.stop();
+    int[] ranked = top(scores, n);
+    if(countPositive(ranked, scores) < n) {
+      // merge in the unscored tokens (0, in token order) after the positive scores and before the negative ones.
+      int[] merged = new int[Math.min(n, numTokens())];
+      int next = nextUnscored(scores, 0);
+      for (int i = 0, k = 0; k < merged.length; k++) {
+        if(i < ranked.length && (next >= numTokens() || scores.get(ranked[i]) > 0 || (scores.get(ranked[i]) == 0 && ranked[i] < next))) {
+          merged[k] = ranked[i++];
+        } else {
+          merged[k] = next;
+          next = nextUnscored(scores, next + 1);
+        }
+      }
+      ranked = merged;
+    }
+    List<Hit> output = new ArrayList<>();
+    for (int token : ranked) {
+      output.add(new Hit(token, getLemma(token), getLabel(token), scores.get(token)));
+    }
+    return output;
+  }
+
+  /**
+   * The n lemmas with the best single token, each with that token; as in the "unique" measures. Ties go to the lemma
+   * whose token comes first. Unless n lemmas have a token scoring above 0, this reads the lemma of every token.
+   */
+  public List<Hit> topLemmas(TObjectFloatHashMap<String> featureWeights, int n) throws IOException {
+    Instrumentation.Timer timer = Instrumentation.time("indexQuery");
+    TIntDoubleHashMap scores = score(featureWeights);
+    timer.stop();
+    TIntDoubleHashMap bestScore = new TIntDoubleHashMap();
+    TIntIntHashMap bestToken = new TIntIntHashMap();
+    scores.forEachEntry((token, score) -> {
+      offerBest(lemmaIds.get(token), token, score, bestScore, bestToken);
+      return true;
+    });
+    TIntDoubleHashMap byToken = byBestToken(bestScore, bestToken);
+    int[] ranked = top(byToken, n);
+    if(countPositive(ranked, byToken) < n) {
+      // some lemma's best might be an unscored token (0), even lemmas never scored at all.
+      for (int token = 0; token < numTokens(); token++) {
+        if(!scores.containsKey(token)) {
+          offerBest(lemmaIds.get(token), token, 0, bestScore, bestToken);
+        }
+      }
+      byToken = byBestToken(bestScore, bestToken);
+      ranked = top(byToken, n);
+    }
+    List<Hit> output = new ArrayList<>();
+    for (int token : ranked) {
+      output.add(new Hit(token, getLemma(token), getLabel(token), byToken.get(token)));
+    }
+    return output;
+  }
+
+  /** Each lemma's best score, keyed by its best token, so ties go to whichever comes first. */
+  private static TIntDoubleHashMap byBestToken(TIntDoubleHashMap bestScore, TIntIntHashMap bestToken) {
+    TIntDoubleHashMap byToken = new TIntDoubleHashMap();
+    bestToken.forEachEntry((lemma, token) -> {
+      byToken.put(token, bestScore.get(lemma));
+      return true;
+    });
+    return byToken;
+  }
+
+  private static void offerBest(int lemma, int token, double score, TIntDoubleHashMap bestScore, TIntIntHashMap bestToken) {
+    if(!bestToken.containsKey(lemma) || score > bestScore.get(lemma) || (score == bestScore.get(lemma) && token < bestToken.get(lemma))) {
+      bestScore.put(lemma, score);
+      bestToken.put(lemma, token);
+    }
+  }
+
+  /** A query needs every feature and its weight; {@link ScoringServer#loadModels} returns either kind of model. */
+  static TObjectFloatHashMap<String> featureWeights(TokenClassifier model) {
+    if(model instanceof LinearTokenClassifier) return ((LinearTokenClassifier) model).featureWeights;
+    if(model instanceof CompactLinearModel) return ((CompactLinearModel) model).toFeatureWeights();
+    throw new IllegalArgumentException("Can't list the features of a " + model.getClass().getSimpleName());
+  }
+
+  public static void main(String[] args) throws IOException {
+    Parameters argp = Parameters.parseArgs(args);
+    File dir = new File(argp.getString("index"));
+    if(argp.containsKey("build")) {
+      File input = new File(argp.getString("build"));
+      Instrumentation.Timer timer = Instrumentation.time("indexBuild");
+      build(input, dir, argp.get("postingsBudget", 1L << 26));
+      System.out.println("Indexed " + input + " into " + dir + " in " + timer.seconds() + "s");
+    }
+    if(!argp.containsKey("models")) return;
+
+    int n = argp.get("top", 20);
+    boolean byLemma = argp.get("lemmas", false);
+    try (TokenSearchIndex index = open(dir)) {
+      System.out.println(index.meta.getLong("numTokens") + " tokens, " + index.numTerms() + " terms");
+      for (Map.Entry<String, TokenClassifier> kv : ScoringServer.loadModels(argp.getString("models")).entrySet()) {
+        TObjectFloatHashMap<String> weights = featureWeights(kv.getValue());
+        long start = System.nanoTime();
+        List<Hit> hits = byLemma ? index.topLemmas(weights, n) : index.topTokens(weights, n);
+        System.out.println("# " + kv.getKey() + ": " + (System.nanoTime() - start) / 1e6 + "ms");
+        for (int i = 0; i < hits.size(); i++) {
+          Hit hit = hits.get(i);
+          System.out.println((i + 1) + "\t" + hit.score + "\t" + hit.lemma + "\t" + hit.label + "\t" + hit.token);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,191 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import gnu.trove.map.hash.TObjectFloatHashMap;
+import org.lemurproject.galago.utility.Parameters;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many (etype, sample, algorithm) trainings through a {@link CRFSuiteLearner} at once.
+ *
+ * Each job goes write training file, then learn, then dump+parse. Writing happens on a small Java pool; learning
+ * and dumping happen on a pool with one thread per allowed crfsuite process (cores, by default). So while one job's
+ * crfsuite is learning, another's training file is being written and a third's dump is being parsed.
+ * @author jfoley
+ */
+public class TrainingScheduler implements Closeable {
+  private final CRFSuiteLearner learner;
+  private final ExecutorService writers;
+  private final ExecutorService processes;
+  private final Set<CompletableFuture<TrainingResult>> pending = ConcurrentHashMap.newKeySet();
+
+  public TrainingScheduler(CRFSuiteLearner learner) {
+    this(learner, Runtime.getRuntime().availableProcessors());
+  }
+
+  public TrainingScheduler(CRFSuiteLearner learner, int maxProcesses) {
+    this.learner = learner;
+    this.writers = Executors.newFixedThreadPool(Math.max(1, maxProcesses / 2), daemonThreads("training-writer"));
+    this.processes = Executors.newFixedThreadPool(maxProcesses, daemonThreads("training-process"));
+  }
+
+  public static class TrainingJob {
+    public final String etype;
+    public final List<List<SimpleToken>> sample;
+    public final String algorithm;
+
+    public TrainingJob(String etype, List<List<SimpleToken>> sample, String algorithm) {
+      this.etype = etype;
+      this.sample = sample;
+      this.algorithm = algorithm;
+    }
+  }
+
+  public static class TrainingResult {
+    public final TrainingJob job;
+    public final TObjectFloatHashMap<String> weights;
+    /** Seconds: writeTime, trainingTime, extractTime, and totalTime (including time spent queued). */
+    public final Parameters timings;
+
+    public TrainingResult(TrainingJob job, TObjectFloatHashMap<String> weights, Parameters timings) {
+      this.job = job;
+      this.weights = weights;
+      this.timings = timings;
+    }
+  }
+
+  /** Temporary files and timings for one job as it moves between pools. */
+  private class InFlight {
+    final TrainingJob job;
+    final Parameters timings = Parameters.create();
+    final long submitted = System.nanoTime();
+    final File forTrain;
+    final File forModel;
+    final File forErr;
+    final File forOut;
+    final String cacheKey;
+    TObjectFloatHashMap<String> weights;
+
+    InFlight(TrainingJob job, String cacheKey) {
+      this.job = job;
+      this.cacheKey = cacheKey;
+      // we don't know that TemporaryDirectory hands out names thread-safely.
+      synchronized (learner.tmpdir) {
+        this.forTrain = learner.streaming ? null : learner.tmpdir.newOrderedFile(".crfsuite");
+        this.forModel = learner.tmpdir.newOrderedFile(".model");
+        this.forErr = learner.tmpdir.newOrderedFile(".err");
+        this.forOut = learner.tmpdir.newOrderedFile(".out");
+      }
+    }
+
+    InFlight write() {
+      if(forTrain != null) {
+        long start = System.nanoTime();
+        learner.createTrainingFile(job.etype, job.sample, forTrain);
+        timings.put("writeTime", seconds(System.nanoTime() - start));
+      }
+      return this;
+    }
+
+    InFlight learn() {
+      try {
+        if(forTrain == null) {
+          learner.trainModelStreaming(timings, job.algorithm, job.etype, job.sample, forModel, forErr, forOut);
+        } else {
+          learner.trainModel(timings, job.algorithm, forTrain, forModel, forErr, forOut);
+        }
+      } catch (IOException | InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      return this;
+    }
+
+    TrainingResult dumpAndParse() {
+      try {
+        weights = learner.readWeightsFromModel(job.etype, timings, forModel, forErr);
+        if(cacheKey != null) {
+          learner.cache.put(cacheKey, weights);
+        }
+      } catch (IOException | InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      timings.put("totalTime", seconds(System.nanoTime() - submitted));
+      return new TrainingResult(job, weights, timings);
+    }
+
+    void cleanup() {
+      for (File f : new File[] {forTrain, forModel, forErr, forOut}) {
+        if(f != null && f.exists() && !f.delete()) {
+          System.err.println("Couldn't delete " + f);
+        }
+      }
+    }
+  }
+
+  public CompletableFuture<TrainingResult> submit(TrainingJob job) {
+    if(job.sample.isEmpty()) {
+      return CompletableFuture.completedFuture(new TrainingResult(job, new TObjectFloatHashMap<>(), Parameters.create()));
+    }
+    Parameters cachedTimings = Parameters.create();
+    String key = learner.cacheKey(job.sample, job.etype, job.algorithm);
+    TObjectFloatHashMap<String> cached = learner.lookupCached(key, cachedTimings);
+    if(cached != null) {
+      return CompletableFuture.completedFuture(new TrainingResult(job, cached, cachedTimings));
+    }
+    InFlight work = new InFlight(job, key);
+    CompletableFuture<TrainingResult> result = CompletableFuture.supplyAsync(work::write, writers)
+        .thenApplyAsync(InFlight::learn, processes)
+        .thenApplyAsync(InFlight::dumpAndParse, processes);
+    pending.add(result);
+    result.whenComplete((ignored, error) -> {
+      work.cleanup();
+      pending.remove(result);
+    });
+    return result;
+  }
+
+  public List<CompletableFuture<TrainingResult>> submitAll(List<TrainingJob> jobs) {
+    List<CompletableFuture<TrainingResult>> results = new ArrayList<>(jobs.size());
+    for (TrainingJob job : jobs) {
+      results.add(submit(job));
+    }
+    return results;
+  }
+
+  /** Waits for submitted jobs to finish (successfully or not), then stops the pools. */
+  @Override
+  public void close() throws IOException {
+    // later stages are handed to the pools as earlier ones finish, so wait on the jobs rather than the pools.
+    CompletableFuture<?>[] waiting = pending.toArray(new CompletableFuture<?>[0]);
+    try {
+      CompletableFuture.allOf(waiting).exceptionally(error -> null).join();
+    } finally {
+      writers.shutdown();
+      processes.shutdown();
+    }
+  }
+
+  private static double seconds(long nanos) {
+    return nanos / 1e9;
+  }
+
+  static ThreadFactory daemonThreads(String name) {
+    AtomicInteger count = new AtomicInteger();
+    return task -> {
+      Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+}
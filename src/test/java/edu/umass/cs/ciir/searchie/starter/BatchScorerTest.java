@@ -0,0 +1,50 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link BatchScorer} scores and measures against forward scoring and {@link BasicExperiment#evaluateModel}, exactly.
+ * @author jfoley
+ */
+public class BatchScorerTest {
+
+  @Test
+  public void sameAsForwardScoring() {
+    Random rand = new Random(13);
+    FeatureDictionary dictionary = new FeatureDictionary();
+    // short lemma and feature vocabularies, so vectors and lemmas repeat.
+    List<List<SimpleToken>> sentences = LBFGSTest.randomSentences(rand, 60, dictionary);
+    BatchScorer scorer = BatchScorer.build(sentences);
+
+    List<TokenClassifier> models = new ArrayList<>();
+    List<String> etypes = new ArrayList<>();
+    for (String etype : new String[]{"PER", "LOC"}) {
+      for (TokenClassifier model : FeatureIndexTest.models(rand, dictionary)) {
+        models.add(model);
+        etypes.add(etype);
+      }
+    }
+
+    BatchScorer.Scores scores = scorer.score(models);
+    for (int m = 0; m < models.size(); m++) {
+      int t = 0;
+      for (List<SimpleToken> sentence : sentences) {
+        for (SimpleToken token : sentence) {
+          assertEquals(models.get(m).score(token), scores.get(t++, m), 0.0);
+        }
+      }
+    }
+
+    List<Map<String, Double>> measures = scorer.evaluate(models, etypes);
+    for (int m = 0; m < models.size(); m++) {
+      assertEquals(BasicExperiment.evaluateModel(models.get(m), sentences, etypes.get(m)), measures.get(m));
+    }
+  }
+}
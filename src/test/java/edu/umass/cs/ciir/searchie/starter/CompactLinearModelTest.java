@@ -0,0 +1,89 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import gnu.trove.map.hash.TObjectFloatHashMap;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link CompactLinearModel}: quantization stays within scale/2 of every weight, and saving then loading changes nothing.
+ * @author jfoley
+ */
+public class CompactLinearModelTest {
+
+  private static TObjectFloatHashMap<String> randomWeights(Random rand, int n) {
+    TObjectFloatHashMap<String> weights = new TObjectFloatHashMap<>();
+    for (int i = 0; i < n; i++) {
+      // some non-ASCII names, so sorting and lookup see multi-byte UTF-8.
+      String name = (i % 7 == 0 ? "\u00e9" : "w=") + i;
+      weights.put(name, i % 11 == 0 ? 0f : (float) (rand.nextGaussian() * 3));
+    }
+    return weights;
+  }
+
+  private static void checkError(int bits) {
+    Random rand = new Random(bits);
+    TObjectFloatHashMap<String> weights = randomWeights(rand, 500);
+    CompactLinearModel model = CompactLinearModel.quantize(weights, bits);
+    assertEquals(weights.size(), model.size());
+    weights.forEachEntry((fname, fval) -> {
+      int index = model.find(fname);
+      assertTrue(fname, index >= 0);
+      double error = Math.abs(model.getWeight(index) - fval);
+      // getWeight's float multiply can round once more, by half a float ulp of the weight.
+      assertTrue(fname + " off by " + error + " at scale " + model.scale, error <= model.scale / 2.0 + Math.ulp(fval) / 2.0);
+      return true;
+    });
+    assertEquals(-1, model.find("missing"));
+  }
+
+  @Test
+  public void errorWithinHalfScale8() {
+    checkError(8);
+  }
+
+  @Test
+  public void errorWithinHalfScale16() {
+    checkError(16);
+  }
+
+  @Test
+  public void saveLoadScoresTheSame() throws Exception {
+    Random rand = new Random(5);
+    TObjectFloatHashMap<String> weights = randomWeights(rand, 300);
+    List<String> names = new ArrayList<>(weights.keySet());
+    for (int bits : new int[]{8, 16, 32}) {
+      CompactLinearModel model = CompactLinearModel.quantize(weights, bits);
+      File file = File.createTempFile("compact", ".clm");
+      try {
+        model.save(file);
+        assertTrue(CompactLinearModel.isCompactModel(file));
+        CompactLinearModel loaded = CompactLinearModel.load(file);
+        assertEquals(model.bits, loaded.bits);
+        assertEquals(model.scale, loaded.scale, 0.0);
+        assertEquals(model.size(), loaded.size());
+        for (int i = 0; i < model.size(); i++) {
+          assertEquals(model.getName(i), loaded.getName(i));
+          assertEquals(model.getWeight(i), loaded.getWeight(i), 0.0);
+        }
+        for (int trial = 0; trial < 50; trial++) {
+          Set<String> features = new HashSet<>();
+          for (int f = 0; f < 10; f++) {
+            features.add(rand.nextInt(4) == 0 ? "unseen" + f : names.get(rand.nextInt(names.size())));
+          }
+          assertEquals(model.score(features), loaded.score(features), 0.0);
+        }
+      } finally {
+        file.delete();
+      }
+    }
+  }
+}
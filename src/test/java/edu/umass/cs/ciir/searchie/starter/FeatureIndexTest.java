@@ -0,0 +1,60 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import gnu.trove.map.hash.TObjectFloatHashMap;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link FeatureIndex} scores and measures against forward scoring and {@link BasicExperiment#evaluateModel}, exactly.
+ * @author jfoley
+ */
+public class FeatureIndexTest {
+
+  /** Random weights for every feature in the dictionary, and a few it has never seen. */
+  static TObjectFloatHashMap<String> randomWeights(Random rand, FeatureDictionary dictionary) {
+    TObjectFloatHashMap<String> weights = new TObjectFloatHashMap<>();
+    for (int f = 0; f < dictionary.size(); f++) {
+      weights.put(dictionary.getName(f), (float) rand.nextGaussian());
+    }
+    weights.put("unseen=1", 1.0f);
+    weights.put("unseen=2", -2.0f);
+    return weights;
+  }
+
+  /** A full model, a sampled one, and a sampled compact one: the three ways FeatureIndex gets its weights. */
+  static List<TokenClassifier> models(Random rand, FeatureDictionary dictionary) {
+    LinearTokenClassifier full = new LinearTokenClassifier(randomWeights(rand, dictionary));
+    List<TokenClassifier> models = new ArrayList<>();
+    models.add(full);
+    models.add(full.deriveSampled(5));
+    models.add(full.deriveSampledCompact(5, 8));
+    return models;
+  }
+
+  @Test
+  public void sameAsForwardScoring() {
+    Random rand = new Random(11);
+    FeatureDictionary dictionary = new FeatureDictionary();
+    // short lemma and feature vocabularies, so vectors and lemmas repeat.
+    List<List<SimpleToken>> sentences = LBFGSTest.randomSentences(rand, 60, dictionary);
+    FeatureIndex index = FeatureIndex.build(sentences);
+
+    for (TokenClassifier model : models(rand, dictionary)) {
+      double[] scores = index.score(model);
+      int t = 0;
+      for (List<SimpleToken> sentence : sentences) {
+        for (SimpleToken token : sentence) {
+          assertEquals(model.score(token), scores[t++], 0.0);
+        }
+      }
+      for (String etype : new String[]{"PER", "LOC"}) {
+        assertEquals(BasicExperiment.evaluateModel(model, sentences, etype), index.evaluate(model, etype));
+      }
+    }
+  }
+}
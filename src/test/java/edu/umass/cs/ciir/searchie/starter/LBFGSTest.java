@@ -0,0 +1,104 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link LBFGS} on a function with a known minimum, and finite-difference checks of the {@link JavaCRFLearner}
+ * objectives it minimizes.
+ * @author jfoley
+ */
+public class LBFGSTest {
+
+  @Test
+  public void rosenbrock() {
+    LBFGS optimizer = new LBFGS();
+    optimizer.epsilon = 1e-10;
+    optimizer.delta = 0;
+    double[] x = {-1.2, 1};
+    double f = optimizer.minimize((w, g) -> {
+      double a = 1 - w[0];
+      double b = w[1] - w[0] * w[0];
+      g[0] = -2 * a - 400 * w[0] * b;
+      g[1] = 200 * b;
+      return a * a + 100 * b * b;
+    }, x);
+    assertEquals(0, f, 1e-10);
+    assertEquals(1, x[0], 1e-4);
+    assertEquals(1, x[1], 1e-4);
+  }
+
+  /** Random sentences over a small vocabulary, with PER, LOC and O labels. */
+  static List<List<SimpleToken>> randomSentences(Random rand, int numSentences, FeatureDictionary dictionary) {
+    String[] labels = {"PER", "LOC", "O", "O"};
+    List<List<SimpleToken>> sentences = new ArrayList<>();
+    for (int s = 0; s < numSentences; s++) {
+      List<SimpleToken> sentence = new ArrayList<>();
+      int length = 1 + rand.nextInt(5);
+      for (int t = 0; t < length; t++) {
+        String lemma = "w" + rand.nextInt(8);
+        List<String> features = new ArrayList<>(Arrays.asList(lemma, "shape=" + rand.nextInt(3)));
+        if(rand.nextBoolean()) features.add("prev=" + rand.nextInt(4));
+        sentence.add(new SimpleToken(labels[rand.nextInt(labels.length)], lemma, features, dictionary));
+      }
+      sentences.add(sentence);
+    }
+    return sentences;
+  }
+
+  private static void checkGradient(String objective) {
+    Random rand = new Random(7);
+    JavaCRFLearner learner = new JavaCRFLearner();
+    learner.objective = objective;
+    learner.c2 = 0.5;
+    JavaCRFLearner.TrainingData data = new JavaCRFLearner.TrainingData(randomSentences(rand, 12, new FeatureDictionary()), "PER", objective.equals("crf"));
+    JavaCRFLearner.Model model = learner.new Model(data);
+
+    double[] w = new double[data.numParameters];
+    for (int i = 0; i < w.length; i++) {
+      w[i] = rand.nextGaussian();
+    }
+    double[] gradient = new double[w.length];
+    model.objective(w, gradient);
+
+    double[] ignored = new double[w.length];
+    double h = 1e-5;
+    for (int i = 0; i < w.length; i++) {
+      double original = w[i];
+      w[i] = original + h;
+      double up = model.objective(w, ignored);
+      w[i] = original - h;
+      double down = model.objective(w, ignored);
+      w[i] = original;
+      assertEquals(objective + " parameter " + i, (up - down) / (2 * h), gradient[i], 1e-6 * Math.max(1, Math.abs(gradient[i])));
+    }
+  }
+
+  @Test
+  public void crfGradient() {
+    checkGradient("crf");
+  }
+
+  @Test
+  public void logisticGradient() {
+    checkGradient("logistic");
+  }
+
+  @Test
+  public void trainingLowersTheLoss() {
+    JavaCRFLearner learner = new JavaCRFLearner();
+    learner.quiet = true;
+    JavaCRFLearner.TrainingData data = new JavaCRFLearner.TrainingData(randomSentences(new Random(3), 20, new FeatureDictionary()), "PER", true);
+    JavaCRFLearner.Model model = learner.new Model(data);
+    double before = model.objective(new double[data.numParameters], new double[data.numParameters]);
+    double after = new LBFGS().minimize(model::objective, model.weights);
+    assertTrue(after < before);
+  }
+}
@@ -0,0 +1,53 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link LemmaAggregator#measures} against adding the same tokens to an {@link EvaluationAccumulator}.
+ * @author jfoley
+ */
+public class LemmaAggregatorTest {
+
+  private static void check(String[] lemmas, boolean[] truth, double[] scores, double threshold) {
+    EvaluationAccumulator expected = new EvaluationAccumulator();
+    int[] lemmaIds = new int[lemmas.length];
+    FeatureDictionary ids = new FeatureDictionary();
+    for (int t = 0; t < lemmas.length; t++) {
+      expected.add(lemmas[t], truth[t], scores[t]);
+      lemmaIds[t] = ids.getOrAdd(lemmas[t]);
+    }
+    Map<String, Double> actual = LemmaAggregator.measures(scores, truth, lemmaIds, ids.size(), lemmas.length, threshold);
+    assertEquals(expected.computeMeasures(threshold), actual);
+  }
+
+  @Test
+  public void sameAsAdding() {
+    Random rand = new Random(3);
+    for (int trial = 0; trial < 20; trial++) {
+      int n = 1 + rand.nextInt(40);
+      String[] lemmas = new String[n];
+      boolean[] truth = new boolean[n];
+      double[] scores = new double[n];
+      for (int t = 0; t < n; t++) {
+        lemmas[t] = "w" + rand.nextInt(6);
+        truth[t] = rand.nextInt(3) == 0;
+        scores[t] = rand.nextInt(5) - 2;
+      }
+      check(lemmas, truth, scores, 0);
+    }
+  }
+
+  @Test
+  public void nanScores() {
+    // a NaN first sticks (nothing is > NaN); a NaN later never replaces a number.
+    String[] lemmas = {"a", "a", "b", "b", "c", "c", "d"};
+    boolean[] truth = {true, false, false, true, false, false, true};
+    double[] scores = {Double.NaN, 2.0, 1.0, Double.NaN, -1.0, 0.5, Double.NaN};
+    check(lemmas, truth, scores, 0);
+  }
+}
@@ -0,0 +1,88 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link OnlineLearner}'s lazy L2 decay and lazy averaging, against the eager versions that touch every weight at
+ * every step.
+ * @author jfoley
+ */
+public class OnlineLearnerTest {
+
+  private static OnlineLearner train(String algorithm, List<List<SimpleToken>> sentences) {
+    OnlineLearner learner = new OnlineLearner("PER", algorithm);
+    learner.learningRate = 0.3;
+    learner.l2 = 0.05;
+    for (List<SimpleToken> sentence : sentences) {
+      learner.update(sentence);
+    }
+    return learner;
+  }
+
+  @Test
+  public void lazyL2MatchesEager() {
+    FeatureDictionary dictionary = new FeatureDictionary();
+    List<List<SimpleToken>> sentences = LBFGSTest.randomSentences(new Random(11), 60, dictionary);
+    OnlineLearner lazy = train("sgd", sentences);
+
+    double[] w = new double[dictionary.size()];
+    double decay = 1 - lazy.learningRate * lazy.l2;
+    for (List<SimpleToken> sentence : sentences) {
+      for (SimpleToken token : sentence) {
+        for (int f = 0; f < w.length; f++) {
+          w[f] *= decay;
+        }
+        double y = token.getLabel().equals("PER") ? 1 : -1;
+        double score = 0;
+        for (int f : token.getFeatureIds()) {
+          score += w[f];
+        }
+        double change = lazy.learningRate * y / (1 + Math.exp(y * score));
+        for (int f : token.getFeatureIds()) {
+          w[f] += change;
+        }
+      }
+    }
+    for (int f = 0; f < w.length; f++) {
+      assertEquals(dictionary.getName(f), w[f], lazy.getWeight(f), 1e-12);
+    }
+  }
+
+  @Test
+  public void averagedPerceptronMatchesEager() {
+    FeatureDictionary dictionary = new FeatureDictionary();
+    List<List<SimpleToken>> sentences = LBFGSTest.randomSentences(new Random(5), 60, dictionary);
+    OnlineLearner lazy = train("perceptron", sentences);
+
+    double[] w = new double[dictionary.size()];
+    double[] sum = new double[w.length];
+    long steps = 0;
+    for (List<SimpleToken> sentence : sentences) {
+      for (SimpleToken token : sentence) {
+        double y = token.getLabel().equals("PER") ? 1 : -1;
+        double score = 0;
+        for (int f : token.getFeatureIds()) {
+          score += w[f];
+        }
+        if(y * score <= 0) {
+          for (int f : token.getFeatureIds()) {
+            w[f] += y;
+          }
+        }
+        for (int f = 0; f < w.length; f++) {
+          sum[f] += w[f];
+        }
+        steps++;
+      }
+    }
+    assertEquals(steps, lazy.numUpdates());
+    for (int f = 0; f < w.length; f++) {
+      assertEquals(dictionary.getName(f), sum[f] / steps, lazy.getWeight(f), 1e-12);
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link RankingMetrics} against brute force: AP and P@k averaged over every order of the ties.
+ * @author jfoley
+ */
+public class RankingMetricsTest {
+  private static final int[] DEPTHS = {1, 2, 3, 5, 10};
+
+  /** Expected AP and P@k over all orders of tied scores, by enumerating every permutation that sorts the scores. */
+  private static double[] bruteForce(double[] scores, boolean[] truth) {
+    int n = scores.length;
+    double[] ranked = new double[n];
+    for (int i = 0; i < n; i++) {
+      ranked[i] = Double.isNaN(scores[i]) ? Double.NEGATIVE_INFINITY : scores[i];
+    }
+    int numPositive = 0;
+    for (boolean t : truth) {
+      if(t) numPositive++;
+    }
+    double[] sums = new double[1 + DEPTHS.length];
+    int[] count = {0};
+    permute(new int[n], new boolean[n], 0, ranked, truth, numPositive, sums, count);
+    for (int i = 0; i < sums.length; i++) {
+      sums[i] /= count[0];
+    }
+    return sums;
+  }
+
+  private static void permute(int[] order, boolean[] used, int depth, double[] ranked, boolean[] truth, int numPositive, double[] sums, int[] count) {
+    int n = order.length;
+    if(depth == n) {
+      count[0]++;
+      int found = 0;
+      double ap = 0;
+      for (int r = 0; r < n; r++) {
+        if(truth[order[r]]) {
+          found++;
+          ap += found / (double) (r + 1);
+        }
+        for (int d = 0; d < DEPTHS.length; d++) {
+          if(DEPTHS[d] == r + 1) sums[1 + d] += found / (double) DEPTHS[d];
+        }
+      }
+      for (int d = 0; d < DEPTHS.length; d++) {
+        if(DEPTHS[d] > n) sums[1 + d] += found / (double) DEPTHS[d];
+      }
+      sums[0] += numPositive == 0 ? 0 : ap / numPositive;
+      return;
+    }
+    for (int i = 0; i < n; i++) {
+      if(used[i]) continue;
+      // only orders that rank by score:
+      if(depth > 0 && ranked[i] > ranked[order[depth - 1]]) continue;
+      used[i] = true;
+      order[depth] = i;
+      permute(order, used, depth + 1, ranked, truth, numPositive, sums, count);
+      used[i] = false;
+    }
+  }
+
+  private static double bruteForceAUC(double[] scores, boolean[] truth) {
+    double pairs = 0, correct = 0;
+    for (int i = 0; i < scores.length; i++) {
+      for (int j = 0; j < scores.length; j++) {
+        if(!truth[i] || truth[j]) continue;
+        double pos = Double.isNaN(scores[i]) ? Double.NEGATIVE_INFINITY : scores[i];
+        double neg = Double.isNaN(scores[j]) ? Double.NEGATIVE_INFINITY : scores[j];
+        pairs++;
+        if(pos > neg) correct++;
+        else if(pos == neg) correct += 0.5;
+      }
+    }
+    return pairs == 0 ? 0 : correct / pairs;
+  }
+
+  private static void check(double[] scores, boolean[] truth, double threshold) {
+    RankingMetrics metrics = RankingMetrics.compute(scores, truth, scores.length, threshold, DEPTHS);
+    double[] expected = bruteForce(scores, truth);
+    assertEquals("AP", expected[0], metrics.averagePrecision, 1e-12);
+    for (int d = 0; d < DEPTHS.length; d++) {
+      assertEquals("P" + DEPTHS[d], expected[1 + d], metrics.precisionAt(DEPTHS[d]), 1e-12);
+    }
+    assertEquals("AUC", bruteForceAUC(scores, truth), metrics.auc, 1e-12);
+
+    long tp = 0, fp = 0, tn = 0, fn = 0;
+    for (int i = 0; i < scores.length; i++) {
+      boolean predicted = scores[i] > threshold;
+      if(predicted && truth[i]) tp++;
+      else if(predicted) fp++;
+      else if(truth[i]) fn++;
+      else tn++;
+    }
+    assertEquals(tp, metrics.truePositives);
+    assertEquals(fp, metrics.falsePositives);
+    assertEquals(tn, metrics.trueNegatives);
+    assertEquals(fn, metrics.falseNegatives);
+  }
+
+  @Test
+  public void noTies() {
+    check(new double[] {0.9, 0.1, 0.5, -2, 3}, new boolean[] {true, false, false, true, false}, 0);
+  }
+
+  @Test
+  public void tieHeavy() {
+    Random rand = new Random(13);
+    for (int trial = 0; trial < 300; trial++) {
+      int n = 1 + rand.nextInt(7);
+      double[] scores = new double[n];
+      boolean[] truth = new boolean[n];
+      for (int i = 0; i < n; i++) {
+        // mostly zeros, as in a sparse model:
+        scores[i] = rand.nextInt(3) == 0 ? rand.nextInt(3) - 1 : 0;
+        truth[i] = rand.nextBoolean();
+      }
+      check(scores, truth, 0);
+    }
+  }
+
+  @Test(timeout = 1000)
+  public void nanScoresRankLast() {
+    check(new double[] {Double.NaN, 1, 0}, new boolean[] {true, false, true}, 0);
+    check(new double[] {Double.NaN, Double.NaN, Double.NaN}, new boolean[] {true, false, false}, 0);
+    check(new double[] {Double.NaN, Double.NEGATIVE_INFINITY, 2, Double.NaN, 0}, new boolean[] {false, true, true, true, false}, 0);
+
+    RankingMetrics metrics = RankingMetrics.compute(new double[] {Double.NaN, 1}, new boolean[] {true, false}, 2, 0, DEPTHS);
+    assertEquals(0.0, metrics.auc, 0);
+    assertEquals(1, metrics.falseNegatives);
+  }
+}
@@ -0,0 +1,94 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import gnu.trove.map.hash.TObjectFloatHashMap;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Closing a {@link ScoringServer} while a client still has tokens queued: every token gets a reply, even if it's an
+ * error.
+ * @author jfoley
+ */
+public class ScoringServerTest {
+
+  /** Slow enough that tokens pile up behind it. */
+  private static class SlowClassifier extends LinearTokenClassifier {
+    SlowClassifier(TObjectFloatHashMap<String> featureWeights) {
+      super(featureWeights);
+    }
+
+    @Override
+    public double score(Set<String> features) {
+      try {
+        Thread.sleep(1);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return super.score(features);
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void closeAnswersEverythingInFlight() throws Exception {
+    TObjectFloatHashMap<String> weights = new TObjectFloatHashMap<>();
+    weights.put("w=a", 1.5f);
+    Map<String, TokenClassifier> models = Collections.singletonMap("PER", new SlowClassifier(weights));
+    int numTokens = 2000;
+
+    ScoringServer server = new ScoringServer(models, 0, 1, 8, 100, 64, 4096);
+    server.start();
+    try (Socket client = new Socket("localhost", server.getPort())) {
+      CompletableFuture<List<String>> replies = CompletableFuture.supplyAsync(() -> {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8))) {
+          String line;
+          while ((line = in.readLine()) != null) {
+            lines.add(line);
+          }
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+        return lines;
+      });
+
+      Writer out = new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8);
+      for (int i = 0; i < numTokens; i++) {
+        out.write("O\tw=a\tw=b\n");
+      }
+      out.flush();
+      // about 50 tokens scored; the rest are queued or not yet read.
+      Thread.sleep(50);
+      server.close();
+      client.shutdownOutput();
+
+      List<String> lines = replies.get(30, TimeUnit.SECONDS);
+      assertEquals(numTokens, lines.size());
+      int scored = 0;
+      for (String line : lines) {
+        if(line.startsWith("ERROR")) {
+          assertEquals("ERROR server closed", line);
+        } else {
+          assertEquals(1.5, Double.parseDouble(line), 0.0);
+          scored++;
+        }
+      }
+      assertTrue(scored > 0 && scored < numTokens);
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package edu.umass.cs.ciir.searchie.starter;
+
+import ciir.jfoley.chai.io.TemporaryDirectory;
+import gnu.trove.map.hash.TObjectFloatHashMap;
+import org.junit.Test;
+import org.lemurproject.galago.utility.Parameters;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link TrainingScheduler} with a stub learner in place of crfsuite: every job's stages run in order, each future
+ * answers its own job, cached samples skip training, and failures come back through the futures.
+ * @author jfoley
+ */
+public class TrainingSchedulerTest {
+
+  /** "Trains" by recording each stage; the algorithm "fail" throws while learning. */
+  private static class StubLearner extends CRFSuiteLearner {
+    final Map<File, List<String>> stages = new ConcurrentHashMap<>();
+    final Map<File, String> jobForModel = new ConcurrentHashMap<>();
+    final AtomicInteger trained = new AtomicInteger();
+
+    StubLearner(TemporaryDirectory tmpdir) {
+      super(tmpdir, "no-such-crfsuite");
+      this.quiet = true;
+    }
+
+    private void record(File file, String stage) {
+      stages.computeIfAbsent(file, f -> Collections.synchronizedList(new ArrayList<>())).add(stage);
+    }
+
+    @Override
+    public void createTrainingFile(String etype, List<List<SimpleToken>> sentences, File forTrain) {
+      record(forTrain, "write");
+    }
+
+    @Override
+    public void trainModel(Parameters cfg, String algorithm, File forTrain, File forModel, File stderr, File stdout) {
+      record(forTrain, "learn");
+      if(algorithm.equals("fail")) throw new IllegalStateException("stub learner failed");
+      trained.incrementAndGet();
+      jobForModel.put(forModel, algorithm);
+      cfg.put("trainingTime", 0.0);
+    }
+
+    @Override
+    public TObjectFloatHashMap<String> readWeightsFromModel(String etype, Parameters cfg, File forModel, File forEvalErr) {
+      TObjectFloatHashMap<String> weights = new TObjectFloatHashMap<>();
+      // the weights say which job they came from.
+      weights.put(etype + "/" + jobForModel.get(forModel), 1f);
+      cfg.put("extractTime", 0.0);
+      return weights;
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void ordersCachesAndFails() throws Exception {
+    File cacheDir = Files.createTempDirectory("scheduler-cache").toFile();
+    try (TemporaryDirectory tmpdir = new TemporaryDirectory()) {
+      StubLearner learner = new StubLearner(tmpdir);
+      learner.setCache(new ModelCache(cacheDir, 1L << 20));
+      List<List<SimpleToken>> sample = LBFGSTest.randomSentences(new Random(1), 10, new FeatureDictionary());
+
+      List<TrainingScheduler.TrainingJob> jobs = new ArrayList<>();
+      for (String algorithm : new String[]{"lbfgs", "l2sgd", "fail", "ap", "pa"}) {
+        jobs.add(new TrainingScheduler.TrainingJob("PER", sample, algorithm));
+      }
+      List<CompletableFuture<TrainingScheduler.TrainingResult>> results;
+      try (TrainingScheduler scheduler = new TrainingScheduler(learner, 3)) {
+        results = scheduler.submitAll(jobs);
+      }
+      // close waited for everything.
+      for (CompletableFuture<TrainingScheduler.TrainingResult> result : results) {
+        assertTrue(result.isDone());
+      }
+
+      for (int i = 0; i < jobs.size(); i++) {
+        TrainingScheduler.TrainingJob job = jobs.get(i);
+        if(job.algorithm.equals("fail")) {
+          try {
+            results.get(i).get();
+            fail("expected the stub's failure");
+          } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+            assertEquals("stub learner failed", e.getCause().getMessage());
+          }
+        } else {
+          TrainingScheduler.TrainingResult result = results.get(i).get();
+          assertSame(job, result.job);
+          assertEquals(1, result.weights.size());
+          assertEquals(1f, result.weights.get("PER/" + job.algorithm), 0f);
+          assertTrue(result.timings.containsKey("totalTime"));
+        }
+      }
+      // every job wrote its training file, on the writer pool, before learning from it on the process pool.
+      for (List<String> stages : learner.stages.values()) {
+        assertEquals(Arrays.asList("write", "learn"), stages);
+      }
+      assertEquals(jobs.size(), learner.stages.size());
+      assertEquals(4, learner.trained.get());
+
+      // the same samples again: the successes are cached, the failure trains (and fails) again.
+      try (TrainingScheduler scheduler = new TrainingScheduler(learner, 3)) {
+        for (TrainingScheduler.TrainingJob job : jobs) {
+          CompletableFuture<TrainingScheduler.TrainingResult> again = scheduler.submit(job);
+          if(job.algorithm.equals("fail")) {
+            try {
+              again.get();
+              fail("expected the stub's failure");
+            } catch (ExecutionException e) {
+              assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+          } else {
+            assertTrue(again.isDone());
+            assertEquals(true, again.get().timings.get("cached", false));
+            assertEquals(1f, again.get().weights.get("PER/" + job.algorithm), 0f);
+          }
+        }
+      }
+      assertEquals(4, learner.trained.get());
+    } finally {
+      File[] entries = cacheDir.listFiles();
+      if(entries != null) {
+        for (File entry : entries) {
+          entry.delete();
+        }
+      }
+      cacheDir.delete();
+    }
+  }
+}